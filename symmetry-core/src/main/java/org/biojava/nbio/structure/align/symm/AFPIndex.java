@@ -0,0 +1,195 @@
+package org.biojava.nbio.structure.align.symm;
+
+import java.util.Arrays;
+
+/**
+ * Sparse index of the candidate AFP cells of a similarity matrix, the ones
+ * with a score between 0 and a maximum.
+ * <p>
+ * The cells are stored both by rows and by columns in compressed sparse form
+ * (CSR and CSC), with the indices in increasing order. Seeds can then be
+ * enumerated along a row, and the gap extensions of a trace, which probe a
+ * row and a column from the end of the trace, only visit the candidates.
+ * <p>
+ * The matrix is read once, by rows, and the column order is built from the
+ * row order. The index takes 8 bytes per candidate cell, its column in the
+ * row order and its row in the column order, and 4 bytes per row and column
+ * of the matrix. While the matrix is read, the row order grows by doubling,
+ * so it can take up to twice its final size.
+ */
+public class AFPIndex {
+
+	private final int[] rowStart;
+	private final int[] colStart;
+	private int[] cols;
+	private int[] rows;
+	private int size;
+
+	private AFPIndex(int nRows, int nCols) {
+		rowStart = new int[nRows + 1];
+		colStart = new int[nCols + 1];
+		cols = new int[Math.max(16, nRows)];
+	}
+
+	/**
+	 * Index the cells of a similarity matrix.
+	 *
+	 * @param matrix
+	 *            the values of the matrix
+	 * @param nRows
+	 *            number of rows of the matrix
+	 * @param nCols
+	 *            number of columns of the matrix
+	 * @param maxScore
+	 *            maximum score of a candidate cell
+	 * @return the index of the candidate cells
+	 */
+	public static AFPIndex fromMatrix(double[][] matrix, int nRows,
+			int nCols, double maxScore) {
+		AFPIndex index = new AFPIndex(nRows, nCols);
+		for (int i = 0; i < nRows; i++) {
+			double[] row = matrix[i];
+			for (int j = 0; j < nCols; j++) {
+				if (row[j] >= 0.0 && row[j] <= maxScore)
+					index.add(j);
+			}
+			index.rowStart[i + 1] = index.size;
+		}
+		index.indexColumns();
+		return index;
+	}
+
+	/**
+	 * Index the cells of a packed similarity matrix.
+	 *
+	 * @param matrix
+	 *            the matrix
+	 * @param maxScore
+	 *            maximum score of a candidate cell
+	 * @return the index of the candidate cells
+	 */
+	public static AFPIndex fromMatrix(PackedMatrix matrix, double maxScore) {
+		int nRows = matrix.getRows();
+		int nCols = matrix.getCols();
+		AFPIndex index = new AFPIndex(nRows, nCols);
+		for (int i = 0; i < nRows; i++) {
+			for (int j = 0; j < nCols; j++) {
+				float value = matrix.get(i, j);
+				if (value >= 0.0 && value <= maxScore)
+					index.add(j);
+			}
+			index.rowStart[i + 1] = index.size;
+		}
+		index.indexColumns();
+		return index;
+	}
+
+	/**
+	 * Add a candidate in column j to the current row.
+	 */
+	private void add(int j) {
+		if (size == cols.length)
+			cols = Arrays.copyOf(cols, 2 * size);
+		cols[size++] = j;
+		colStart[j + 1]++;
+	}
+
+	/**
+	 * Trim the row order and build the column order from it. The rows are
+	 * visited in increasing order, so the rows of each column are sorted.
+	 */
+	private void indexColumns() {
+		cols = Arrays.copyOf(cols, size);
+		for (int j = 1; j < colStart.length; j++)
+			colStart[j] += colStart[j - 1];
+		rows = new int[size];
+		int[] colNext = Arrays.copyOf(colStart, colStart.length - 1);
+		for (int i = 0; i + 1 < rowStart.length; i++) {
+			for (int p = rowStart[i]; p < rowStart[i + 1]; p++)
+				rows[colNext[cols[p]]++] = i;
+		}
+	}
+
+	/**
+	 * @return total number of candidate cells
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Position of the first candidate of row i with column &ge; j.
+	 *
+	 * @param i
+	 *            row
+	 * @param j
+	 *            minimum column
+	 * @return position in the row order, up to {@link #rowEnd(int)}
+	 */
+	public int rowFrom(int i, int j) {
+		return lowerBound(cols, rowStart[i], rowStart[i + 1], j);
+	}
+
+	/**
+	 * @param i
+	 *            row
+	 * @return the position after the last candidate of row i
+	 */
+	public int rowEnd(int i) {
+		return rowStart[i + 1];
+	}
+
+	/**
+	 * @param p
+	 *            position in the row order
+	 * @return the column of the candidate
+	 */
+	public int col(int p) {
+		return cols[p];
+	}
+
+	/**
+	 * Position of the first candidate of column j with row &ge; i.
+	 *
+	 * @param j
+	 *            column
+	 * @param i
+	 *            minimum row
+	 * @return position in the column order, up to {@link #colEnd(int)}
+	 */
+	public int colFrom(int j, int i) {
+		return lowerBound(rows, colStart[j], colStart[j + 1], i);
+	}
+
+	/**
+	 * @param j
+	 *            column
+	 * @return the position after the last candidate of column j
+	 */
+	public int colEnd(int j) {
+		return colStart[j + 1];
+	}
+
+	/**
+	 * @param p
+	 *            position in the column order
+	 * @return the row of the candidate
+	 */
+	public int row(int p) {
+		return rows[p];
+	}
+
+	/**
+	 * First position in [from,to) of the sorted array with a value &ge; key.
+	 */
+	private static int lowerBound(int[] values, int from, int to, int key) {
+		while (from < to) {
+			int mid = (from + to) >>> 1;
+			if (values[mid] < key)
+				from = mid + 1;
+			else
+				to = mid;
+		}
+		return from;
+	}
+}
@@ -0,0 +1,57 @@
+package org.biojava.nbio.structure.align.symm;
+
+import org.biojava.nbio.structure.symmetry.internal.CESymmParameters;
+
+/**
+ * CE-Symm parameters with a budget for the trace search of the
+ * {@link CESymmCalculator}.
+ * <p>
+ * The search stops when it has extended more than the maximum number of
+ * traces or when the maximum time has passed, and keeps the best trace found
+ * up to that point. {@link CESymmCalculator#isExhaustive()} tells whether the
+ * search was complete or truncated.
+ * <p>
+ * The budget is only available to library users of the
+ * {@link CESymmCalculator}. The CeSymm command line tool runs the BioJava
+ * calculator, which has no budget, and has no option for it.
+ */
+public class BudgetedCESymmParameters extends CESymmParameters {
+
+	/** Default maximum number of traces, as in the CE algorithm */
+	public static final long DEFAULT_MAX_TRACES = (long) 5e7;
+
+	private long maxTraces = DEFAULT_MAX_TRACES;
+	private long maxTraceTime = 0;
+
+	/**
+	 * @return the maximum number of traces extended in the search
+	 */
+	public long getMaxTraces() {
+		return maxTraces;
+	}
+
+	/**
+	 * @param maxTraces
+	 *            the maximum number of traces extended in the search
+	 */
+	public void setMaxTraces(long maxTraces) {
+		this.maxTraces = maxTraces;
+	}
+
+	/**
+	 * @return the maximum time of the trace search in milliseconds, or 0 if
+	 *         the time is unlimited
+	 */
+	public long getMaxTraceTime() {
+		return maxTraceTime;
+	}
+
+	/**
+	 * @param maxTraceTime
+	 *            the maximum time of the trace search in milliseconds, or 0
+	 *            for unlimited time (default)
+	 */
+	public void setMaxTraceTime(long maxTraceTime) {
+		this.maxTraceTime = maxTraceTime;
+	}
+}
@@ -1,129 +1,981 @@
 package org.biojava.nbio.structure.align.symm;
 
-import javax.vecmath.Matrix4d;
-import javax.vecmath.Point3d;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import org.biojava.nbio.structure.Atom;
 import org.biojava.nbio.structure.Calc;
+import org.biojava.nbio.structure.StructureException;
 import org.biojava.nbio.structure.align.ce.CECalculator;
 import org.biojava.nbio.structure.align.ce.CeParameters;
+import org.biojava.nbio.structure.align.ce.CeParameters.ScoringStrategy;
 import org.biojava.nbio.structure.align.model.AFPChain;
-import org.biojava.nbio.structure.align.util.RotationAxis;
-import org.biojava.nbio.structure.geometry.SuperPositions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * This is an experimental version of CECalculator that aims at improving the
  * computational complexity of CESymm at least half (by using only upper
  * diagonal of the similarity matrix.
+ * <p>
+ * When both atom arrays are the same structure, the similarity matrix is
+ * symmetric and every trace has a mirrored trace with swapped indices and
+ * equal scores. In the optional triangular mode only the upper half of the
+ * matrix is computed and only the seeds on or above the diagonal are traced.
+ * The mirrored traces are derived from the traced ones instead of being
+ * recomputed. The results can differ from the full scan, which is the
+ * default: the full scan skips the first-iteration seeds too close to the
+ * end of the matrix, which drops some mirrored seeds that the triangular mode
+ * keeps, and the candidate traces are collected in a different order, so
+ * ties between them can be broken differently.
+ * <p>
+ * In any mode, a self-alignment computes a single intra-structure distance
+ * matrix for both atom arrays, which is also shared by the two distance
+ * tables of the {@link AFPChain}. With a side chain scoring strategy, the
+ * dense mode computes both matrices in the superclass.
+ * <p>
+ * A self-alignment of a sub-range of the atoms of a previous alignment, as in
+ * the levels of a hierarchical symmetry, can take its matrices from the
+ * calculator of the previous alignment, see
+ * {@link #setParent(CESymmCalculator, int)}.
+ * <p>
+ * In the optional compact mode, the distance and similarity matrices are
+ * stored as {@link PackedMatrix} in single precision, packing one triangle
+ * when the matrix is symmetric, and the trace search reads them directly.
+ * The matrices are built with the {@link DistanceKernels}, which use the
+ * Vector API when it is available, and they can be stored off the Java heap
+ * for very long chains. Matrix listeners are not notified in this mode.
+ * <p>
+ * The compact mode only bounds the memory of the fragment extraction and the
+ * trace search. The final optimization of the superclass, in
+ * {@link #nextStep(AFPChain, Atom[], Atom[])}, works on double[][] fields:
+ * it needs a dense similarity matrix as working space and the dense distance
+ * matrices for the distance tables of the alignment. The packed matrices are
+ * released before the dense ones are built, unless they are kept for the
+ * sub-ranges (see {@link #setKeepMatrices(boolean)}), so the peak heap of a
+ * complete alignment is that of the dense final step.
+ * <p>
+ * In the optional parallel mode, the seeds of the first trace iteration are
+ * split into blocks of consecutive rows, which are traced concurrently in a
+ * {@link ForkJoinPool}, by one worker copy of the calculator per thread.
+ * The workers log the traces of their seeds, and the logs are replayed in
+ * seed order as in the sequential search, so the best trace and the
+ * candidate traces do not depend on the number of threads and are the same
+ * as in the sequential search, unless the traces limit is reached.
+ * <p>
+ * The trace search has a budget of extended traces and, optionally, of time,
+ * which can be set with {@link BudgetedCESymmParameters}. When the budget is
+ * exhausted the search stops and keeps the best trace found so far, and
+ * {@link #isExhaustive()} returns false.
+ * <p>
+ * In the optional banded mode, the repeat lengths of the structure are
+ * predicted from the periodicity of its contact map (see
+ * {@link RepeatPeriodicity}), and the seeds of the first trace iteration are
+ * only taken from the diagonal bands around the offsets of the predicted
+ * repeats. The traces can still extend outside the bands. Without a clear
+ * periodicity all the seeds are traced. Optionally, the repeat lengths are
+ * first predicted from the sequence, which is cheaper and often enough for
+ * tandem-repeat proteins.
+ * <p>
+ * The seeds can also be warm started from the alignment of a similar
+ * structure, like the previous frame of a trajectory or model of an NMR
+ * ensemble: only the diagonal bands around the offsets of its aligned
+ * residues are traced. If the result fails the thresholds of the caller, the
+ * search has to be repeated without the warm start. The warm start only
+ * applies to callers that drive this calculator themselves: the CeSymm of
+ * BioJava creates its own CECalculator, so the frames mode of the tools
+ * checks the previous self-alignment against the new frame instead.
  * 
  * @author Aleix Lafita
  *
  */
 public class CESymmCalculator extends CECalculator {
 
+	private static final Logger logger = LoggerFactory
+			.getLogger(CESymmCalculator.class);
+
+	/**
+	 * Minimum rotation angle, in degrees, between two AFPs for one to extend
+	 * the other.
+	 */
 	public static final int MIN_ANGLE = 20;
 
+	/**
+	 * Minimum length, in A, of the vectors that define a fragment frame.
+	 * Shorter vectors give a numerically ill-defined frame, and the exact
+	 * angle is computed for the fragment.
+	 */
+	private static final double FRAME_MIN_NORM = 1.0;
+
+	/** {@link #MIN_ANGLE} in radians, the unit of the superposition angles */
+	private static final double MIN_ANGLE_RAD = Math.toRadians(MIN_ANGLE);
+
+	/** Cosine of {@link #MIN_ANGLE}, for the comparison of the frames */
+	private static final double COS_MIN_ANGLE = Math.cos(MIN_ANGLE_RAD);
+
+	private boolean triangular = false;
+
+	private boolean compact = false;
+	private PackedMatrix.Storage storage = PackedMatrix.Storage.HEAP;
+	private DistanceKernels kernels = DistanceKernels.getInstance();
+	private PackedMatrix packedMat;
+	private PackedMatrix packedDist1;
+	private PackedMatrix packedDist2;
+
+	/** Number of seed rows traced by each parallel task */
+	private static final int SEED_BLOCK_ROWS = 16;
+
+	private int parallelism = 0;
+
+	/** Seed rows of a parallel worker, or -1 for all the seeds */
+	private int seedRowStart = -1;
+	private int seedRowEnd = -1;
+	/** Traces of the seeds of a parallel worker, in seed order, or null */
+	private SeedLog seedLog;
+
+	/** Flat coordinates and fragment frames, shared with the workers */
+	private double[] coords1;
+	private double[] coords2;
+	private double[] frames1;
+	private double[] frames2;
+	private double[] local1;
+	private double[] local2;
+
+	private long maxTraces = BudgetedCESymmParameters.DEFAULT_MAX_TRACES;
+	private long maxTraceTime = 0;
+	/** System.nanoTime() at which the search stops */
+	private long deadline = Long.MAX_VALUE;
+	private boolean exhaustive = true;
+
+	/** Half width of the seed bands, in fragment windows */
+	private static final int BAND_WINDOWS = 2;
+
+	private boolean banded = false;
+	private boolean sequencePrior = false;
+	/** Predicted repeat lengths of the last search */
+	private int[] repeatLengths = new int[0];
+	/** Time of the last sequence prediction in ns, and whether it hit */
+	private long sequencePriorTime = 0;
+	private boolean sequencePriorHit = false;
+	/**
+	 * Sorted disjoint diagonal bands of the seeds, as pairs of first and
+	 * after last offset j-i, or null to trace all the seeds
+	 */
+	private int[] bands;
+
+	/** Alignment of a similar structure that seeds the search, or null */
+	private AFPChain warmStart;
+
+	/** Matrices of a parent alignment that contains the atoms as a sub-range */
+	private CESymmCalculator parent;
+	private int parentFrom;
+	private boolean keepMatrices = false;
+	/** Atoms of the last self-alignment, and its dense similarity matrix */
+	private Atom[] extractedAtoms;
+	private double[][] keptMat;
+
+	/** Candidate AFP cells of the similarity matrix, shared with the workers */
+	private AFPIndex afpIndex;
+	/** Maximum score of a candidate AFP of the trace search */
+	private double candidateMax;
+	private boolean indexed = true;
+
+	/** Return value of an extension probe that exhausted the budget */
+	private static final int TRUNCATED = -2;
+
 	Atom origin1 = null;
 	Atom origin2 = null;
 
 	public CESymmCalculator(CeParameters params) {
 		super(params);
+		if (params instanceof BudgetedCESymmParameters) {
+			BudgetedCESymmParameters budget = (BudgetedCESymmParameters) params;
+			maxTraces = budget.getMaxTraces();
+			maxTraceTime = budget.getMaxTraceTime();
+		}
+	}
+
+	/**
+	 * @return the maximum number of traces extended in the search
+	 */
+	public long getMaxTraces() {
+		return maxTraces;
+	}
+
+	/**
+	 * @param maxTraces
+	 *            the maximum number of traces extended in the search
+	 */
+	public void setMaxTraces(long maxTraces) {
+		this.maxTraces = maxTraces;
+	}
+
+	/**
+	 * @return the maximum time of the trace search in milliseconds, or 0 if
+	 *         the time is unlimited
+	 */
+	public long getMaxTraceTime() {
+		return maxTraceTime;
+	}
+
+	/**
+	 * @param maxTraceTime
+	 *            the maximum time of the trace search in milliseconds, or 0
+	 *            for unlimited time
+	 */
+	public void setMaxTraceTime(long maxTraceTime) {
+		this.maxTraceTime = maxTraceTime;
+	}
+
+	/**
+	 * Whether the last trace search visited all the seeds, or it was
+	 * truncated because the budget was exhausted.
+	 *
+	 * @return true if the search was exhaustive
+	 */
+	public boolean isExhaustive() {
+		return exhaustive;
+	}
+
+	/**
+	 * Record that the search stopped before visiting all the seeds.
+	 */
+	private void truncate() {
+		exhaustive = false;
+		if (seedRowStart < 0)
+			logger.warn("Trace search truncated after {} traces", nTraces);
+	}
+
+	/**
+	 * Whether self-alignments are computed on one triangle of the matrix.
+	 *
+	 * @return true if the triangular mode is enabled
+	 */
+	public boolean isTriangular() {
+		return triangular;
+	}
+
+	/**
+	 * Compute self-alignments on one triangle of the matrix. If false
+	 * (default), the full matrix is always scanned. The results can differ
+	 * from the full scan, see the class documentation.
+	 *
+	 * @param triangular
+	 */
+	public void setTriangular(boolean triangular) {
+		this.triangular = triangular;
+	}
+
+	/**
+	 * Whether the matrices are stored in the compact single precision layout.
+	 *
+	 * @return true if the compact mode is enabled
+	 */
+	public boolean isCompact() {
+		return compact;
+	}
+
+	/**
+	 * Store the distance and similarity matrices of the fragment extraction
+	 * and the trace search in the compact single precision layout, which
+	 * takes up to 4 times less memory. The final step still builds the dense
+	 * matrices, so the peak memory of a complete alignment is not reduced.
+	 * Scores are rounded to single precision, so results may differ slightly
+	 * from the default mode.
+	 *
+	 * @param compact
+	 */
+	public void setCompact(boolean compact) {
+		this.compact = compact;
+	}
+
+	/**
+	 * @return where the matrices of the compact mode are stored
+	 */
+	public PackedMatrix.Storage getStorage() {
+		return storage;
+	}
+
+	/**
+	 * Store the matrices of the compact mode off the Java heap, for very
+	 * long chains. The matrices of the final optimization of the superclass
+	 * are still allocated on the heap. Only used in the compact mode.
+	 *
+	 * @param storage
+	 *            where the matrices are stored, {@link PackedMatrix.Storage#HEAP}
+	 *            by default
+	 */
+	public void setStorage(PackedMatrix.Storage storage) {
+		this.storage = storage;
+	}
+
+	/**
+	 * @return the similarity matrix of the compact mode, or null if it was
+	 *         not used
+	 */
+	public PackedMatrix getPackedMatrix() {
+		return packedMat;
+	}
+
+	/**
+	 * Whether the seeds are restricted to the bands of the predicted repeat
+	 * lengths.
+	 *
+	 * @return true if the banded mode is enabled
+	 */
+	public boolean isBanded() {
+		return banded;
+	}
+
+	/**
+	 * Predict the repeat lengths from the contact map periodicity and trace
+	 * only the seeds in the diagonal bands around their offsets. The search
+	 * space of long repeat proteins is much smaller, but the best trace may
+	 * differ from the full search. Without a clear periodicity all the seeds
+	 * are traced.
+	 *
+	 * @param banded
+	 */
+	public void setBanded(boolean banded) {
+		this.banded = banded;
+	}
+
+	/**
+	 * @return the repeat lengths predicted in the last banded search, from
+	 *         the most to the least likely, or an empty array if there was
+	 *         no clear periodicity
+	 */
+	public int[] getRepeatLengths() {
+		return repeatLengths;
+	}
+
+	/**
+	 * Whether the repeat lengths are first predicted from the sequence.
+	 *
+	 * @return true if the sequence prior is enabled
+	 */
+	public boolean isSequencePrior() {
+		return sequencePrior;
+	}
+
+	/**
+	 * Predict the repeat lengths of the banded mode from the sequence
+	 * self-similarity first, and from the contact map only if the sequence
+	 * has no clear periodicity. Only used in the banded mode.
+	 *
+	 * @param sequencePrior
+	 */
+	public void setSequencePrior(boolean sequencePrior) {
+		this.sequencePrior = sequencePrior;
+	}
+
+	/**
+	 * @return the time of the sequence prediction of the last search in ns,
+	 *         0 if it was not run
+	 */
+	public long getSequencePriorTime() {
+		return sequencePriorTime;
+	}
+
+	/**
+	 * @return true if the sequence prediction of the last search found
+	 *         repeat lengths, which were then used for the bands
+	 */
+	public boolean isSequencePriorHit() {
+		return sequencePriorHit;
+	}
+
+	/**
+	 * @return the alignment that seeds the search, or null for a cold start
+	 */
+	public AFPChain getWarmStart() {
+		return warmStart;
+	}
+
+	/**
+	 * Trace only the seeds in the diagonal bands around the offsets of the
+	 * aligned residues of a previous self-alignment of a structure with the
+	 * same residues, like the previous frame of a trajectory. It takes
+	 * precedence over the banded mode. Without aligned residues all the seeds
+	 * are traced.
+	 *
+	 * @param warmStart
+	 *            the previous self-alignment, or null for a cold start
+	 *            (default)
+	 */
+	public void setWarmStart(AFPChain warmStart) {
+		this.warmStart = warmStart;
+	}
+
+	/**
+	 * Whether the matrices of the fragment extraction are kept for the
+	 * alignments of sub-ranges.
+	 *
+	 * @return true if the matrices are kept
+	 */
+	public boolean isKeepMatrices() {
+		return keepMatrices;
+	}
+
+	/**
+	 * Release the packed matrices of the compact mode, freeing their off-heap
+	 * storage, and the kept similarity matrix. They are released by the
+	 * final optimization, unless they are kept (see
+	 * {@link #setKeepMatrices(boolean)}), so this is only needed when the
+	 * matrices were kept and the alignments of sub-ranges are done. The
+	 * views that sub-range alignments take of the matrices can not be used
+	 * afterwards.
+	 */
+	public void releaseMatrices() {
+		if (packedMat != null)
+			packedMat.close();
+		if (packedDist1 != null)
+			packedDist1.close();
+		if (packedDist2 != null)
+			packedDist2.close();
+		packedMat = null;
+		packedDist1 = null;
+		packedDist2 = null;
+		keptMat = null;
+	}
+
+	/**
+	 * Keep the matrices of the fragment extraction after the final
+	 * optimization, so that the alignments of sub-ranges of the atoms can
+	 * reuse them (see {@link #setParent(CESymmCalculator, int)}). In the
+	 * default mode a copy of the similarity matrix is kept, which the final
+	 * optimization otherwise overwrites. In the compact mode the packed
+	 * matrices are otherwise released before the final optimization.
+	 *
+	 * @param keepMatrices
+	 */
+	public void setKeepMatrices(boolean keepMatrices) {
+		this.keepMatrices = keepMatrices;
+	}
+
+	/**
+	 * Reuse the matrices of a parent calculator in the next self-alignment,
+	 * for example in the next symmetry level of a hierarchical symmetry. The
+	 * atoms of the self-alignment have to be the atoms [from, from+n) of the
+	 * last alignment of the parent, which has to use the same window size and
+	 * mode and to keep its matrices. The distance matrix and the similarity
+	 * of the fragments inside the sub-range are then taken from the parent
+	 * instead of being computed again, with the same values, and the matrix
+	 * listeners are not notified. Otherwise, the matrices are computed as
+	 * usual.
+	 *
+	 * @param parent
+	 *            the calculator of the whole atoms, or null to compute the
+	 *            matrices
+	 * @param from
+	 *            index in the parent atoms of the first atom
+	 */
+	public void setParent(CESymmCalculator parent, int from) {
+		this.parent = parent;
+		this.parentFrom = from;
+	}
+
+	/**
+	 * Number of threads of the parallel seed search.
+	 *
+	 * @return the number of threads, or 0 if the search is sequential
+	 */
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	/**
+	 * Trace the seeds of the first iteration in parallel with the given
+	 * number of threads. The results are the same for any number of threads,
+	 * but the candidate traces and the trace count may differ from the
+	 * sequential search, which prunes the seeds with the best trace found so
+	 * far.
+	 *
+	 * @param parallelism
+	 *            number of threads, or 0 (default) for the sequential search
+	 */
+	public void setParallelism(int parallelism) {
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * Enumerate the seeds and extensions of the trace search by scanning all
+	 * the cells of the matrix, instead of the {@link AFPIndex} of the
+	 * candidate AFPs. Only for testing that both find the same traces.
+	 *
+	 * @param indexed
+	 */
+	void setIndexed(boolean indexed) {
+		this.indexed = indexed;
+	}
+
+	/**
+	 * Set the kernels that build the matrices in the compact mode. Only for
+	 * testing, the default is {@link DistanceKernels#getInstance()}.
+	 *
+	 * @param kernels
+	 */
+	void setKernels(DistanceKernels kernels) {
+		this.kernels = kernels;
+	}
+
+	/**
+	 * Whether the two atom arrays describe the same structure, so that the
+	 * similarity matrix is symmetric.
+	 */
+	private static boolean isSelfAlignment(Atom[] ca1, Atom[] ca2) {
+		if (ca1 == ca2)
+			return true;
+		if (ca1.length != ca2.length)
+			return false;
+		for (int i = 0; i < ca1.length; i++) {
+			if (ca1[i] == ca2[i])
+				continue;
+			if (ca1[i].getX() != ca2[i].getX()
+					|| ca1[i].getY() != ca2[i].getY()
+					|| ca1[i].getZ() != ca2[i].getZ())
+				return false;
+		}
+		return true;
+	}
+
+	@Override
+	public double[][] initSumOfDistances(int nse1, int nse2, int winSize,
+			int winSizeComb1, Atom[] ca1, Atom[] ca2) {
+
+		if (!triangular || !isSelfAlignment(ca1, ca2))
+			return super.initSumOfDistances(nse1, nse2, winSize,
+					winSizeComb1, ca1, ca2);
+
+		// Symmetric matrix: compute the upper half and mirror it
+		double[][] mat = new double[nse1][nse2];
+		for (int ise1 = 0; ise1 < nse1; ise1++) {
+			for (int ise2 = ise1; ise2 < nse2; ise2++) {
+				double d = -1.0;
+				if (ise2 <= nse2 - winSize) {
+					d = 0.0;
+					for (int is1 = 0; is1 < winSize - 2; is1++) {
+						for (int is2 = is1 + 2; is2 < winSize; is2++) {
+							d += Math.abs(dist1[ise1 + is1][ise1 + is2]
+									- dist2[ise2 + is1][ise2 + is2]);
+						}
+					}
+					d /= winSizeComb1;
+				}
+				mat[ise1][ise2] = d;
+				mat[ise2][ise1] = d;
+			}
+		}
+		return mat;
+	}
+
+	@Override
+	public AFPChain extractFragments(AFPChain afpChain, Atom[] ca1, Atom[] ca2)
+			throws StructureException {
+
+		// only the matrices of self-alignments can be reused
+		extractedAtoms = isSelfAlignment(ca1, ca2) ? ca1 : null;
+		keptMat = null;
+
+		if (isParentReusable(ca1, ca2)) {
+			extractFromParent(afpChain, ca1);
+			return afpChain;
+		}
+
+		releaseMatrices();
+		if (!compact) {
+			if (extractedAtoms != null
+					&& params.getScoringStrategy() == ScoringStrategy.CA_SCORING)
+				extractSelf(afpChain, ca1);
+			else
+				super.extractFragments(afpChain, ca1, ca2);
+			if (keepMatrices && extractedAtoms != null)
+				keptMat = copy(mat);
+			return afpChain;
+		}
+
+		int nse1 = ca1.length;
+		int nse2 = ca2.length;
+		afpChain.setCa1Length(nse1);
+		afpChain.setCa2Length(nse2);
+
+		boolean selfAlignment = isSelfAlignment(ca1, ca2);
+		boolean self = triangular && selfAlignment;
+		packedDist1 = PackedMatrix.distances(
+				FragmentRotation.toCoordinates(ca1), kernels, storage);
+		packedDist2 = selfAlignment ? packedDist1 : PackedMatrix.distances(
+				FragmentRotation.toCoordinates(ca2), kernels, storage);
+		packedMat = self ? new PackedMatrix(nse1, storage) : new PackedMatrix(
+				nse1, nse2, storage);
+
+		int winSize = params.getWinSize();
+		int winSizeComb1 = (winSize - 1) * (winSize - 2) / 2;
+		double[] row = new double[nse2];
+		packedMat.fill(-1.0f);
+
+		// The distances (i,i+g) of a fragment pair lie on the diagonal g of
+		// the distance matrices, so a whole row of the similarity matrix is
+		// summed over contiguous ranges of the diagonals of dist2. Only the
+		// diagonals below the window size are read, from copies on the heap.
+		float[][] diagonals1 = new float[winSize][];
+		float[][] diagonals2 = new float[winSize][];
+		for (int g = 2; g < winSize; g++) {
+			diagonals1[g] = packedDist1.getDiagonal(g);
+			diagonals2[g] = selfAlignment ? diagonals1[g] : packedDist2
+					.getDiagonal(g);
+		}
+		for (int ise1 = 0; ise1 <= nse1 - winSize; ise1++) {
+			int ise2From = self ? ise1 : 0;
+			int len = nse2 - winSize + 1 - ise2From;
+			if (len <= 0)
+				continue;
+			Arrays.fill(row, 0, len, 0.0);
+			for (int g = 2; g < winSize; g++) {
+				for (int is1 = 0; is1 < winSize - g; is1++)
+					kernels.addAbsDifferences(diagonals1[g][ise1 + is1],
+							diagonals2[g], ise2From + is1, row, len);
+			}
+			for (int i = 0; i < len; i++)
+				packedMat.set(ise1, ise2From + i,
+						(float) (row[i] / winSizeComb1));
+		}
+
+		// the packed matrices replace the ones of the superclass
+		dist1 = null;
+		dist2 = null;
+		mat = null;
+		return afpChain;
+	}
+
+	/**
+	 * Build the matrices of a self-alignment as the superclass does with the
+	 * CA scoring, but compute the distance matrix once and share it as dist1
+	 * and dist2. It is also shared by the distance tables.
+	 */
+	private void extractSelf(AFPChain afpChain, Atom[] ca) {
+
+		int n = ca.length;
+		afpChain.setCa1Length(n);
+		afpChain.setCa2Length(n);
+
+		dist1 = new double[n][n];
+		for (int i = 0; i < n; i++) {
+			for (int j = i; j < n; j++) {
+				double d = Calc.getDistance(ca[i], ca[j]);
+				dist1[i][j] = d;
+				dist1[j][i] = d;
+			}
+		}
+		dist2 = dist1;
+
+		int winSize = params.getWinSize();
+		int winSizeComb1 = (winSize - 1) * (winSize - 2) / 2;
+		mat = initSumOfDistances(n, n, winSize, winSizeComb1, ca, ca);
+	}
+
+	/**
+	 * Whether the matrices of the parent can be reused for the self-alignment
+	 * of the atoms.
+	 */
+	private boolean isParentReusable(Atom[] ca1, Atom[] ca2) {
+
+		if (parent == null || !isSelfAlignment(ca1, ca2))
+			return false;
+		if (parent.compact != compact
+				|| parent.params.getWinSize() != params.getWinSize())
+			return false;
+		if (compact ? parent.packedMat == null : parent.keptMat == null)
+			return false;
+
+		Atom[] atoms = parent.extractedAtoms;
+		if (atoms == null || parentFrom < 0
+				|| parentFrom + ca1.length > atoms.length)
+			return false;
+		for (int i = 0; i < ca1.length; i++) {
+			Atom a = atoms[parentFrom + i];
+			if (ca1[i].getX() != a.getX() || ca1[i].getY() != a.getY()
+					|| ca1[i].getZ() != a.getZ())
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Take the distance and similarity matrices of a self-alignment from the
+	 * sub-range of the parent matrices. The similarity of the fragments that
+	 * do not fit in the sub-range is -1, as in a new matrix.
+	 */
+	private void extractFromParent(AFPChain afpChain, Atom[] ca) {
+
+		releaseMatrices();
+		int n = ca.length;
+		int from = parentFrom;
+		int last = n - params.getWinSize();
+		afpChain.setCa1Length(n);
+		afpChain.setCa2Length(n);
+
+		if (compact) {
+			// the distances are a view of the parent matrix
+			packedDist1 = new PackedMatrix(parent.packedDist1, from, n);
+			packedDist2 = packedDist1;
+			packedMat = triangular ? new PackedMatrix(n, storage)
+					: new PackedMatrix(n, n, storage);
+			packedMat.fill(-1.0f);
+			for (int i = 0; i <= last; i++) {
+				for (int j = triangular ? i : 0; j <= last; j++)
+					packedMat.set(i, j, parent.packedMat.get(from + i, from + j));
+			}
+			dist1 = null;
+			dist2 = null;
+			mat = null;
+			return;
+		}
+
+		dist1 = new double[n][];
+		mat = new double[n][n];
+		for (int i = 0; i < n; i++) {
+			dist1[i] = Arrays.copyOfRange(parent.dist1[from + i], from, from
+					+ n);
+			Arrays.fill(mat[i], -1.0);
+			if (i <= last)
+				System.arraycopy(parent.keptMat[from + i], from, mat[i], 0,
+						last + 1);
+		}
+		dist2 = dist1;
+		if (keepMatrices)
+			keptMat = copy(mat);
+	}
+
+	private static double[][] copy(double[][] matrix) {
+		double[][] copy = new double[matrix.length][];
+		for (int i = 0; i < matrix.length; i++)
+			copy[i] = matrix[i].clone();
+		return copy;
+	}
+
+	@Override
+	public void nextStep(AFPChain afpChain, Atom[] ca1, Atom[] ca2)
+			throws StructureException {
+		// the distance tables of the alignment are copied from dist1 and dist2
+		if (dist1 == null && packedDist1 != null) {
+			dist1 = packedDist1.toArray();
+			dist2 = packedDist2 == packedDist1 ? dist1 : packedDist2.toArray();
+		}
+		// the search is done, so the packed matrices are only needed for the
+		// sub-ranges
+		if (!keepMatrices)
+			releaseMatrices();
+		// working space of the superposition optimization
+		if (mat == null)
+			mat = new double[ca1.length][ca2.length];
+		super.nextStep(afpChain, ca1, ca2);
+		if (dist1 == dist2 && afpChain.getDisTable1() != null)
+			afpChain.setDisTable2(afpChain.getDisTable1());
+	}
+
+	/**
+	 * Value of the similarity matrix at (i,j), from the packed matrix in the
+	 * compact mode.
+	 */
+	private double getMat(int i, int j) {
+		if (packedMat != null)
+			return packedMat.get(i, j);
+		return mat[i][j];
+	}
+
+	/**
+	 * Distance score of extending the current trace with the AFP at mse1,
+	 * mse2, divided by nTrace*winSize. Same as
+	 * {@link #getScoreFromDistanceMatrices(int, int, int)}, but reads the
+	 * packed distance matrices in the compact mode.
+	 * <p>
+	 * The sum runs over the fragments of the trace in the same order, so the
+	 * score is identical. Since all the terms are positive, the running sum
+	 * is abandoned as soon as the score exceeds maxScore1, when the extension
+	 * would be rejected anyway.
+	 *
+	 * @return the score, or a value larger than maxScore1
+	 */
+	private double getDistanceScore(int mse1, int mse2, int winSize,
+			double maxScore1) {
+
+		double scale = nTrace * winSize;
+		double score = 0;
+		for (int itrace = 0; itrace < nTrace; itrace++) {
+			int t1 = trace1[itrace];
+			int t2 = trace2[itrace];
+			if (packedDist1 == null)
+				score = addFragmentScore(score, dist1, dist2, t1, t2, mse1,
+						mse2, winSize);
+			else
+				score = addFragmentScore(score, packedDist1, packedDist2, t1,
+						t2, mse1, mse2, winSize);
+			if (score / scale > maxScore1)
+				break;
+		}
+		return score / scale;
+	}
 
+	/**
+	 * Add the distance differences between the fragment pair t1,t2 of a trace
+	 * and the AFP at mse1, mse2 to the running sum, one by one and in the
+	 * order of {@link #getScoreFromDistanceMatrices(int, int, int)}.
+	 */
+	private static double addFragmentScore(double score, double[][] dist1,
+			double[][] dist2, int t1, int t2, int mse1, int mse2, int winSize) {
+		score += Math.abs(dist1[t1][mse1] - dist2[t2][mse2]);
+		score += Math.abs(dist1[t1 + winSize - 1][mse1 + winSize - 1]
+				- dist2[t2 + winSize - 1][mse2 + winSize - 1]);
+		for (int id = 1; id < winSize - 1; id++)
+			score += Math.abs(dist1[t1 + id][mse1 + winSize - 1 - id]
+					- dist2[t2 + id][mse2 + winSize - 1 - id]);
+		return score;
+	}
+
+	/**
+	 * Same as
+	 * {@link #addFragmentScore(double, double[][], double[][], int, int, int, int, int)}
+	 * with the packed distance matrices.
+	 */
+	private static double addFragmentScore(double score, PackedMatrix dist1,
+			PackedMatrix dist2, int t1, int t2, int mse1, int mse2, int winSize) {
+		score += Math.abs(dist1.get(t1, mse1) - dist2.get(t2, mse2));
+		score += Math.abs(dist1.get(t1 + winSize - 1, mse1 + winSize - 1)
+				- dist2.get(t2 + winSize - 1, mse2 + winSize - 1));
+		for (int id = 1; id < winSize - 1; id++)
+			score += Math.abs(dist1.get(t1 + id, mse1 + winSize - 1 - id)
+					- dist2.get(t2 + id, mse2 + winSize - 1 - id));
+		return score;
 	}
 
 	@Override
 	public void traceFragmentMatrix(AFPChain afpChain, Atom[] ca1, Atom[] ca2) {
 
-		// vecmath versions of points
-		// TODO Improve speed by using vecmath functions
-		Point3d[] points1 = Calc.atomsToPoints(ca1);
-		Point3d[] points2 = Calc.atomsToPoints(ca2);
-		
+		boolean worker = seedRowStart >= 0;
 		double rmsdThr = params.getRmsdThr();
 
 		double oldBestTraceScore = 10000.0;
 		bestTraceScore = 100.0;
 		nBestTrace = 0;
-		int nBestTrace0 = 0;
 		int winSize = params.getWinSize();
-		int winSizeComb1 = (winSize - 1) * (winSize - 2) / 2;
-		boolean distAll = false;
-
-		int winSizeComb2 = distAll ? winSize * winSize : winSize;
-		double rmsdThrJoin = params.getRmsdThrJoin();
+		if (!worker) {
+			// flat coordinate arrays for the allocation-free angle check
+			coords1 = FragmentRotation.toCoordinates(ca1);
+			coords2 = FragmentRotation.toCoordinates(ca2);
+			frames1 = FragmentRotation.getFrames(coords1, winSize,
+					FRAME_MIN_NORM);
+			frames2 = FragmentRotation.getFrames(coords2, winSize,
+					FRAME_MIN_NORM);
+			local1 = FragmentRotation.getLocalCoordinates(coords1, winSize,
+					frames1);
+			local2 = FragmentRotation.getLocalCoordinates(coords2, winSize,
+					frames2);
+		}
 
 		double z0;
 
-		// double bestTraceZScore=-1.0;
-
 		int nse1 = ca1.length;
 		int nse2 = ca2.length;
 
-		// System.out.println("nse1 :" +nse1 + " nse2: " + nse2);
-
 		int traceMaxSize = nse1 < nse2 ? nse1 : nse2;
 
-		bestTrace1 = new int[traceMaxSize];
-		bestTrace2 = new int[traceMaxSize];
-		trace1 = new int[traceMaxSize];
-		trace2 = new int[traceMaxSize];
-
-		int[] traceIndex = new int[traceMaxSize];
-		int[] traceIterLevel = new int[traceMaxSize];
+		// trace only the seeds of the upper triangle for self-alignments
+		boolean self = triangular && isSelfAlignment(ca1, ca2);
+
+		// a worker keeps its arrays for all its blocks
+		boolean allocate = !worker || trace1 == null
+				|| trace1.length != traceMaxSize;
+		if (allocate) {
+			bestTrace1 = new int[traceMaxSize];
+			bestTrace2 = new int[traceMaxSize];
+			trace1 = new int[traceMaxSize];
+			trace2 = new int[traceMaxSize];
+		}
 
 		int ise11;
 		int ise12;
 		int ise21;
 		int ise22;
 
-		int ise1;
-		int ise2;
-
-		int gapMax = params.getMaxGapSize();
-
-		int iterDepth;
-		if (gapMax > 0) {
-			iterDepth = gapMax * 2 + 1;
-		} else {
-			iterDepth = traceMaxSize;
-		}
-		double[][] traceScore = new double[traceMaxSize][iterDepth];
-
 		nTraces = 0;
-		long tracesLimit = (long) 5e7;
-		double score = -1;
-		double score0 = -1;
-		double score1 = -1;
-		double score2 = -1;
-
-		int mse1;
-		int mse2;
-		int jgap;
-		int jdir;
-		int jse1 = 0;
-		int jse2 = 0;
+		if (!worker) {
+			exhaustive = true;
+			deadline = Long.MAX_VALUE;
+			if (maxTraceTime > 0)
+				deadline = System.nanoTime() + maxTraceTime * 1000000;
+		}
 
 		int bestTracesMax = 30;
-		bestTraces1 = new int[bestTracesMax][traceMaxSize];
-		bestTraces2 = new int[bestTracesMax][traceMaxSize];
-		bestTracesN = new int[bestTracesMax];
-		bestTracesScores = new double[bestTracesMax];
+		if (allocate) {
+			bestTraces1 = new int[bestTracesMax][traceMaxSize];
+			bestTraces2 = new int[bestTracesMax][traceMaxSize];
+			bestTracesN = new int[bestTracesMax];
+			bestTracesScores = new double[bestTracesMax];
+		}
 		for (int it = 0; it < bestTracesMax; it++) {
 			bestTracesN[it] = 0;
 			bestTracesScores[it] = 100;
 		}
 
 		nBestTraces = 0;
-		int newBestTrace = 0;
 
-		double traceTotalScore = 0;
-		double traceScoreMax = 0;
-		double userRMSDMax = params.getMaxOptRMSD();
-		int kse1;
-		int kse2;
+		TraceSearch search = new TraceSearch(nse1, nse2, self, bestTracesMax);
+
+		// seeds and extensions are only looked up among the candidate AFPs
+		if (!worker) {
+			candidateMax = Math.min(rmsdThr, search.userRMSDMax);
+			afpIndex = null;
+			if (indexed)
+				afpIndex = packedMat != null ? AFPIndex.fromMatrix(packedMat,
+						candidateMax) : AFPIndex.fromMatrix(mat, nse1, nse2,
+						candidateMax);
+			bands = null;
+			repeatLengths = new int[0];
+			sequencePriorTime = 0;
+			sequencePriorHit = false;
+			if (warmStart != null) {
+				bands = getBands(warmStart, nse1, nse2, BAND_WINDOWS * winSize);
+				logger.debug("Warm start bands: {}", Arrays.toString(bands));
+			} else if (banded && sequencePrior) {
+				long start = System.nanoTime();
+				repeatLengths = RepeatPeriodicity.getSequenceRepeatLengths(
+						RepeatPeriodicity.getSequence(ca1), 2 * winSize);
+				sequencePriorTime = System.nanoTime() - start;
+				sequencePriorHit = repeatLengths.length > 0;
+				logger.debug("Sequence repeat lengths: {} in {} ms",
+						Arrays.toString(repeatLengths),
+						sequencePriorTime / 1000000);
+			}
+			if (banded && warmStart == null && !sequencePriorHit)
+				repeatLengths = RepeatPeriodicity.getRepeatLengths(coords1,
+						2 * winSize);
+			if (repeatLengths.length > 0)
+				bands = getBands(repeatLengths, nse1, nse2, BAND_WINDOWS
+						* winSize);
+			if (banded)
+				logger.debug("Predicted repeat lengths: {}",
+						Arrays.toString(repeatLengths));
+		}
+
+		// the first iteration can be traced in parallel
+		int firstIter = 0;
+		if (parallelism > 0 && !worker && nIter > 0) {
+			if (!traceSeedsParallel(afpChain, ca1, ca2, search))
+				return;
+			firstIter = 1;
+		}
 
 		//iterLoop:
-		for (int iter = 0; iter < nIter; iter++) {
+		for (int iter = firstIter; iter < nIter; iter++) {
+
+			if (worker && iter > 0)
+				break;
 
 			if (iter > 2) {
 				if (oldBestTraceScore <= bestTraceScore)
@@ -138,7 +990,7 @@ public class CESymmCalculator extends CECalculator {
 								- bestTrace2[0] - nBestTrace * 2 * winSize);
 				if (z0 < zThr)
 					break;
-				nBestTrace0 = nBestTrace;
+				search.nBestTrace0 = nBestTrace;
 				nBestTrace = 0;
 				bestTraceScore = 100.0;
 
@@ -146,8 +998,8 @@ public class CESymmCalculator extends CECalculator {
 			}
 
 			if (iter == 0) {
-				ise11 = 0;
-				ise12 = nse1;
+				ise11 = worker ? seedRowStart : 0;
+				ise12 = worker ? seedRowEnd : nse1;
 				ise21 = 0;
 				ise22 = nse2;
 
@@ -173,242 +1025,8 @@ public class CESymmCalculator extends CECalculator {
 					ise22 = nse2;
 			}
 
-			// System.out.println("ise1Loop: " + ise11 + " " + ise12 + " " +
-			// ise21 + " " + ise22);
-			//ise1Loop:
-			for (int ise1_ = ise11; ise1_ < ise12; ise1_++) {
-				ise2Loop: for (int ise2_ = ise21; ise2_ < ise22; ise2_++) {
-
-					ise1 = ise1_;
-					ise2 = ise2_;
-					if (iter > 1 && ise1 == ise11 + 1 && ise2 == ise21 + 1)
-						continue ise2Loop;
-
-					// if(ise2==ise21)
-					// System.out.println(String.format("(%d, %d)",ise1,
-					// nTraces));
-
-					if (iter == 0
-							&& (ise1 > nse1 - winSize * (nBestTrace - 1) || ise2 > nse2
-									- winSize * (nBestTrace - 1)))
-						continue ise2Loop;
-
-					if (mat[ise1][ise2] < 0.0)
-						continue ise2Loop;
-					if (mat[ise1][ise2] > rmsdThr)
-						continue ise2Loop;
-					if (mat[ise1][ise2] > userRMSDMax)
-						continue ise2Loop;
-					nTrace = 0;
-					trace1[nTrace] = ise1;
-					trace2[nTrace] = ise2;
-					traceIndex[nTrace] = 0;
-					traceIterLevel[nTrace] = 0;
-
-					score0 = mat[ise1][ise2];
-
-					nTrace++;
-					boolean isTraceUp = true;
-					int traceIndex_ = 0;
-
-					traceLoop: while (nTrace > 0) {
-
-						kse1 = trace1[nTrace - 1] + winSize;
-						kse2 = trace2[nTrace - 1] + winSize;
-
-						// System.out.println("isTraceUp " + isTraceUp + " " +
-						// nTrace + " " + kse1 + " " + kse2);
-
-						while (true) {
-							if (kse1 > nse1 - winSize - 1)
-								break;
-							if (kse2 > nse2 - winSize - 1)
-								break;
-							if (mat[kse1][kse2] >= 0.0)
-								break;
-							kse1++;
-							kse2++;
-						}
-
-						traceIndex_ = -1;
-
-						if (isTraceUp) {
-
-							int nBestExtTrace = nTrace;
-							double bestExtScore = 100.0;
-
-							// extension of the alignment path
-							// condition 4, 5
-							itLoop: for (int it = 0; it < iterDepth; it++) {
-
-								jgap = (it + 1) / 2;
-								jdir = (it + 1) % 2;
-
-								if (jdir == 0) {
-									mse1 = kse1 + jgap;
-									mse2 = kse2;
-								} else {
-									mse1 = kse1;
-									mse2 = kse2 + jgap;
-								}
-
-								if (mse1 > nse1 - winSize - 1)
-									continue itLoop;
-								if (mse2 > nse2 - winSize - 1)
-									continue itLoop;
-
-								if (mat[mse1][mse2] < 0.0)
-									continue itLoop;
-								if (mat[mse1][mse2] > rmsdThr)
-									continue itLoop;
-								if (mat[mse1][mse2] > userRMSDMax)
-									continue itLoop;
-
-								nTraces++;
-								if (nTraces > tracesLimit) {
-
-									return;
-								}
-
-								score = 0.0;
-
-								// if(!distAll) {
-								// System.out.println("getting score " + mse1 +
-								// " " + mse2 + " " + winSize + " " + jgap + " "
-								// + jdir + " " + it + " " + kse1 + " " + kse2);
-								score = getScoreFromDistanceMatrices(mse1,
-										mse2, winSize);
-								// System.out.println("got score: " + score);
-								score1 = score / (nTrace * winSize);
-
-								// } else {
-								// // all dist
-								// for(int itrace=0; itrace<nTrace; itrace++) {
-								// for(int is1=0; is1<winSize; is1++)
-								// for(int is2=0; is2<winSize; is2++)
-								// score+=Math.abs(dist1[trace1[itrace]+is1][mse1+is2]-
-								// dist2[trace2[itrace]+is1][mse2+is2]);
-								// }
-								// score1=score/(nTrace*winSize*winSize);
-								// }
-
-								// System.out.println("up: " + nTrace + " " +
-								// score + " " + score0 + " " + score1 + " " +
-								// winSize + " " + traceIndex_ + " " + it +
-								// " ");
-								if (score1 > rmsdThrJoin)
-									continue itLoop;
-								if (score1 > userRMSDMax)
-									continue itLoop;
-
-								double angle = checkAngle(mse1, mse2, points1, points2,
-										winSize);
-								if (angle < MIN_ANGLE)
-									continue itLoop;
-
-								score2 = score1;
-
-								// this just got checked, no need to check
-								// again..
-								// if(score2>rmsdThrJoin)
-								// continue itLoop;
-
-								if (nTrace > nBestExtTrace
-										|| (nTrace == nBestExtTrace && score2 < bestExtScore)) {
-									// System.out.println("setting traceindex to "
-									// + it + " " + score2);
-									bestExtScore = score2;
-									nBestExtTrace = nTrace;
-									traceIndex_ = it;
-									traceScore[nTrace - 1][traceIndex_] = score1;
-								}
-
-							}
-						}
-
-						if (traceIndex_ != -1) {
-							jgap = (traceIndex_ + 1) / 2;
-							jdir = (traceIndex_ + 1) % 2;
-							if (jdir == 0) {
-								jse1 = kse1 + jgap;
-								jse2 = kse2;
-							} else {
-								jse1 = kse1;
-								jse2 = kse2 + jgap;
-							}
-
-							if (iter == 0) {
-
-								score1 = (traceScore[nTrace - 1][traceIndex_]
-										* winSizeComb2 * nTrace + mat[jse1][jse2]
-										* winSizeComb1)
-										/ (winSizeComb2 * nTrace + winSizeComb1);
-
-								score2 = getScore2(jse1, jse2, traceScore,
-										traceIndex_, traceIndex, winSizeComb1,
-										winSizeComb2, score0, score1);
-
-								if (score2 > rmsdThrJoin)
-									traceIndex_ = -1;
-								else if (score2 > userRMSDMax)
-									traceIndex_ = -1;
-								else {
-									traceScore[nTrace - 1][traceIndex_] = score2;
-
-									traceTotalScore = score2;
-								}
-
-							} else {
-								if (traceScoreMax > rmsdThrJoin
-										&& nBestTrace >= nBestTrace0)
-									traceIndex_ = -1;
-								traceTotalScore = traceScoreMax;
-							}
-						}
-
-						// System.out.println("middle: " + nTrace + " " + score
-						// + " " + score0 + " " + score1 + "  " + score2 + " " +
-						// traceIndex_);
-
-						if (traceIndex_ == -1) {
-							// System.out.println("continue traceLoop " +
-							// nTrace);
-							// if(iterLevel==1) break;
-							nTrace--;
-							isTraceUp = false;
-							continue traceLoop;
-						} else {
-							traceIterLevel[nTrace - 1]++;
-							trace1[nTrace] = jse1;
-							trace2[nTrace] = jse2;
-							traceIndex[nTrace] = traceIndex_;
-							traceIterLevel[nTrace] = 0;
-							nTrace++;
-							isTraceUp = true;
-
-							if (nTrace > nBestTrace
-									|| (nTrace == nBestTrace && bestTraceScore > traceTotalScore)) {
-
-								for (int itrace = 0; itrace < nTrace; itrace++) {
-									bestTrace1[itrace] = trace1[itrace];
-									bestTrace2[itrace] = trace2[itrace];
-								}
-								bestTraceScore = traceTotalScore;
-								nBestTrace = nTrace;
-							}
-
-							if (iter == 0) {
-								// System.out.println("doing iter0 " +
-								// newBestTrace + " " + traceTotalScore + " " +
-								// bestTracesMax);
-								newBestTrace = doIter0(newBestTrace,
-										traceTotalScore, bestTracesMax);
-
-							}
-						}
-					}
-				}
-			}
+			if (!search.scanSeeds(iter, ise11, ise12, ise21, ise22))
+				return;
 
 			if (isPrint) {
 				System.out.println("fragment length: " + params.getWinSize());
@@ -447,43 +1065,764 @@ public class CESymmCalculator extends CECalculator {
 	}
 
 	/**
-	 * do a SVN of the AFPs at positions mse1, mse2. Returns the rotation angle
-	 * between the AFPs
-	 * 
-	 * @param mse1
-	 * @param mse2
-	 * @param ca1
-	 * @param ca2
-	 * @param winSize
-	 * @return
+	 * Diagonal bands around the offsets of the repeat lengths: the offsets
+	 * j-i = &plusmn;L between consecutive repeats, and &plusmn;(n1-L) between
+	 * the last and the first repeat of a closed symmetry.
+	 *
+	 * @param repeatLengths
+	 * @param nse1
+	 * @param nse2
+	 * @param halfWidth
+	 *            number of diagonals on each side of an offset
+	 * @return sorted disjoint bands, as pairs of first and after last offset
+	 */
+	static int[] getBands(int[] repeatLengths, int nse1, int nse2,
+			int halfWidth) {
+
+		List<int[]> bands = new ArrayList<int[]>();
+		for (int length : repeatLengths) {
+			for (int offset : new int[] { length, -length, nse1 - length,
+					length - nse1 }) {
+				int from = Math.max(offset - halfWidth, 1 - nse1);
+				int to = Math.min(offset + halfWidth + 1, nse2);
+				if (from < to)
+					bands.add(new int[] { from, to });
+			}
+		}
+		return mergeBands(bands);
+	}
+
+	/**
+	 * Diagonal bands around the offsets j-i of the aligned residues of a
+	 * previous self-alignment.
+	 *
+	 * @param alignment
+	 *            the previous self-alignment
+	 * @param nse1
+	 * @param nse2
+	 * @param halfWidth
+	 *            number of diagonals on each side of an offset
+	 * @return sorted disjoint bands, as pairs of first and after last offset,
+	 *         or null if there are no aligned residues
+	 */
+	static int[] getBands(AFPChain alignment, int nse1, int nse2,
+			int halfWidth) {
+
+		int[][][] optAln = alignment.getOptAln();
+		int[] optLen = alignment.getOptLen();
+		if (optAln == null || optLen == null)
+			return null;
+
+		// each distinct offset only once
+		boolean[] offsets = new boolean[nse1 + nse2];
+		List<int[]> bands = new ArrayList<int[]>();
+		for (int b = 0; b < alignment.getBlockNum(); b++) {
+			for (int k = 0; k < optLen[b]; k++) {
+				int offset = optAln[b][1][k] - optAln[b][0][k];
+				if (offset <= -nse1 || offset >= nse2 || offsets[offset + nse1])
+					continue;
+				offsets[offset + nse1] = true;
+				int from = Math.max(offset - halfWidth, 1 - nse1);
+				int to = Math.min(offset + halfWidth + 1, nse2);
+				if (from < to)
+					bands.add(new int[] { from, to });
+			}
+		}
+		if (bands.isEmpty())
+			return null;
+		return mergeBands(bands);
+	}
+
+	/**
+	 * Sort the bands and merge the overlapping ones.
+	 */
+	private static int[] mergeBands(List<int[]> bands) {
+
+		bands.sort(Comparator.comparingInt((int[] band) -> band[0]));
+
+		int[] merged = new int[2 * bands.size()];
+		int n = 0;
+		for (int[] band : bands) {
+			if (n > 0 && band[0] <= merged[n - 1])
+				merged[n - 1] = Math.max(merged[n - 1], band[1]);
+			else {
+				merged[n++] = band[0];
+				merged[n++] = band[1];
+			}
+		}
+		return Arrays.copyOf(merged, n);
+	}
+
+	/**
+	 * State of one trace search, created by
+	 * {@link CESymmCalculator#traceFragmentMatrix(AFPChain, Atom[], Atom[])}.
+	 * The search is split into methods that share this state instead of the
+	 * local variables of a single method. The trace stacks and the best
+	 * traces are the fields of the superclass, which are read by the final
+	 * optimization.
 	 */
-	private double checkAngle(int mse1, int mse2, Point3d[] ca1, Point3d[] ca2,
-			int winSize) {
+	private class TraceSearch {
+
+		private final int winSize;
+		private final int nse1;
+		private final int nse2;
+		private final int iterDepth;
+		private final int winSizeComb1;
+		private final int winSizeComb2;
+		private final double rmsdThrJoin;
+		private final double userRMSDMax;
+		private final long tracesLimit;
+		private final boolean self;
+		private final int[] traceIterLevel;
+		private final double[][] traceScore;
+		private final int[] traceSlots;
+		private final int bestTracesMax;
+		private int newBestTrace = 0;
+		private int nBestTrace0 = 0;
+		private double traceTotalScore = 0;
+		private final double traceScoreMax = 0;
+		/** Length of the trace prefix that is already in the seed log */
+		private int loggedTrace;
+
+		TraceSearch(int nse1, int nse2, boolean self, int bestTracesMax) {
+			this.nse1 = nse1;
+			this.nse2 = nse2;
+			this.self = self;
+			this.bestTracesMax = bestTracesMax;
+			winSize = params.getWinSize();
+			winSizeComb1 = (winSize - 1) * (winSize - 2) / 2;
+			boolean distAll = false;
+			winSizeComb2 = distAll ? winSize * winSize : winSize;
+			rmsdThrJoin = params.getRmsdThrJoin();
+			userRMSDMax = params.getMaxOptRMSD();
+			tracesLimit = maxTraces;
+
+			int traceMaxSize = nse1 < nse2 ? nse1 : nse2;
+			int gapMax = params.getMaxGapSize();
+			if (gapMax > 0) {
+				iterDepth = gapMax * 2 + 1;
+			} else {
+				iterDepth = traceMaxSize;
+			}
+			traceIterLevel = new int[traceMaxSize];
+			// Each seed is extended along a single path, and only the score
+			// of the chosen extension of each trace level is read back, so
+			// one slot per level is enough instead of one per extension
+			// index. The slot indices passed to getScore2 are all 0.
+			traceScore = new double[traceMaxSize][1];
+			traceSlots = new int[traceMaxSize];
+		}
+
+		/**
+		 * Trace all the candidate seeds in the given range of the matrix, in row
+		 * order. In the first iteration of the banded mode, only the seeds in the
+		 * bands are traced.
+		 *
+		 * @return false if the budget was exhausted
+		 */
+		private boolean scanSeeds(int iter, int ise11, int ise12, int ise21,
+				int ise22) {
+
+			// the bands of the seeds, or a single band with all the columns
+			int[] seedBands = iter == 0 && bands != null ? bands : new int[] {
+					-nse1, nse2 };
+
+			for (int ise1 = ise11; ise1 < ise12; ise1++) {
+				int ise2Start = ise21;
+				if (self && iter == 0 && ise2Start < ise1)
+					ise2Start = ise1;
+				for (int b = 0; b < seedBands.length; b += 2) {
+					int bandStart = Math.max(ise2Start, ise1 + seedBands[b]);
+					int bandEnd = Math.min(ise22, ise1 + seedBands[b + 1]);
+					if (afpIndex == null) {
+						for (int ise2 = bandStart; ise2 < bandEnd; ise2++) {
+							if (isCandidate(ise1, ise2)
+									&& !scanSeed(iter, ise11, ise21, ise1, ise2))
+								return false;
+						}
+						continue;
+					}
+					int rowEnd = afpIndex.rowEnd(ise1);
+					for (int rowPos = afpIndex.rowFrom(ise1, bandStart); rowPos < rowEnd; rowPos++) {
+						int ise2 = afpIndex.col(rowPos);
+						if (ise2 >= bandEnd)
+							break;
+						if (!scanSeed(iter, ise11, ise21, ise1, ise2))
+							return false;
+					}
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Trace the candidate seed AFP (ise1, ise2), unless it is skipped in
+		 * this iteration.
+		 *
+		 * @return false if the budget was exhausted
+		 */
+		private boolean scanSeed(int iter, int ise11, int ise21, int ise1,
+				int ise2) {
+
+			if (iter > 1 && ise1 == ise11 + 1 && ise2 == ise21 + 1)
+				return true;
+
+			if (iter == 0
+					&& (ise1 > nse1 - winSize * (nBestTrace - 1) || ise2 > nse2
+							- winSize * (nBestTrace - 1)))
+				return true;
+
+			if (deadline != Long.MAX_VALUE && System.nanoTime() > deadline) {
+				truncate();
+				return false;
+			}
+
+			if (seedLog != null)
+				seedLog.addSeed(ise1, ise2);
+			return traceSeed(iter, ise1, ise2);
+		}
+
+		/**
+		 * Whether the AFP (i, j) is a candidate, as in the {@link AFPIndex}.
+		 */
+		private boolean isCandidate(int i, int j) {
+			double score = getMat(i, j);
+			return score >= 0.0 && score <= candidateMax;
+		}
+
+		/**
+		 * Next extension index after it whose AFP is a candidate, found by
+		 * scanning the cells of the matrix instead of the index.
+		 *
+		 * @return the extension index, or iterDepth if there is none
+		 */
+		private int scanExtension(int kse1, int kse2, int it) {
+			for (it++; it < iterDepth; it++) {
+				int mse1 = extension1(kse1, it);
+				int mse2 = extension2(kse2, it);
+				if (mse1 < nse1 && mse2 < nse2 && isCandidate(mse1, mse2))
+					return it;
+			}
+			return iterDepth;
+		}
+
+		/**
+		 * Extend the traces that start at the seed AFP (ise1, ise2) depth first,
+		 * going back one AFP when a trace can not be extended further.
+		 *
+		 * @return false if the budget was exhausted
+		 */
+		private boolean traceSeed(int iter, int ise1, int ise2) {
+
+			// only candidate AFPs are enumerated: the score is between 0 and
+			// rmsdThr and userRMSDMax
+			nTrace = 0;
+			trace1[nTrace] = ise1;
+			trace2[nTrace] = ise2;
+			traceIterLevel[nTrace] = 0;
+			loggedTrace = 0;
+
+			double score0 = getMat(ise1, ise2);
+
+			// the trace stands for itself and its mirrored trace
+			boolean mirrored = self && iter == 0 && ise1 != ise2;
+
+			nTrace++;
+			boolean isTraceUp = true;
+
+			while (nTrace > 0) {
+
+				int kse1 = trace1[nTrace - 1] + winSize;
+				int kse2 = trace2[nTrace - 1] + winSize;
+
+				while (true) {
+					if (kse1 > nse1 - winSize - 1)
+						break;
+					if (kse2 > nse2 - winSize - 1)
+						break;
+					if (getMat(kse1, kse2) >= 0.0)
+						break;
+					kse1++;
+					kse2++;
+				}
+
+				int traceIndex_ = -1;
+
+				if (isTraceUp) {
+					traceIndex_ = probeExtensions(kse1, kse2, mirrored);
+					if (traceIndex_ == TRUNCATED)
+						return false;
+				}
+
+				if (traceIndex_ != -1)
+					traceIndex_ = joinExtension(iter, kse1, kse2, traceIndex_,
+							score0);
+
+				if (traceIndex_ == -1) {
+					nTrace--;
+					loggedTrace = Math.min(loggedTrace, nTrace);
+					isTraceUp = false;
+				} else {
+					pushExtension(kse1, kse2, traceIndex_);
+					isTraceUp = true;
+					updateBestTraces(iter, mirrored);
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Probe the extensions of the current trace with a gap from (kse1, kse2)
+		 * and return the best one.
+		 *
+		 * @return the extension index it of the best extension, -1 if there is
+		 *         none, or {@link #TRUNCATED} if the budget was exhausted
+		 */
+		private int probeExtensions(int kse1, int kse2, boolean mirrored) {
+
+			int nBestExtTrace = nTrace;
+			double bestExtScore = 100.0;
+			int traceIndex_ = -1;
+			double maxScore1 = Math.min(rmsdThrJoin, userRMSDMax);
+
+			// past the last window there are no extensions and kse1 or kse2 can
+			// be out of the matrix
+			if (kse1 > nse1 - winSize - 1 || kse2 > nse2 - winSize - 1)
+				return traceIndex_;
+
+			// extension of the alignment path
+			// condition 4, 5
+			// the candidates in row kse1 are the gaps in ca2 and the ones in
+			// column kse2 the gaps in ca1. Merge them in the order of the
+			// extension index it.
+			int rowPos = 0, rowEnd = 0, colPos = 0, colEnd = 0;
+			if (afpIndex != null) {
+				rowPos = afpIndex.rowFrom(kse1, kse2);
+				rowEnd = afpIndex.rowEnd(kse1);
+				colPos = afpIndex.colFrom(kse2, kse1 + 1);
+				colEnd = afpIndex.colEnd(kse2);
+			}
+
+			int it = -1;
+			while (true) {
+
+				if (afpIndex == null) {
+					it = scanExtension(kse1, kse2, it);
+				} else {
+					int itRow = rowPos < rowEnd ? 2 * (afpIndex.col(rowPos) - kse2)
+							: Integer.MAX_VALUE;
+					int itCol = colPos < colEnd ? 2 * (afpIndex.row(colPos) - kse1) - 1
+							: Integer.MAX_VALUE;
+					if (itRow < itCol) {
+						it = itRow;
+						rowPos++;
+					} else {
+						it = itCol;
+						colPos++;
+					}
+				}
+				if (it >= iterDepth)
+					break;
+
+				int mse1 = extension1(kse1, it);
+				int mse2 = extension2(kse2, it);
+
+				if (mse1 > nse1 - winSize - 1)
+					continue;
+				if (mse2 > nse2 - winSize - 1)
+					continue;
+
+				nTraces += mirrored ? 2 : 1;
+				if (nTraces > tracesLimit) {
+					truncate();
+					return TRUNCATED;
+				}
+
+				double score1 = getDistanceScore(mse1, mse2, winSize,
+						Math.min(maxScore1, Math.nextDown(bestExtScore)));
+
+				if (score1 > rmsdThrJoin)
+					continue;
+				if (score1 > userRMSDMax)
+					continue;
+				// only a better score than the best extension can be chosen
+				if (score1 >= bestExtScore)
+					continue;
+
+				if (!checkAngle(mse1, mse2, winSize))
+					continue;
+
+				// the score was just checked against rmsdThrJoin
+				double score2 = score1;
+
+				if (nTrace > nBestExtTrace
+						|| (nTrace == nBestExtTrace && score2 < bestExtScore)) {
+					bestExtScore = score2;
+					nBestExtTrace = nTrace;
+					traceIndex_ = it;
+					traceScore[nTrace - 1][0] = score1;
+				}
+			}
+			return traceIndex_;
+		}
+
+		/**
+		 * Score the current trace joined with its best extension.
+		 *
+		 * @return the extension index, or -1 if the joined trace is rejected
+		 */
+		private int joinExtension(int iter, int kse1, int kse2, int traceIndex_,
+				double score0) {
+
+			int jse1 = extension1(kse1, traceIndex_);
+			int jse2 = extension2(kse2, traceIndex_);
+
+			if (iter == 0) {
+
+				double score1 = (traceScore[nTrace - 1][0]
+						* winSizeComb2 * nTrace + getMat(jse1, jse2)
+						* winSizeComb1)
+						/ (winSizeComb2 * nTrace + winSizeComb1);
+
+				double score2 = getScore2(jse1, jse2, traceScore, 0, traceSlots,
+						winSizeComb1, winSizeComb2, score0, score1);
+
+				if (score2 > rmsdThrJoin)
+					return -1;
+				if (score2 > userRMSDMax)
+					return -1;
+
+				traceScore[nTrace - 1][0] = score2;
+				traceTotalScore = score2;
+
+			} else {
+				if (traceScoreMax > rmsdThrJoin && nBestTrace >= nBestTrace0)
+					traceIndex_ = -1;
+				traceTotalScore = traceScoreMax;
+			}
+			return traceIndex_;
+		}
+
+		/**
+		 * Add the extension with index traceIndex_ to the current trace.
+		 */
+		private void pushExtension(int kse1, int kse2, int traceIndex_) {
+			traceIterLevel[nTrace - 1]++;
+			trace1[nTrace] = extension1(kse1, traceIndex_);
+			trace2[nTrace] = extension2(kse2, traceIndex_);
+			traceIterLevel[nTrace] = 0;
+			nTrace++;
+		}
+
+		/**
+		 * Record the current trace as the best trace if it is longer or has a
+		 * better score, and offer it to the candidate traces in the first
+		 * iteration.
+		 */
+		private void updateBestTraces(int iter, boolean mirrored) {
+
+			if (nTrace > nBestTrace
+					|| (nTrace == nBestTrace && bestTraceScore > traceTotalScore)) {
+
+				for (int itrace = 0; itrace < nTrace; itrace++) {
+					bestTrace1[itrace] = trace1[itrace];
+					bestTrace2[itrace] = trace2[itrace];
+				}
+				bestTraceScore = traceTotalScore;
+				nBestTrace = nTrace;
+			}
+
+			// a worker only logs the trace, which is offered to the candidate
+			// traces when the log is replayed
+			if (seedLog != null) {
+				seedLog.addTrace(trace1, trace2, loggedTrace, nTrace,
+						traceTotalScore, mirrored);
+				loggedTrace = nTrace;
+				return;
+			}
+
+			if (iter == 0) {
+				newBestTrace = doIter0(newBestTrace, traceTotalScore,
+						bestTracesMax);
+
+				if (mirrored) {
+					// record the mirrored trace with the same score
+					int[] swap = trace1;
+					trace1 = trace2;
+					trace2 = swap;
+					newBestTrace = doIter0(newBestTrace, traceTotalScore,
+							bestTracesMax);
+					trace2 = trace1;
+					trace1 = swap;
+				}
+			}
+		}
+
+		/**
+		 * Replay the traces of a seed log as in the first iteration of the
+		 * sequential search: the seeds that the sequential search skips, since
+		 * their traces can not reach the length of the best trace, are skipped,
+		 * and the other traces update the best trace and the candidate traces.
+		 * The traces of a seed do not depend on the traces of the previous
+		 * seeds, so the result is the same as the sequential search.
+		 */
+		private void replay(SeedLog log) {
+			boolean skip = false;
+			int t = 0;
+			for (int i = 0; i < log.size;) {
+				if (log.entries[i] == SeedLog.SEED) {
+					int ise1 = log.entries[i + 1];
+					int ise2 = log.entries[i + 2];
+					skip = ise1 > nse1 - winSize * (nBestTrace - 1)
+							|| ise2 > nse2 - winSize * (nBestTrace - 1);
+					i += 3;
+					continue;
+				}
+				int kept = log.entries[i];
+				nTrace = kept + log.entries[i + 1];
+				boolean mirrored = log.entries[i + 2] != 0;
+				i += 3;
+				for (int k = kept; k < nTrace; k++, i += 2) {
+					trace1[k] = log.entries[i];
+					trace2[k] = log.entries[i + 1];
+				}
+				traceTotalScore = log.scores[t++];
+				if (!skip)
+					updateBestTraces(0, mirrored);
+			}
+			nTrace = 0;
+		}
+	}
+
+	/**
+	 * Position in ca1 of the extension with index it from kse1. Odd indices
+	 * are gaps in ca1.
+	 */
+	private static int extension1(int kse1, int it) {
+		return (it + 1) % 2 == 0 ? kse1 + (it + 1) / 2 : kse1;
+	}
+
+	/**
+	 * Position in ca2 of the extension with index it from kse2. Even indices
+	 * are gaps in ca2.
+	 */
+	private static int extension2(int kse2, int it) {
+		return (it + 1) % 2 == 0 ? kse2 : kse2 + (it + 1) / 2;
+	}
+
+	/**
+	 * Trace the seeds of the first iteration in parallel, in blocks of
+	 * {@link #SEED_BLOCK_ROWS} rows, and replay the seed logs of the blocks
+	 * in seed order. Blocks after the one that exhausts the budget are not
+	 * replayed.
+	 *
+	 * @return false if the budget was exhausted
+	 */
+	private boolean traceSeedsParallel(AFPChain afpChain, Atom[] ca1,
+			Atom[] ca2, TraceSearch search) {
+
+		long tracesLimit = search.tracesLimit;
+		int nse1 = ca1.length;
+		int nBlocks = (nse1 + SEED_BLOCK_ROWS - 1) / SEED_BLOCK_ROWS;
+		AtomicLongArray blockTraces = new AtomicLongArray(nBlocks);
+		for (int b = 0; b < nBlocks; b++)
+			blockTraces.set(b, -1);
+
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		ThreadLocal<CESymmCalculator> workers = ThreadLocal
+				.withInitial(this::newWorker);
+		List<Future<SeedBlock>> futures = new ArrayList<Future<SeedBlock>>();
+		for (int b = 0; b < nBlocks; b++) {
+			int block = b;
+			futures.add(pool.submit(() -> traceSeedBlock(workers.get(),
+					afpChain, ca1, ca2, block, blockTraces, tracesLimit)));
+		}
+
+		nTraces = 0;
 		try {
-			// length of next window
-			// TODO Doesn't the -1 skip the last residue? -Spencer 2018-12-27
-			int max1 = Math.min(ca1.length - mse1 - 1, winSize);
-			int max2 = Math.min(ca2.length - mse2 - 1, winSize);
-			int maxAtoms = Math.min(max1, max2);
-
-			// Extract fragments
- 			Point3d[] cod1 = new Point3d[maxAtoms];
-			Point3d[] cod2 = new Point3d[maxAtoms];
-			for(int i=0;i<maxAtoms;i++) {
-				cod1[i] = ca1[mse1+i];
-				cod2[i] = ca2[mse2+i];
+			for (int b = 0; b < nBlocks; b++) {
+				SeedBlock block = futures.get(b).get();
+				futures.set(b, null);
+				if (block == null) {
+					exhaustive = false;
+					break;
+				}
+				if (!block.exhaustive)
+					exhaustive = false;
+				search.replay(block.log);
+				nTraces += block.traces;
+				if (nTraces > tracesLimit) {
+					exhaustive = false;
+					break;
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted seed search", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw new IllegalStateException(e.getCause());
+		} finally {
+			pool.shutdownNow();
+		}
+
+
+		if (!exhaustive)
+			truncate();
+		return exhaustive;
+	}
+
+	/**
+	 * Trace one block of seed rows with the worker copy of this calculator
+	 * of the current thread.
+	 *
+	 * @return the block result, or null if the budget was exhausted before
+	 */
+	private SeedBlock traceSeedBlock(CESymmCalculator worker,
+			AFPChain afpChain, Atom[] ca1, Atom[] ca2, int block,
+			AtomicLongArray blockTraces, long tracesLimit) {
+
+		// skip the block if the finished blocks before it reach the limit
+		long before = 0;
+		for (int b = 0; b < block; b++)
+			before += Math.max(blockTraces.get(b), 0);
+		if (before > tracesLimit || System.nanoTime() > deadline)
+			return null;
+
+		worker.seedRowStart = block * SEED_BLOCK_ROWS;
+		worker.seedRowEnd = Math.min(worker.seedRowStart + SEED_BLOCK_ROWS,
+				ca1.length);
+		worker.seedLog = new SeedLog();
+		worker.traceFragmentMatrix(afpChain, ca1, ca2);
+
+		blockTraces.set(block, worker.nTraces);
+		return new SeedBlock(worker);
+	}
+
+	/**
+	 * Copy of this calculator that shares its matrices, fragment frames and
+	 * candidate AFPs, to trace blocks of seed rows.
+	 */
+	private CESymmCalculator newWorker() {
+		CESymmCalculator worker = new CESymmCalculator(params);
+		worker.triangular = triangular;
+		worker.maxTraces = maxTraces;
+		worker.deadline = deadline;
+		worker.mat = mat;
+		worker.dist1 = dist1;
+		worker.dist2 = dist2;
+		worker.packedMat = packedMat;
+		worker.packedDist1 = packedDist1;
+		worker.packedDist2 = packedDist2;
+		worker.coords1 = coords1;
+		worker.coords2 = coords2;
+		worker.frames1 = frames1;
+		worker.frames2 = frames2;
+		worker.local1 = local1;
+		worker.local2 = local2;
+		worker.afpIndex = afpIndex;
+		worker.candidateMax = candidateMax;
+		worker.bands = bands;
+		return worker;
+	}
+
+	/**
+	 * Traces of the seeds of a block, in the order they are offered to the
+	 * best trace. Each trace is logged as the length of the prefix it keeps
+	 * from the previous trace of the seed, followed by its new AFPs, since
+	 * consecutive traces of the depth-first search share most of their AFPs.
+	 */
+	private static class SeedLog {
+
+		/** Entry of a new seed, followed by its positions */
+		static final int SEED = -1;
+
+		int[] entries = new int[256];
+		int size = 0;
+		double[] scores = new double[64];
+		int nScores = 0;
+
+		void addSeed(int ise1, int ise2) {
+			ensure(3);
+			entries[size++] = SEED;
+			entries[size++] = ise1;
+			entries[size++] = ise2;
+		}
+
+		void addTrace(int[] trace1, int[] trace2, int kept, int n,
+				double score, boolean mirrored) {
+			ensure(3 + 2 * (n - kept));
+			entries[size++] = kept;
+			entries[size++] = n - kept;
+			entries[size++] = mirrored ? 1 : 0;
+			for (int k = kept; k < n; k++) {
+				entries[size++] = trace1[k];
+				entries[size++] = trace2[k];
 			}
+			if (nScores == scores.length)
+				scores = Arrays.copyOf(scores, 2 * nScores);
+			scores[nScores++] = score;
+		}
+
+		private void ensure(int n) {
+			if (size + n > entries.length)
+				entries = Arrays.copyOf(entries,
+						Math.max(2 * entries.length, size + n));
+		}
+	}
 
-			Matrix4d transform = SuperPositions.superpose(cod1, cod2);
+	/**
+	 * Number of traces and seed log of a block of seeds.
+	 */
+	private static class SeedBlock {
 
-			double ang = RotationAxis.getAngle(transform);
+		final long traces;
+		final boolean exhaustive;
+		final SeedLog log;
 
-			return ang;
+		SeedBlock(CESymmCalculator worker) {
+			traces = worker.nTraces;
+			exhaustive = worker.exhaustive;
+			log = worker.seedLog;
+		}
+	}
 
-		} catch (Exception e) {
-			e.printStackTrace();
-			return 0d;
+	/**
+	 * Check that the rotation angle of the superposition of the AFPs at
+	 * positions mse1, mse2 is at least {@link #MIN_ANGLE}. Works on flat
+	 * coordinate arrays and does not allocate, since it runs in the innermost
+	 * extension loop.
+	 * <p>
+	 * Most comparisons are decided from the precomputed fragment frames with
+	 * the error bound of
+	 * {@link FragmentRotation#compareAngle(double[], double[], int, double[], double[], int, int, double)},
+	 * so the outcome is the same as with the exact angle. Otherwise, or when
+	 * a frame is ill-defined, the exact superposition angle is computed.
+	 *
+	 * @param mse1
+	 * @param mse2
+	 * @param winSize
+	 * @return true if the rotation angle is at least the minimum angle
+	 */
+	private boolean checkAngle(int mse1, int mse2, int winSize) {
+		// length of next window
+		// TODO Doesn't the -1 skip the last residue? -Spencer 2018-12-27
+		int max1 = Math.min(coords1.length / 3 - mse1 - 1, winSize);
+		int max2 = Math.min(coords2.length / 3 - mse2 - 1, winSize);
+		int maxAtoms = Math.min(max1, max2);
+
+		if (maxAtoms == winSize && 9 * mse1 < frames1.length
+				&& 9 * mse2 < frames2.length) {
+			int cmp = FragmentRotation.compareAngle(frames1, local1, mse1,
+					frames2, local2, mse2, winSize, COS_MIN_ANGLE);
+			if (cmp != 0)
+				return cmp > 0;
 		}
+
+		double angle = FragmentRotation.getAngle(coords1, mse1, coords2, mse2,
+				maxAtoms);
+		return angle >= MIN_ANGLE_RAD;
 	}
 
 }
@@ -1,5 +1,7 @@
 package org.biojava.nbio.structure.align.symm;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -77,6 +79,25 @@ public class ChainSorter {
 		return cyclicSort(chainAtoms);
 	}
 
+	/**
+	 * Application: Cyclic Symmetry (Cn).
+	 * <p>
+	 * Sort the chains of a biological assembly file, reading only its
+	 * representative atoms with the {@link RepresentativeAtomReader}. The
+	 * copies of the assembly files are usually stored as separate models, so
+	 * all the models of the file are read.
+	 * 
+	 * @param file
+	 *            mmCIF or PDB file of the assembly, optionally gzipped
+	 * @return Atom[] with the sorted order of Atoms, corresponding to the
+	 *         ordering of the chains.
+	 * @throws IOException
+	 * @see #cyclicSort(Structure)
+	 */
+	public static Atom[] cyclicSort(File file) throws IOException {
+		return cyclicSort(RepresentativeAtomReader.read(file, true));
+	}
+
 	/**
 	 * Application: Cyclic Symmetry (Cn).
 	 * <p>
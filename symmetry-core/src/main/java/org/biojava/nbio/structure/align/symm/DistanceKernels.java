@@ -0,0 +1,139 @@
+package org.biojava.nbio.structure.align.symm;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Numeric kernels that build the distance and similarity matrices of the
+ * {@link CESymmCalculator} in the compact mode.
+ * <p>
+ * The kernels work on contiguous arrays, like the diagonals of a
+ * {@link PackedMatrix}. The default implementation uses the Vector API
+ * (jdk.incubator.vector) when it is available, that is when the library was
+ * built on JDK 17 or later and the JVM runs with
+ * <code>--add-modules jdk.incubator.vector</code>. Otherwise it falls back to
+ * the scalar kernels. Both implementations do the same floating point
+ * operations in the same order for every element, so their results are
+ * identical. The distances are stored in single precision, but the
+ * differences between them are summed in double precision, as in the
+ * superclass.
+ * <p>
+ * The kernels only build the matrices. The distance scores of the trace
+ * extensions stay scalar: each fragment of a trace adds one term per residue
+ * of the window, read along an anti-diagonal of the distance matrices, which
+ * is not contiguous in either matrix layout. These sums are also abandoned
+ * as soon as they exceed the threshold, and they must run in the order of
+ * the superclass to give the same scores.
+ */
+public abstract class DistanceKernels {
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(DistanceKernels.class);
+
+	private static final String VECTOR_KERNELS = "org.biojava.nbio.structure.align.symm.VectorDistanceKernels";
+
+	private static final DistanceKernels SCALAR = new ScalarDistanceKernels();
+	private static final DistanceKernels VECTOR = loadVectorKernels();
+
+	/**
+	 * @return the Vector API kernels if they are available, the scalar
+	 *         kernels otherwise
+	 */
+	public static DistanceKernels getInstance() {
+		return VECTOR != null ? VECTOR : SCALAR;
+	}
+
+	/**
+	 * @return the scalar kernels
+	 */
+	public static DistanceKernels getScalar() {
+		return SCALAR;
+	}
+
+	/**
+	 * @return the Vector API kernels, or null if they are not available
+	 */
+	public static DistanceKernels getVector() {
+		return VECTOR;
+	}
+
+	private static DistanceKernels loadVectorKernels() {
+		try {
+			return (DistanceKernels) Class.forName(VECTOR_KERNELS)
+					.getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException | LinkageError e) {
+			// not built on JDK 17, or the module was not added to the JVM
+			logger.debug("Vector API kernels not available, using the scalar kernels: "
+					+ e);
+			return null;
+		}
+	}
+
+	/**
+	 * Distances between the points from1+i and from2+i of a set of
+	 * coordinates, for i in [0,len).
+	 *
+	 * @param x
+	 *            x coordinates of the points
+	 * @param y
+	 *            y coordinates of the points
+	 * @param z
+	 *            z coordinates of the points
+	 * @param from1
+	 *            first point of the first range
+	 * @param from2
+	 *            first point of the second range
+	 * @param len
+	 *            number of distances
+	 * @param out
+	 *            array where the distances are stored, from outFrom
+	 * @param outFrom
+	 *            position of the first distance in out
+	 */
+	public abstract void distances(double[] x, double[] y, double[] z,
+			int from1, int from2, int len, float[] out, int outFrom);
+
+	/**
+	 * Add the absolute differences between a value and a range of values, in
+	 * double precision: sum[i] += |a - b[bFrom+i]|, for i in [0,len).
+	 *
+	 * @param a
+	 *            the value
+	 * @param b
+	 *            the values
+	 * @param bFrom
+	 *            first position of the range in b
+	 * @param sum
+	 *            the sums, from position 0
+	 * @param len
+	 *            number of values
+	 */
+	public abstract void addAbsDifferences(float a, float[] b, int bFrom,
+			double[] sum, int len);
+
+	/**
+	 * Implementation of the kernels with plain loops.
+	 */
+	private static class ScalarDistanceKernels extends DistanceKernels {
+
+		@Override
+		public void distances(double[] x, double[] y, double[] z, int from1,
+				int from2, int len, float[] out, int outFrom) {
+			for (int i = 0; i < len; i++) {
+				double dx = x[from1 + i] - x[from2 + i];
+				double dy = y[from1 + i] - y[from2 + i];
+				double dz = z[from1 + i] - z[from2 + i];
+				out[outFrom + i] = (float) Math.sqrt(dx * dx + dy * dy + dz
+						* dz);
+			}
+		}
+
+		@Override
+		public void addAbsDifferences(float a, float[] b, int bFrom,
+				double[] sum, int len) {
+			double da = a;
+			for (int i = 0; i < len; i++)
+				sum[i] += Math.abs(da - b[bFrom + i]);
+		}
+	}
+}
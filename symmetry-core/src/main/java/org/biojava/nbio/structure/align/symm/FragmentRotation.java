@@ -0,0 +1,491 @@
+package org.biojava.nbio.structure.align.symm;
+
+import java.util.Arrays;
+
+import org.biojava.nbio.structure.Atom;
+
+/**
+ * Allocation-free calculation of the rotation angle of the optimal
+ * superposition between two fragments of equal length.
+ * <p>
+ * The coordinates are stored as flat arrays of x,y,z triplets. The angle is
+ * obtained from the scalar component of the optimal quaternion, computed with
+ * the Quaternion Characteristic Polynomial (QCP) method of Theobald (2005),
+ * without building the rotation matrix.
+ * <p>
+ * For repeated threshold tests, an orientation frame and the coordinates in
+ * that frame can be precomputed for every fragment with
+ * {@link #getFrames(double[], int, double)} and
+ * {@link #getLocalCoordinates(double[], int, double[])}.
+ * {@link #compareAngle(double[], double[], int, double[], double[], int, int, double)}
+ * then decides many comparisons of the superposition angle against a
+ * threshold without the superposition, with a proven error bound, and callers
+ * compute the exact angle only for the undecided ones.
+ */
+public class FragmentRotation {
+
+	private static final double EVAL_PREC = 1e-11;
+	private static final double EVEC_PREC = 1e-6;
+
+	/**
+	 * Slack on the cosines of {@link #compareAngle}, larger than the rounding
+	 * errors of the bound and the precision of the exact angle
+	 */
+	private static final double COS_SLACK = 1e-6;
+
+	/** Prevent instantiation */
+	private FragmentRotation() {
+	}
+
+	/**
+	 * Convert an Atom array into a flat array of x,y,z coordinates.
+	 *
+	 * @param atoms
+	 * @return coordinate array of length 3*atoms.length
+	 */
+	public static double[] toCoordinates(Atom[] atoms) {
+		double[] coords = new double[3 * atoms.length];
+		for (int i = 0; i < atoms.length; i++) {
+			coords[3 * i] = atoms[i].getX();
+			coords[3 * i + 1] = atoms[i].getY();
+			coords[3 * i + 2] = atoms[i].getZ();
+		}
+		return coords;
+	}
+
+	/**
+	 * Compute an orthonormal orientation frame for every fragment of length
+	 * len. The first axis goes from the first to the last residue of the
+	 * fragment, the second points from the centroid towards the middle
+	 * residue, and the third is their cross product.
+	 *
+	 * @param coords
+	 *            flat x,y,z coordinates
+	 * @param len
+	 *            number of residues in the fragments
+	 * @param minNorm
+	 *            minimum length, in A, of the vectors defining the first two
+	 *            axes. Fragments with shorter vectors have an ill-defined
+	 *            frame and get NaN.
+	 * @return 9 values (three unit axes) per fragment start, for all the
+	 *         starts with a complete fragment
+	 */
+	public static double[] getFrames(double[] coords, int len, double minNorm) {
+		int n = coords.length / 3 - len + 1;
+		if (n < 1 || len < 3)
+			return new double[0];
+		double[] frames = new double[9 * n];
+		int mid = len / 2;
+
+		for (int f = 0; f < n; f++) {
+			int o = 3 * f;
+			double cx = 0, cy = 0, cz = 0;
+			for (int i = 0; i < 3 * len; i += 3) {
+				cx += coords[o + i];
+				cy += coords[o + i + 1];
+				cz += coords[o + i + 2];
+			}
+			cx /= len;
+			cy /= len;
+			cz /= len;
+
+			int last = o + 3 * (len - 1);
+			double ax = coords[last] - coords[o];
+			double ay = coords[last + 1] - coords[o + 1];
+			double az = coords[last + 2] - coords[o + 2];
+			double norm = Math.sqrt(ax * ax + ay * ay + az * az);
+			int k = 9 * f;
+			if (norm < minNorm) {
+				Arrays.fill(frames, k, k + 9, Double.NaN);
+				continue;
+			}
+			ax /= norm;
+			ay /= norm;
+			az /= norm;
+
+			int m = o + 3 * mid;
+			double bx = coords[m] - cx;
+			double by = coords[m + 1] - cy;
+			double bz = coords[m + 2] - cz;
+			double dot = bx * ax + by * ay + bz * az;
+			bx -= dot * ax;
+			by -= dot * ay;
+			bz -= dot * az;
+			norm = Math.sqrt(bx * bx + by * by + bz * bz);
+			if (norm < minNorm) {
+				Arrays.fill(frames, k, k + 9, Double.NaN);
+				continue;
+			}
+			bx /= norm;
+			by /= norm;
+			bz /= norm;
+
+			frames[k] = ax;
+			frames[k + 1] = ay;
+			frames[k + 2] = az;
+			frames[k + 3] = bx;
+			frames[k + 4] = by;
+			frames[k + 5] = bz;
+			frames[k + 6] = ay * bz - az * by;
+			frames[k + 7] = az * bx - ax * bz;
+			frames[k + 8] = ax * by - ay * bx;
+		}
+		return frames;
+	}
+
+	/**
+	 * Express every fragment in its own frame: the centered coordinates of the
+	 * fragment rotated into the frame axes, followed by the smallest moment of
+	 * inertia of the fragment about an axis through its centroid.
+	 *
+	 * @param coords
+	 *            flat x,y,z coordinates
+	 * @param len
+	 *            number of residues in the fragments
+	 * @param frames
+	 *            frames from {@link #getFrames(double[], int, double)}
+	 * @return 3*len+1 values per fragment start, NaN for ill-defined frames
+	 */
+	public static double[] getLocalCoordinates(double[] coords, int len,
+			double[] frames) {
+		int n = frames.length / 9;
+		int stride = 3 * len + 1;
+		double[] local = new double[stride * n];
+
+		for (int f = 0; f < n; f++) {
+			int o = 3 * f;
+			int k = 9 * f;
+			int l = stride * f;
+			double cx = 0, cy = 0, cz = 0;
+			for (int i = 0; i < 3 * len; i += 3) {
+				cx += coords[o + i];
+				cy += coords[o + i + 1];
+				cz += coords[o + i + 2];
+			}
+			cx /= len;
+			cy /= len;
+			cz /= len;
+
+			double sxx = 0, sxy = 0, sxz = 0, syy = 0, syz = 0, szz = 0;
+			for (int i = 0; i < 3 * len; i += 3) {
+				double x = coords[o + i] - cx;
+				double y = coords[o + i + 1] - cy;
+				double z = coords[o + i + 2] - cz;
+				for (int a = 0; a < 3; a++) {
+					local[l + i + a] = frames[k + 3 * a] * x
+							+ frames[k + 3 * a + 1] * y
+							+ frames[k + 3 * a + 2] * z;
+				}
+				sxx += x * x;
+				sxy += x * y;
+				sxz += x * z;
+				syy += y * y;
+				syz += y * z;
+				szz += z * z;
+			}
+			// the moment about an axis u is trace(S) - u'Su, smallest for
+			// the eigenvector of the largest eigenvalue of S
+			local[l + 3 * len] = sxx + syy + szz
+					- getLargestEigenvalue(sxx, sxy, sxz, syy, syz, szz);
+		}
+		return local;
+	}
+
+	/**
+	 * Largest eigenvalue of a symmetric 3x3 matrix, in closed form.
+	 */
+	static double getLargestEigenvalue(double sxx, double sxy, double sxz,
+			double syy, double syz, double szz) {
+		double q = (sxx + syy + szz) / 3.0;
+		double p2 = (sxx - q) * (sxx - q) + (syy - q) * (syy - q) + (szz - q)
+				* (szz - q) + 2.0 * (sxy * sxy + sxz * sxz + syz * syz);
+		double p = Math.sqrt(p2 / 6.0);
+		if (p == 0)
+			return q;
+		double bxx = (sxx - q) / p, byy = (syy - q) / p, bzz = (szz - q) / p;
+		double bxy = sxy / p, bxz = sxz / p, byz = syz / p;
+		double det = bxx * (byy * bzz - byz * byz) - bxy
+				* (bxy * bzz - byz * bxz) + bxz * (bxy * byz - byy * bxz);
+		double r = Math.max(-1.0, Math.min(1.0, det / 2.0));
+		return q + 2.0 * p * Math.cos(Math.acos(r) / 3.0);
+	}
+
+	/**
+	 * Compare the rotation angle of the optimal superposition of two fragments
+	 * against a threshold, from their precomputed frames only.
+	 * <p>
+	 * Let R' be the relative rotation of the two frames, at angle t', and e
+	 * the residual of superposing the fragments with R'. The optimal rotation
+	 * R has a residual of at most e, so the first fragment rotated by R and by
+	 * R' differs by at most 2e. This bounds the angle p between R and R' by
+	 * 2(1-cos p)m &lt;= 4e<sup>2</sup>, where m is the smallest moment of
+	 * inertia of the first fragment. Since the rotation angle is a distance to
+	 * the identity in SO(3), the superposition angle is within p of t'.
+	 *
+	 * @param frames1
+	 *            frames of the first structure
+	 * @param local1
+	 *            local coordinates of the first structure
+	 * @param f1
+	 *            first residue of the first fragment
+	 * @param frames2
+	 *            frames of the second structure
+	 * @param local2
+	 *            local coordinates of the second structure
+	 * @param f2
+	 *            first residue of the second fragment
+	 * @param len
+	 *            number of residues in the fragments
+	 * @param cosAngle
+	 *            cosine of the threshold angle
+	 * @return -1 if the superposition angle is below the threshold, 1 if it
+	 *         is above it, or 0 if it can not be decided from the frames
+	 */
+	public static int compareAngle(double[] frames1, double[] local1, int f1,
+			double[] frames2, double[] local2, int f2, int len,
+			double cosAngle) {
+
+		int k1 = 9 * f1;
+		int k2 = 9 * f2;
+		// trace of the relative rotation of the frames
+		double trace = 0;
+		for (int i = 0; i < 9; i++)
+			trace += frames1[k1 + i] * frames2[k2 + i];
+		double cosF = Math.max(-1.0, Math.min(1.0, (trace - 1.0) / 2.0));
+
+		int stride = 3 * len + 1;
+		int l1 = stride * f1;
+		int l2 = stride * f2;
+		double e2 = 0;
+		for (int i = 0; i < 3 * len; i++) {
+			double d = local1[l1 + i] - local2[l2 + i];
+			e2 += d * d;
+		}
+		double cosP = 1.0 - 2.0 * e2 / local1[l1 + 3 * len];
+
+		// NaN for ill-defined frames fails the comparisons
+		if (!(cosP > -1.0) || !(cosF >= -1.0))
+			return 0;
+		double sinF = Math.sqrt(1.0 - cosF * cosF);
+		double sinP = Math.sqrt(1.0 - cosP * cosP);
+
+		// t' - p >= threshold
+		if (cosF <= cosP && cosF * cosP + sinF * sinP <= cosAngle - COS_SLACK)
+			return 1;
+		// t' + p < threshold, with t' + p < pi
+		if (cosF + cosP > 0
+				&& cosF * cosP - sinF * sinP > cosAngle + COS_SLACK)
+			return -1;
+		return 0;
+	}
+
+	/**
+	 * Rotation angle of the optimal superposition of the fragment of length
+	 * len starting at residue start1 of coords1 onto the fragment starting at
+	 * residue start2 of coords2.
+	 *
+	 * @param coords1
+	 *            flat x,y,z coordinates of the first structure
+	 * @param start1
+	 *            first residue of the first fragment
+	 * @param coords2
+	 *            flat x,y,z coordinates of the second structure
+	 * @param start2
+	 *            first residue of the second fragment
+	 * @param len
+	 *            number of residues in the fragments
+	 * @return rotation angle in radians, in [0,pi]. 0 for degenerate inputs.
+	 */
+	public static double getAngle(double[] coords1, int start1,
+			double[] coords2, int start2, int len) {
+
+		if (len < 1)
+			return 0;
+
+		int o1 = 3 * start1;
+		int o2 = 3 * start2;
+
+		// Centroids
+		double c1x = 0, c1y = 0, c1z = 0, c2x = 0, c2y = 0, c2z = 0;
+		for (int i = 0; i < 3 * len; i += 3) {
+			c1x += coords1[o1 + i];
+			c1y += coords1[o1 + i + 1];
+			c1z += coords1[o1 + i + 2];
+			c2x += coords2[o2 + i];
+			c2y += coords2[o2 + i + 1];
+			c2z += coords2[o2 + i + 2];
+		}
+		c1x /= len;
+		c1y /= len;
+		c1z /= len;
+		c2x /= len;
+		c2y /= len;
+		c2z /= len;
+
+		// Inner product matrix of the centered coordinates
+		double g1 = 0, g2 = 0;
+		double sxx = 0, sxy = 0, sxz = 0, syx = 0, syy = 0, syz = 0, szx = 0, szy = 0, szz = 0;
+		for (int i = 0; i < 3 * len; i += 3) {
+			double x1 = coords1[o1 + i] - c1x;
+			double y1 = coords1[o1 + i + 1] - c1y;
+			double z1 = coords1[o1 + i + 2] - c1z;
+			double x2 = coords2[o2 + i] - c2x;
+			double y2 = coords2[o2 + i + 1] - c2y;
+			double z2 = coords2[o2 + i + 2] - c2z;
+
+			g1 += x1 * x1 + y1 * y1 + z1 * z1;
+			g2 += x2 * x2 + y2 * y2 + z2 * z2;
+
+			sxx += x1 * x2;
+			sxy += x1 * y2;
+			sxz += x1 * z2;
+			syx += y1 * x2;
+			syy += y1 * y2;
+			syz += y1 * z2;
+			szx += z1 * x2;
+			szy += z1 * y2;
+			szz += z1 * z2;
+		}
+
+		return getAngle(sxx, sxy, sxz, syx, syy, syz, szx, szy, szz,
+				(g1 + g2) / 2.0);
+	}
+
+	/**
+	 * Rotation angle of the optimal superposition from the inner product
+	 * matrix of two centered coordinate sets.
+	 *
+	 * @param e0
+	 *            half of the sum of the squared norms of both sets, the
+	 *            starting value for the largest eigenvalue
+	 * @return rotation angle in radians, in [0,pi]. 0 for degenerate inputs.
+	 */
+	static double getAngle(double sxx, double sxy, double sxz, double syx,
+			double syy, double syz, double szx, double szy, double szz,
+			double e0) {
+
+		double sxx2 = sxx * sxx;
+		double syy2 = syy * syy;
+		double szz2 = szz * szz;
+		double sxy2 = sxy * sxy;
+		double syz2 = syz * syz;
+		double sxz2 = sxz * sxz;
+		double syx2 = syx * syx;
+		double szy2 = szy * szy;
+		double szx2 = szx * szx;
+
+		double syzSzymSyySzz2 = 2.0 * (syz * szy - syy * szz);
+		double sxx2Syy2Szz2Syz2Szy2 = syy2 + szz2 - sxx2 + syz2 + szy2;
+
+		double c2 = -2.0
+				* (sxx2 + syy2 + szz2 + sxy2 + syx2 + sxz2 + szx2 + syz2 + szy2);
+		double c1 = 8.0 * (sxx * syz * szy + syy * szx * sxz + szz * sxy
+				* syx - sxx * syy * szz - syz * szx * sxy - szy * syx * sxz);
+
+		double sxzpSzx = sxz + szx;
+		double syzpSzy = syz + szy;
+		double sxypSyx = sxy + syx;
+		double syzmSzy = syz - szy;
+		double sxzmSzx = sxz - szx;
+		double sxymSyx = sxy - syx;
+		double sxxpSyy = sxx + syy;
+		double sxxmSyy = sxx - syy;
+		double sxy2Sxz2Syx2Szx2 = sxy2 + sxz2 - syx2 - szx2;
+
+		double c0 = sxy2Sxz2Syx2Szx2
+				* sxy2Sxz2Syx2Szx2
+				+ (sxx2Syy2Szz2Syz2Szy2 + syzSzymSyySzz2)
+				* (sxx2Syy2Szz2Syz2Szy2 - syzSzymSyySzz2)
+				+ (-(sxzpSzx) * (syzmSzy) + (sxymSyx) * (sxxmSyy - szz))
+				* (-(sxzmSzx) * (syzpSzy) + (sxymSyx) * (sxxmSyy + szz))
+				+ (-(sxzpSzx) * (syzpSzy) - (sxypSyx) * (sxxpSyy - szz))
+				* (-(sxzmSzx) * (syzmSzy) - (sxypSyx) * (sxxpSyy + szz))
+				+ (+(sxypSyx) * (syzpSzy) + (sxzpSzx) * (sxxmSyy + szz))
+				* (-(sxymSyx) * (syzmSzy) + (sxzpSzx) * (sxxpSyy + szz))
+				+ (+(sxypSyx) * (syzmSzy) + (sxzmSzx) * (sxxmSyy - szz))
+				* (-(sxymSyx) * (syzpSzy) + (sxzmSzx) * (sxxpSyy - szz));
+
+		// Newton-Raphson for the largest eigenvalue
+		double eigenv = e0;
+		for (int i = 0; i < 50; i++) {
+			double old = eigenv;
+			double x2 = eigenv * eigenv;
+			double b = (x2 + c2) * eigenv;
+			double a = b + c1;
+			double delta = (a * eigenv + c0) / (2.0 * x2 * eigenv + b + a);
+			eigenv -= delta;
+			if (Math.abs(eigenv - old) < Math.abs(EVAL_PREC * eigenv))
+				break;
+		}
+
+		// Eigenvector (quaternion) from the adjoint of the key matrix
+		double a11 = sxxpSyy + szz - eigenv;
+		double a12 = syzmSzy;
+		double a13 = -sxzmSzx;
+		double a14 = sxymSyx;
+		double a21 = syzmSzy;
+		double a22 = sxxmSyy - szz - eigenv;
+		double a23 = sxypSyx;
+		double a24 = sxzpSzx;
+		double a31 = a13;
+		double a32 = a23;
+		double a33 = syy - sxx - szz - eigenv;
+		double a34 = syzpSzy;
+		double a41 = a14;
+		double a42 = a24;
+		double a43 = a34;
+		double a44 = szz - sxxpSyy - eigenv;
+		double a3344_4334 = a33 * a44 - a43 * a34;
+		double a3244_4234 = a32 * a44 - a42 * a34;
+		double a3243_4233 = a32 * a43 - a42 * a33;
+		double a3143_4133 = a31 * a43 - a41 * a33;
+		double a3144_4134 = a31 * a44 - a41 * a34;
+		double a3142_4132 = a31 * a42 - a41 * a32;
+
+		double q1 = a22 * a3344_4334 - a23 * a3244_4234 + a24 * a3243_4233;
+		double q2 = -a21 * a3344_4334 + a23 * a3144_4134 - a24 * a3143_4133;
+		double q3 = a21 * a3244_4234 - a22 * a3144_4134 + a24 * a3142_4132;
+		double q4 = -a21 * a3243_4233 + a22 * a3143_4133 - a23 * a3142_4132;
+		double qsqr = q1 * q1 + q2 * q2 + q3 * q3 + q4 * q4;
+
+		if (qsqr < EVEC_PREC) {
+			q1 = a12 * a3344_4334 - a13 * a3244_4234 + a14 * a3243_4233;
+			q2 = -a11 * a3344_4334 + a13 * a3144_4134 - a14 * a3143_4133;
+			q3 = a11 * a3244_4234 - a12 * a3144_4134 + a14 * a3142_4132;
+			q4 = -a11 * a3243_4233 + a12 * a3143_4133 - a13 * a3142_4132;
+			qsqr = q1 * q1 + q2 * q2 + q3 * q3 + q4 * q4;
+
+			if (qsqr < EVEC_PREC) {
+				double a1324_1423 = a13 * a24 - a14 * a23;
+				double a1224_1422 = a12 * a24 - a14 * a22;
+				double a1223_1322 = a12 * a23 - a13 * a22;
+				double a1124_1421 = a11 * a24 - a14 * a21;
+				double a1123_1321 = a11 * a23 - a13 * a21;
+				double a1122_1221 = a11 * a22 - a12 * a21;
+
+				q1 = a42 * a1324_1423 - a43 * a1224_1422 + a44 * a1223_1322;
+				q2 = -a41 * a1324_1423 + a43 * a1124_1421 - a44 * a1123_1321;
+				q3 = a41 * a1224_1422 - a42 * a1124_1421 + a44 * a1122_1221;
+				q4 = -a41 * a1223_1322 + a42 * a1123_1321 - a43 * a1122_1221;
+				qsqr = q1 * q1 + q2 * q2 + q3 * q3 + q4 * q4;
+
+				if (qsqr < EVEC_PREC) {
+					q1 = a32 * a1324_1423 - a33 * a1224_1422 + a34 * a1223_1322;
+					q2 = -a31 * a1324_1423 + a33 * a1124_1421 - a34 * a1123_1321;
+					q3 = a31 * a1224_1422 - a32 * a1124_1421 + a34 * a1122_1221;
+					q4 = -a31 * a1223_1322 + a32 * a1123_1321 - a33 * a1122_1221;
+					qsqr = q1 * q1 + q2 * q2 + q3 * q3 + q4 * q4;
+
+					if (qsqr < EVEC_PREC)
+						return 0; // identity rotation
+				}
+			}
+		}
+
+		// The angle only depends on the scalar part of the unit quaternion
+		double cos = Math.abs(q1) / Math.sqrt(qsqr);
+		if (cos > 1.0)
+			cos = 1.0;
+		return 2.0 * Math.acos(cos);
+	}
+}
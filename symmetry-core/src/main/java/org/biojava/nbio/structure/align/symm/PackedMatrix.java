@@ -0,0 +1,497 @@
+package org.biojava.nbio.structure.align.symm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compact matrix of single precision values stored in one flat array.
+ * <p>
+ * The cells are stored by diagonals: all the cells of a diagonal (constant
+ * j-i) are consecutive, so that the diagonal walks of the CE trace search
+ * read contiguous memory. A symmetric matrix stores only the diagonals with
+ * j-i &ge; 0, which halves its size.
+ * <p>
+ * Compared to a double[][] of the same dimensions, a full matrix takes half
+ * and a symmetric matrix a quarter of the memory, without the per-row object
+ * overhead.
+ * <p>
+ * A square block of a square matrix can be viewed as a matrix of its own,
+ * sharing the storage of the whole matrix.
+ * <p>
+ * The values can be stored off the Java heap, in direct buffers or in a
+ * memory-mapped temporary file (see {@link Storage}), so that very large
+ * matrices do not take heap space and are not scanned by the garbage
+ * collector. Users that convert the matrix to a double[][], like the final
+ * step of {@link CESymmCalculator}, still need the heap for that copy. The off-heap memory is freed, and the file unmapped and
+ * deleted, by {@link #close()}, instead of waiting for the garbage collector
+ * to reclaim the buffers.
+ */
+public class PackedMatrix implements AutoCloseable {
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(PackedMatrix.class);
+
+	/** Frees a direct or mapped buffer, or null if it is not accessible */
+	private static final MethodHandle CLEANER = findCleaner();
+
+	private final int rows;
+	private final int cols;
+	private final boolean symmetric;
+
+	/** Number of values of each off-heap buffer, 1 GB */
+	private static final int CHUNK_BITS = 28;
+	private static final int CHUNK_MASK = (1 << CHUNK_BITS) - 1;
+
+	/** Start of each diagonal in the values, indexed by j-i+rows-1 */
+	private final int[] offsets;
+	/** Values on the heap, or null if they are stored off-heap */
+	private final float[] values;
+	/** Off-heap values, in buffers of 2^CHUNK_BITS values */
+	private final FloatBuffer[] chunks;
+	/** Buffers under the chunks, or null in a view */
+	private final ByteBuffer[] buffers;
+	/** Temporary file of the mapped storage, or null */
+	private File file;
+
+	/**
+	 * Where the values of a matrix are stored.
+	 */
+	public enum Storage {
+		/** In a float[] on the Java heap */
+		HEAP,
+		/**
+		 * In direct buffers, outside of the heap. The total size is limited by
+		 * the JVM option -XX:MaxDirectMemorySize, which defaults to the
+		 * maximum heap size.
+		 */
+		DIRECT,
+		/**
+		 * In a temporary file mapped to memory, which the operating system
+		 * can page out to disk. The file is in the directory of the system
+		 * property java.io.tmpdir.
+		 */
+		MAPPED
+	}
+
+	/**
+	 * Create a full matrix, initialized to 0.
+	 *
+	 * @param rows
+	 * @param cols
+	 */
+	public PackedMatrix(int rows, int cols) {
+		this(rows, cols, false, Storage.HEAP);
+	}
+
+	/**
+	 * Create a full matrix, initialized to 0.
+	 *
+	 * @param rows
+	 * @param cols
+	 * @param storage
+	 *            where the values are stored
+	 */
+	public PackedMatrix(int rows, int cols, Storage storage) {
+		this(rows, cols, false, storage);
+	}
+
+	/**
+	 * Create a symmetric square matrix, initialized to 0.
+	 *
+	 * @param size
+	 *            number of rows and columns
+	 */
+	public PackedMatrix(int size) {
+		this(size, size, true, Storage.HEAP);
+	}
+
+	/**
+	 * Create a symmetric square matrix, initialized to 0.
+	 *
+	 * @param size
+	 *            number of rows and columns
+	 * @param storage
+	 *            where the values are stored
+	 */
+	public PackedMatrix(int size, Storage storage) {
+		this(size, size, true, storage);
+	}
+
+	/**
+	 * View of the square block [from, from+size) of a square matrix. The view
+	 * shares the values of the matrix, so that nothing is copied, and changes
+	 * to either are seen by both.
+	 *
+	 * @param matrix
+	 *            a square matrix
+	 * @param from
+	 *            first row and column of the block
+	 * @param size
+	 *            number of rows and columns of the block
+	 */
+	public PackedMatrix(PackedMatrix matrix, int from, int size) {
+		if (matrix.rows != matrix.cols || from < 0 || size < 0
+				|| from + size > matrix.rows)
+			throw new IllegalArgumentException("Block [" + from + ","
+					+ (from + size) + ") is not inside the " + matrix.rows
+					+ "x" + matrix.cols + " matrix");
+		this.rows = size;
+		this.cols = size;
+		this.symmetric = matrix.symmetric;
+		this.offsets = new int[2 * size];
+		this.values = matrix.values;
+		this.chunks = matrix.chunks;
+		this.buffers = null;
+		for (int k = symmetric ? 0 : 1 - size; k < size; k++)
+			offsets[k + size - 1] = matrix.diagonalFrom(k) + from;
+	}
+
+	private PackedMatrix(int rows, int cols, boolean symmetric,
+			Storage storage) {
+		this.rows = rows;
+		this.cols = cols;
+		this.symmetric = symmetric;
+		this.offsets = new int[rows + cols];
+
+		long size = 0;
+		for (int d = symmetric ? rows - 1 : 0; d < rows + cols - 1; d++) {
+			offsets[d] = (int) size;
+			int k = d - rows + 1; // j-i
+			size += Math.min(rows - Math.max(0, -k), cols - Math.max(0, k));
+			if (size > Integer.MAX_VALUE)
+				throw new IllegalArgumentException("Matrix of " + rows + "x"
+						+ cols + " is too large to be packed");
+		}
+		if (storage == Storage.HEAP) {
+			this.values = new float[(int) size];
+			this.chunks = null;
+			this.buffers = null;
+		} else {
+			this.values = null;
+			this.buffers = new ByteBuffer[(int) (size >>> CHUNK_BITS) + 1];
+			this.chunks = new FloatBuffer[buffers.length];
+			allocate((int) size, storage);
+		}
+	}
+
+	/**
+	 * Allocate the off-heap buffers for the given number of values,
+	 * initialized to 0.
+	 */
+	private void allocate(int size, Storage storage) {
+
+		if (storage == Storage.DIRECT) {
+			for (int c = 0; c < chunks.length; c++) {
+				int length = Math.min(size - (c << CHUNK_BITS), 1 << CHUNK_BITS);
+				buffers[c] = ByteBuffer.allocateDirect(4 * length).order(
+						ByteOrder.nativeOrder());
+				chunks[c] = buffers[c].asFloatBuffer();
+			}
+			return;
+		}
+
+		// the mappings stay valid after the channel is closed
+		try {
+			file = File.createTempFile("symmetry-matrix", ".tmp");
+			try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+					FileChannel channel = raf.getChannel()) {
+				for (int c = 0; c < chunks.length; c++) {
+					int length = Math.min(size - (c << CHUNK_BITS),
+							1 << CHUNK_BITS);
+					buffers[c] = channel.map(FileChannel.MapMode.READ_WRITE,
+							4L * (c << CHUNK_BITS), 4L * length).order(
+							ByteOrder.nativeOrder());
+					chunks[c] = buffers[c].asFloatBuffer();
+				}
+			} finally {
+				// a mapped file can not be deleted on every platform, it is
+				// deleted again when the matrix is closed
+				if (file.delete())
+					file = null;
+				else
+					file.deleteOnExit();
+			}
+		} catch (IOException e) {
+			close();
+			throw new UncheckedIOException(
+					"Could not map a temporary file for the matrix", e);
+		}
+	}
+
+	/**
+	 * Free the off-heap values of the matrix and unmap its temporary file.
+	 * The matrix, and the views of it, can not be used afterwards. Closing a
+	 * matrix on the heap, a view or a closed matrix does nothing: the values
+	 * of a view are freed when the whole matrix is closed.
+	 */
+	@Override
+	public void close() {
+		if (buffers == null)
+			return;
+		for (int c = 0; c < buffers.length; c++) {
+			ByteBuffer buffer = buffers[c];
+			// the views share the chunks, so they fail instead of reading
+			// freed memory
+			chunks[c] = null;
+			buffers[c] = null;
+			if (buffer != null)
+				free(buffer);
+		}
+		if (file != null && (!file.exists() || file.delete()))
+			file = null;
+	}
+
+	/**
+	 * @return true if the off-heap values were freed by {@link #close()}
+	 */
+	public boolean isClosed() {
+		return buffers != null && buffers[0] == null;
+	}
+
+	private static void free(ByteBuffer buffer) {
+		if (CLEANER == null)
+			return;
+		try {
+			CLEANER.invokeExact(buffer);
+		} catch (Throwable e) {
+			logger.debug("Could not free an off-heap buffer: {}",
+					e.getMessage());
+		}
+	}
+
+	/**
+	 * Find sun.misc.Unsafe#invokeCleaner, which frees the memory of a direct
+	 * buffer and unmaps a mapped buffer.
+	 */
+	private static MethodHandle findCleaner() {
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Field field = unsafeClass.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			return MethodHandles
+					.lookup()
+					.findVirtual(unsafeClass, "invokeCleaner",
+							MethodType.methodType(void.class, ByteBuffer.class))
+					.bindTo(field.get(null));
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			logger.debug("Off-heap matrices are freed by the garbage "
+					+ "collector: {}", e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Build the symmetric matrix of pairwise distances between points.
+	 *
+	 * @param coords
+	 *            flat x,y,z coordinates, as given by
+	 *            {@link FragmentRotation#toCoordinates(org.biojava.nbio.structure.Atom[])}
+	 * @return the distance matrix
+	 */
+	public static PackedMatrix distances(double[] coords) {
+		return distances(coords, DistanceKernels.getInstance());
+	}
+
+	/**
+	 * Build the symmetric matrix of pairwise distances between points, with
+	 * the given kernels.
+	 *
+	 * @param coords
+	 *            flat x,y,z coordinates
+	 * @param kernels
+	 * @return the distance matrix
+	 */
+	static PackedMatrix distances(double[] coords, DistanceKernels kernels) {
+		return distances(coords, kernels, Storage.HEAP);
+	}
+
+	/**
+	 * Build the symmetric matrix of pairwise distances between points, with
+	 * the given kernels and storage.
+	 *
+	 * @param coords
+	 *            flat x,y,z coordinates
+	 * @param kernels
+	 * @param storage
+	 * @return the distance matrix
+	 */
+	static PackedMatrix distances(double[] coords, DistanceKernels kernels,
+			Storage storage) {
+		int n = coords.length / 3;
+		double[] x = new double[n];
+		double[] y = new double[n];
+		double[] z = new double[n];
+		for (int i = 0; i < n; i++) {
+			x[i] = coords[3 * i];
+			y[i] = coords[3 * i + 1];
+			z[i] = coords[3 * i + 2];
+		}
+		PackedMatrix dist = new PackedMatrix(n, storage);
+		if (dist.values != null) {
+			for (int d = 0; d < n; d++)
+				kernels.distances(x, y, z, 0, d, n - d, dist.values,
+						dist.diagonalFrom(d));
+			return dist;
+		}
+		float[] diagonal = new float[n];
+		for (int d = 0; d < n; d++) {
+			kernels.distances(x, y, z, 0, d, n - d, diagonal, 0);
+			dist.put(dist.diagonalFrom(d), diagonal, n - d);
+		}
+		return dist;
+	}
+
+	/**
+	 * Copy of the diagonal j-i=k, in increasing i.
+	 *
+	 * @param k
+	 *            the diagonal
+	 * @return a new array with the cells of the diagonal
+	 */
+	public float[] getDiagonal(int k) {
+		int length = Math.min(rows - Math.max(0, -k), cols - Math.max(0, k));
+		if (length <= 0)
+			return new float[0];
+		int from = index(Math.max(0, -k), Math.max(0, k));
+		float[] diagonal = new float[length];
+		if (values != null) {
+			System.arraycopy(values, from, diagonal, 0, length);
+			return diagonal;
+		}
+		for (int i = 0; i < length; i++)
+			diagonal[i] = chunks[(from + i) >>> CHUNK_BITS].get((from + i)
+					& CHUNK_MASK);
+		return diagonal;
+	}
+
+	/**
+	 * Store the first length values of the source from the index from.
+	 */
+	private void put(int from, float[] source, int length) {
+		for (int i = 0; i < length; i++)
+			chunks[(from + i) >>> CHUNK_BITS].put((from + i) & CHUNK_MASK,
+					source[i]);
+	}
+
+	/**
+	 * Position in the values of the first cell of the diagonal
+	 * j-i=k. The cells of a diagonal are consecutive, in increasing i.
+	 */
+	private int diagonalFrom(int k) {
+		return offsets[k + rows - 1];
+	}
+
+	/**
+	 * @return the stored values, by diagonals, or null if they are stored
+	 *         off-heap
+	 */
+	float[] getValues() {
+		return values;
+	}
+
+	private int index(int i, int j) {
+		if (symmetric && j < i)
+			return offsets[i - j + rows - 1] + j;
+		return offsets[j - i + rows - 1] + Math.min(i, j);
+	}
+
+	/**
+	 * @param i
+	 *            row
+	 * @param j
+	 *            column
+	 * @return the value of cell (i,j)
+	 */
+	public float get(int i, int j) {
+		int index = index(i, j);
+		if (values != null)
+			return values[index];
+		return chunks[index >>> CHUNK_BITS].get(index & CHUNK_MASK);
+	}
+
+	/**
+	 * Set the value of cell (i,j). In a symmetric matrix this also sets cell
+	 * (j,i).
+	 *
+	 * @param i
+	 *            row
+	 * @param j
+	 *            column
+	 * @param value
+	 */
+	public void set(int i, int j, float value) {
+		int index = index(i, j);
+		if (values != null)
+			values[index] = value;
+		else
+			chunks[index >>> CHUNK_BITS].put(index & CHUNK_MASK, value);
+	}
+
+	/**
+	 * Set all the cells to the same value.
+	 *
+	 * @param value
+	 */
+	public void fill(float value) {
+		for (int k = symmetric ? 0 : 1 - rows; k < cols; k++) {
+			int from = diagonalFrom(k);
+			int length = Math.min(rows - Math.max(0, -k), cols - Math.max(0, k));
+			if (values != null)
+				Arrays.fill(values, from, from + length, value);
+			else {
+				for (int i = from; i < from + length; i++)
+					chunks[i >>> CHUNK_BITS].put(i & CHUNK_MASK, value);
+			}
+		}
+	}
+
+	public int getRows() {
+		return rows;
+	}
+
+	public int getCols() {
+		return cols;
+	}
+
+	/**
+	 * @return true if the values are stored off the Java heap
+	 */
+	public boolean isOffHeap() {
+		return values == null;
+	}
+
+	/**
+	 * @return true if only one triangle of the matrix is stored
+	 */
+	public boolean isSymmetric() {
+		return symmetric;
+	}
+
+	/**
+	 * Copy the matrix into a double[][], as used by the CE calculators.
+	 *
+	 * @return a new array with all the cells of the matrix
+	 */
+	public double[][] toArray() {
+		double[][] array = new double[rows][cols];
+		for (int i = 0; i < rows; i++) {
+			for (int j = 0; j < cols; j++)
+				array[i][j] = get(i, j);
+		}
+		return array;
+	}
+}
@@ -0,0 +1,341 @@
+package org.biojava.nbio.structure.align.symm;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.math3.complex.Complex;
+import org.apache.commons.math3.transform.DftNormalization;
+import org.apache.commons.math3.transform.FastFourierTransformer;
+import org.apache.commons.math3.transform.TransformType;
+import org.biojava.nbio.structure.Atom;
+import org.biojava.nbio.structure.Group;
+import org.biojava.nbio.structure.StructureTools;
+
+/**
+ * Prediction of the repeat lengths of a structure from the periodicity of
+ * its contact map or of its sequence.
+ * <p>
+ * Internal repeats appear in the contact map as stripes parallel to the main
+ * diagonal, at offsets that are multiples of the repeat length: the contacts
+ * of residue i are repeated by residue i+L. Each diagonal of the contact map
+ * is a binary profile, and the autocorrelation of the profiles at lag d
+ * counts the contacts that are repeated d residues later. The
+ * autocorrelations are summed over all the diagonals with one FFT per
+ * diagonal, in O(n log n) each, and normalized by the value expected for
+ * contacts without periodicity. The lags with a clear peak are the candidate
+ * repeat lengths.
+ * <p>
+ * The diagonals of the contacts between close residues in sequence are
+ * excluded, since they are always filled.
+ * <p>
+ * The repeats of tandem-repeat proteins are often detectable from the
+ * sequence alone, which is cheaper. The sequence is compared with itself
+ * shifted by each lag d, counting the identical residues, with one FFT per
+ * residue type. This is an ungapped self-alignment, so the identities of
+ * neighbouring lags are counted together to tolerate small insertions and
+ * deletions.
+ */
+public class RepeatPeriodicity {
+
+	/** Maximum distance between two CA atoms in contact, in A */
+	public static final double CONTACT_CUTOFF = 8.0;
+
+	/** Minimum number of z-scores above the mean of a candidate peak */
+	public static final double MIN_SCORE = 3.0;
+
+	/** Minimum z-score of a candidate peak of the sequence */
+	public static final double MIN_SEQUENCE_SCORE = 4.0;
+
+	/** Lags on each side of a lag counted in the sequence scores */
+	private static final int SEQUENCE_WINDOW = 2;
+
+	/** Residue types compared in the sequence */
+	private static final String RESIDUES = "ACDEFGHIKLMNPQRSTVWY";
+
+	/** First diagonal of the contact map that is not always filled */
+	private static final int MIN_SEPARATION = 4;
+
+	/** Relative tolerance of a multiple of a repeat length */
+	private static final double MULTIPLE_TOLERANCE = 0.1;
+
+	/** Prevent instantiation */
+	private RepeatPeriodicity() {
+	}
+
+	/**
+	 * Normalized autocorrelation of the diagonals of the contact map: the
+	 * number of contacts repeated at each lag d, divided by the number
+	 * expected if the contacts of each diagonal were not periodic. The
+	 * value is 0 for the lags without contacts to compare.
+	 *
+	 * @param coords
+	 *            flat x,y,z coordinates of the representative atoms, as
+	 *            given by
+	 *            {@link FragmentRotation#toCoordinates(org.biojava.nbio.structure.Atom[])}
+	 * @return the normalized autocorrelation, indexed by the lag in [0, n)
+	 */
+	public static double[] getAutocorrelation(double[] coords) {
+
+		int n = coords.length / 3;
+		int size = getTransformSize(n);
+
+		FastFourierTransformer fft = new FastFourierTransformer(
+				DftNormalization.STANDARD);
+		double[] power = new double[size];
+		double[] expected = new double[n];
+		double[] profile = new double[size];
+		boolean contacts = false;
+
+		// the matrix is symmetric, the diagonals k<0 would only double it
+		for (int k = MIN_SEPARATION; k < n; k++) {
+			int len = n - k;
+			int count = 0;
+			for (int i = 0; i < len; i++) {
+				int j = i + k;
+				double x = coords[3 * i] - coords[3 * j];
+				double y = coords[3 * i + 1] - coords[3 * j + 1];
+				double z = coords[3 * i + 2] - coords[3 * j + 2];
+				boolean contact = x * x + y * y + z * z < CONTACT_CUTOFF
+						* CONTACT_CUTOFF;
+				profile[i] = contact ? 1.0 : 0.0;
+				if (contact)
+					count++;
+			}
+			if (count == 0)
+				continue;
+			contacts = true;
+			for (int i = len; i < size; i++)
+				profile[i] = 0.0;
+
+			addPowerSpectrum(fft, profile, power);
+			double density = (double) count / len;
+			for (int d = 0; d < len; d++)
+				expected[d] += density * density * (len - d);
+		}
+
+		if (!contacts)
+			return new double[n];
+		return normalize(fft, power, expected);
+	}
+
+	/**
+	 * Significance of the identical residues of a sequence at each lag d.
+	 * The identities at the lags [d-w, d+w] are counted, to tolerate the
+	 * shifts of small insertions and deletions, and compared with a binomial
+	 * distribution with the identity probability of the residue composition.
+	 * The lags are weighted by their closeness to d, so that the identities
+	 * of an exact repeat of length L peak at L instead of a plateau around
+	 * it.
+	 * Only the 20 standard residue types are compared.
+	 *
+	 * @param sequence
+	 *            one letter codes of the residues
+	 * @return the z-score of the identities, indexed by the lag in [0, n)
+	 */
+	public static double[] getSequenceScores(String sequence) {
+
+		int n = sequence.length();
+		int size = getTransformSize(n);
+
+		FastFourierTransformer fft = new FastFourierTransformer(
+				DftNormalization.STANDARD);
+		double[] power = new double[size];
+		double[] profile = new double[size];
+		double identity = 0;
+
+		for (int r = 0; r < RESIDUES.length(); r++) {
+			char residue = RESIDUES.charAt(r);
+			int count = 0;
+			for (int i = 0; i < n; i++) {
+				boolean match = Character.toUpperCase(sequence.charAt(i)) == residue;
+				profile[i] = match ? 1.0 : 0.0;
+				if (match)
+					count++;
+			}
+			if (count < 2)
+				continue;
+			addPowerSpectrum(fft, profile, power);
+			identity += ((double) count / n) * ((double) count / n);
+		}
+
+		double[] scores = new double[n];
+		if (identity == 0)
+			return scores;
+		Complex[] identities = fft.transform(power, TransformType.INVERSE);
+		for (int d = 0; d < n; d++) {
+			double observed = 0;
+			double expected = 0;
+			double variance = 0;
+			for (int e = Math.max(1, d - SEQUENCE_WINDOW); e <= Math.min(n - 1,
+					d + SEQUENCE_WINDOW); e++) {
+				int weight = SEQUENCE_WINDOW + 1 - Math.abs(e - d);
+				observed += weight * identities[e].getReal();
+				expected += weight * identity * (n - e);
+				variance += weight * weight * identity * (1 - identity) * (n - e);
+			}
+			if (variance > 0)
+				scores[d] = (observed - expected) / Math.sqrt(variance);
+		}
+		return scores;
+	}
+
+	/**
+	 * Smallest power of 2 that holds a profile of length n with a zero
+	 * padding of n-1, so that the circular autocorrelation does not wrap.
+	 */
+	private static int getTransformSize(int n) {
+		int size = Integer.highestOneBit(Math.max(1, 2 * n - 1));
+		if (size < 2 * n - 1)
+			size <<= 1;
+		return size;
+	}
+
+	/**
+	 * Add the power spectrum of a zero padded profile to the sum.
+	 */
+	private static void addPowerSpectrum(FastFourierTransformer fft,
+			double[] profile, double[] power) {
+		Complex[] spectrum = fft.transform(profile, TransformType.FORWARD);
+		for (int f = 0; f < power.length; f++) {
+			double re = spectrum[f].getReal();
+			double im = spectrum[f].getImaginary();
+			power[f] += re * re + im * im;
+		}
+	}
+
+	/**
+	 * Wiener-Khinchin: the summed autocorrelation is the inverse transform of
+	 * the summed power spectrum. Divide it by the expected value of each lag.
+	 */
+	private static double[] normalize(FastFourierTransformer fft,
+			double[] power, double[] expected) {
+		double[] autocorrelation = new double[expected.length];
+		Complex[] sum = fft.transform(power, TransformType.INVERSE);
+		for (int d = 0; d < expected.length; d++) {
+			if (expected[d] > 0)
+				autocorrelation[d] = sum[d].getReal() / expected[d];
+		}
+		return autocorrelation;
+	}
+
+	/**
+	 * Predict the repeat lengths of a structure. The candidates are the
+	 * local maxima of the normalized autocorrelation of the contact map
+	 * that stand at least {@link #MIN_SCORE} standard deviations above its
+	 * mean, for the lags between minLength and half of the structure. The
+	 * peaks at multiples of a shorter candidate, which are the offsets
+	 * between non-consecutive repeats, are not repeat lengths.
+	 *
+	 * @param coords
+	 *            flat x,y,z coordinates of the representative atoms
+	 * @param minLength
+	 *            minimum repeat length
+	 * @return the candidate repeat lengths, from the highest peak to the
+	 *         lowest, or an empty array if there is no clear periodicity
+	 */
+	public static int[] getRepeatLengths(double[] coords, int minLength) {
+
+		double[] autocorrelation = getAutocorrelation(coords);
+		int from = Math.max(minLength, MIN_SEPARATION);
+		int to = autocorrelation.length / 2;
+		if (to - from < 3)
+			return new int[0];
+
+		double mean = 0;
+		for (int d = from; d <= to; d++)
+			mean += autocorrelation[d];
+		mean /= to - from + 1;
+		double var = 0;
+		for (int d = from; d <= to; d++)
+			var += (autocorrelation[d] - mean) * (autocorrelation[d] - mean);
+		double std = Math.sqrt(var / (to - from + 1));
+		if (std == 0)
+			return new int[0];
+
+		double[] scores = new double[autocorrelation.length];
+		for (int d = 0; d < scores.length; d++)
+			scores[d] = (autocorrelation[d] - mean) / std;
+		return getPeaks(scores, from, to, MIN_SCORE);
+	}
+
+	/**
+	 * Predict the repeat lengths of a protein from its sequence. The
+	 * candidates are the local maxima of the sequence scores (see
+	 * {@link #getSequenceScores(String)}) of at least
+	 * {@link #MIN_SEQUENCE_SCORE}, for the lags between minLength and half of
+	 * the sequence, without the multiples of a shorter candidate.
+	 *
+	 * @param sequence
+	 *            one letter codes of the residues
+	 * @param minLength
+	 *            minimum repeat length
+	 * @return the candidate repeat lengths, from the highest peak to the
+	 *         lowest, or an empty array if there is no clear periodicity
+	 */
+	public static int[] getSequenceRepeatLengths(String sequence,
+			int minLength) {
+
+		double[] scores = getSequenceScores(sequence);
+		int from = Math.max(minLength, 1);
+		int to = scores.length / 2;
+		if (to - from < 3)
+			return new int[0];
+		return getPeaks(scores, from, to, MIN_SEQUENCE_SCORE);
+	}
+
+	/**
+	 * One letter codes of the groups of the atoms, X for the unknown ones.
+	 *
+	 * @param atoms
+	 *            representative atoms of the residues
+	 * @return the sequence of the atoms
+	 */
+	public static String getSequence(Atom[] atoms) {
+		StringBuilder sequence = new StringBuilder(atoms.length);
+		for (Atom atom : atoms) {
+			Group group = atom.getGroup();
+			sequence.append(group == null ? 'X' : StructureTools
+					.get1LetterCode(group.getPDBName()));
+		}
+		return sequence.toString();
+	}
+
+	/**
+	 * Repeat lengths at the local maxima of the scores in [from, to], with a
+	 * score of at least minScore, that are not multiples of a shorter one.
+	 */
+	private static int[] getPeaks(double[] scores, int from, int to,
+			double minScore) {
+
+		List<Integer> peaks = new ArrayList<Integer>();
+		for (int d = from; d <= to; d++) {
+			double value = scores[d];
+			if (value < minScore)
+				continue;
+			if (value < scores[d - 1] || value <= scores[d + 1])
+				continue;
+			peaks.add(d);
+		}
+
+		// the peaks are in increasing order, so the divisors come first
+		List<Integer> lengths = new ArrayList<Integer>();
+		for (int peak : peaks) {
+			boolean multiple = false;
+			for (int length : lengths) {
+				long m = Math.round((double) peak / length);
+				if (m > 1
+						&& Math.abs(peak - m * length) <= Math.max(1.0, m
+								* length * MULTIPLE_TOLERANCE))
+					multiple = true;
+			}
+			if (!multiple)
+				lengths.add(peak);
+		}
+		lengths.sort((a, b) -> Double.compare(scores[b], scores[a]));
+
+		int[] result = new int[lengths.size()];
+		for (int l = 0; l < result.length; l++)
+			result[l] = lengths.get(l);
+		return result;
+	}
+}
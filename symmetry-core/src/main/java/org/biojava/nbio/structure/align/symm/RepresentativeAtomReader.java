@@ -0,0 +1,462 @@
+package org.biojava.nbio.structure.align.symm;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+
+import org.biojava.nbio.structure.AminoAcidImpl;
+import org.biojava.nbio.structure.Atom;
+import org.biojava.nbio.structure.AtomImpl;
+import org.biojava.nbio.structure.Chain;
+import org.biojava.nbio.structure.ChainImpl;
+import org.biojava.nbio.structure.Element;
+import org.biojava.nbio.structure.EntityInfo;
+import org.biojava.nbio.structure.EntityType;
+import org.biojava.nbio.structure.Group;
+import org.biojava.nbio.structure.NucleotideImpl;
+import org.biojava.nbio.structure.PDBHeader;
+import org.biojava.nbio.structure.PdbId;
+import org.biojava.nbio.structure.ResidueNumber;
+import org.biojava.nbio.structure.Structure;
+import org.biojava.nbio.structure.StructureIdentifier;
+import org.biojava.nbio.structure.StructureImpl;
+import org.biojava.nbio.structure.StructureTools;
+
+/**
+ * Streaming reader that extracts only the representative atoms (CA for amino
+ * acids and C1' for nucleotides) from mmCIF or PDB files.
+ * <p>
+ * The file is scanned once, line by line, and by default only the first model
+ * is read. The returned Structure contains a minimal {@link Chain} and
+ * {@link Group} scaffolding around the representative atoms, with the PDB ID
+ * and one polymer {@link EntityInfo} per chain, so that it can be used by
+ * {@link StructureTools#getRepresentativeAtomArray(Structure)},
+ * {@link StructureIdentifier#reduce(Structure)}, {@link ChainSorter} and
+ * CeSymm, while avoiding the memory of the full atom graph (side chains,
+ * ligands, solvent, headers) for large entries.
+ * <p>
+ * Only polymer residues are read: non-polymer groups (mmCIF rows without a
+ * label_seq_id and PDB HETATM records after the TER of their chain) are
+ * skipped, so that ligand CA or C1' atoms are not counted as residues. Only
+ * the first alternate location of each atom is kept. Binary formats
+ * (BinaryCIF, MMTF) are not supported.
+ */
+public class RepresentativeAtomReader {
+
+	private static final String CA = StructureTools.CA_ATOM_NAME;
+	private static final String C1 = "C1'";
+
+	/** Builds the chain and group scaffolding of the representative atoms */
+	private final List<Map<String, Chain>> models = new ArrayList<Map<String, Chain>>();
+	private Map<String, Chain> chains = new LinkedHashMap<String, Chain>();
+	private final boolean allModels;
+	private String pdbId = null;
+	private String lastResidue = null;
+	private int nAtoms = 0;
+
+	private RepresentativeAtomReader(boolean allModels) {
+		this.allModels = allModels;
+		models.add(chains);
+	}
+
+	/**
+	 * Read the representative atoms of a PDB or mmCIF file. The format is
+	 * determined from the file name and gzipped files are supported.
+	 *
+	 * @param file
+	 *            a .cif, .pdb or .ent file, optionally gzipped
+	 * @return Structure with the representative atoms of the first model
+	 * @throws IOException
+	 */
+	public static Structure read(File file) throws IOException {
+		return read(file, false);
+	}
+
+	/**
+	 * Read the representative atoms of a PDB or mmCIF file. The format is
+	 * determined from the file name and gzipped files are supported.
+	 *
+	 * @param file
+	 *            a .cif, .pdb or .ent file, optionally gzipped
+	 * @param allModels
+	 *            read all the models, as in the biological assembly files,
+	 *            instead of only the first one
+	 * @return Structure with the representative atoms
+	 * @throws IOException
+	 */
+	public static Structure read(File file, boolean allModels)
+			throws IOException {
+		String name = file.getName().toLowerCase();
+		boolean gzip = name.endsWith(".gz");
+		if (gzip)
+			name = name.substring(0, name.length() - 3);
+		boolean cif = name.endsWith(".cif") || name.endsWith(".mmcif");
+
+		InputStream in = new FileInputStream(file);
+		try {
+			if (gzip)
+				in = new GZIPInputStream(in, 65536);
+			return read(in, cif, allModels);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Read the representative atoms from a PDB or mmCIF stream.
+	 *
+	 * @param in
+	 *            uncompressed input stream. It is not closed.
+	 * @param cif
+	 *            true if the stream is in mmCIF format, false for PDB
+	 * @return Structure with the representative atoms of the first model
+	 * @throws IOException
+	 */
+	public static Structure read(InputStream in, boolean cif)
+			throws IOException {
+		return read(in, cif, false);
+	}
+
+	/**
+	 * Read the representative atoms from a PDB or mmCIF stream.
+	 *
+	 * @param in
+	 *            uncompressed input stream. It is not closed.
+	 * @param cif
+	 *            true if the stream is in mmCIF format, false for PDB
+	 * @param allModels
+	 *            read all the models instead of only the first one
+	 * @return Structure with the representative atoms
+	 * @throws IOException
+	 */
+	public static Structure read(InputStream in, boolean cif,
+			boolean allModels) throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in,
+				StandardCharsets.US_ASCII), 65536);
+		RepresentativeAtomReader parser = new RepresentativeAtomReader(
+				allModels);
+		if (cif)
+			parser.parseCif(reader);
+		else
+			parser.parsePdb(reader);
+		return parser.getStructure();
+	}
+
+	private void parsePdb(BufferedReader reader) throws IOException {
+		String line;
+		// chains after their TER record, whose HETATM are not polymer
+		Set<String> terminated = new HashSet<String>();
+		while ((line = reader.readLine()) != null) {
+			if (line.startsWith("HEADER") && line.length() >= 66) {
+				pdbId = line.substring(62, 66).trim();
+				continue;
+			}
+			if (line.startsWith("ENDMDL")) {
+				if (!allModels)
+					break; // only the first model
+				nextModel();
+				terminated.clear();
+				continue;
+			}
+			if (line.startsWith("TER")) {
+				if (line.length() >= 22)
+					terminated.add(line.substring(21, 22));
+				continue;
+			}
+			if (!line.startsWith("ATOM") && !line.startsWith("HETATM"))
+				continue;
+			if (line.length() < 54)
+				continue;
+			if (line.startsWith("HETATM")
+					&& terminated.contains(line.substring(21, 22)))
+				continue; // ligand or solvent
+
+			// The CA atom name is right aligned; calcium is "CA  "
+			String atomName = line.substring(12, 16);
+			if (!atomName.equals(" CA ") && !atomName.trim().equals(C1))
+				continue;
+			if (line.length() >= 78) {
+				String element = line.substring(76, 78).trim();
+				if (!element.isEmpty() && !element.equals("C"))
+					continue;
+			}
+
+			String chainId = line.substring(21, 22);
+			String resName = line.substring(17, 20).trim();
+			int resNum = Integer.parseInt(line.substring(22, 26).trim());
+			char insCode = line.charAt(26);
+			double x = Double.parseDouble(line.substring(30, 38).trim());
+			double y = Double.parseDouble(line.substring(38, 46).trim());
+			double z = Double.parseDouble(line.substring(46, 54).trim());
+			float occ = line.length() >= 60 ? parseFloat(line.substring(54,
+					60)) : 1.0f;
+			float bfac = line.length() >= 66 ? parseFloat(line.substring(60,
+					66)) : 0.0f;
+			int serial = parseInt(line.substring(6, 11));
+
+			addAtom(chainId, chainId, resName, resNum,
+					insCode == ' ' ? null : insCode, atomName.trim(), serial,
+					x, y, z, occ, bfac);
+		}
+	}
+
+	private void parseCif(BufferedReader reader) throws IOException {
+		String line;
+		List<String> columns = new ArrayList<String>();
+		boolean inLoop = false;
+
+		// Find the header of the atom_site loop
+		while ((line = reader.readLine()) != null) {
+			if (line.startsWith("data_")) {
+				pdbId = line.substring(5).trim();
+			} else if (line.startsWith("loop_")) {
+				inLoop = true;
+				columns.clear();
+			} else if (inLoop && line.startsWith("_atom_site.")) {
+				columns.add(line.substring(11).trim());
+			} else if (!columns.isEmpty()) {
+				break; // first data row
+			} else if (!line.startsWith("_")) {
+				inLoop = false;
+			}
+		}
+		if (line == null)
+			return;
+
+		int group = columns.indexOf("group_PDB");
+		int type = columns.indexOf("type_symbol");
+		int atomId = columns.indexOf("label_atom_id");
+		int compId = columns.indexOf("label_comp_id");
+		int labelAsym = columns.indexOf("label_asym_id");
+		int authAsym = columns.indexOf("auth_asym_id");
+		int authSeq = columns.indexOf("auth_seq_id");
+		int labelSeq = columns.indexOf("label_seq_id");
+		int insCode = columns.indexOf("pdbx_PDB_ins_code");
+		int cx = columns.indexOf("Cartn_x");
+		int cy = columns.indexOf("Cartn_y");
+		int cz = columns.indexOf("Cartn_z");
+		int occ = columns.indexOf("occupancy");
+		int bfac = columns.indexOf("B_iso_or_equiv");
+		int model = columns.indexOf("pdbx_PDB_model_num");
+		int serial = columns.indexOf("id");
+
+		if (authAsym < 0)
+			authAsym = labelAsym;
+		if (authSeq < 0)
+			authSeq = labelSeq;
+		if (atomId < 0 || cx < 0 || cy < 0 || cz < 0 || labelAsym < 0
+				|| authSeq < 0)
+			throw new IOException("Missing required _atom_site columns");
+
+		String firstModel = null;
+		String[] tokens = new String[columns.size()];
+		do {
+			if (line.startsWith("#") || line.startsWith("_")
+					|| line.startsWith("loop_"))
+				break; // end of the atom_site loop
+			if (tokenize(line, tokens) < tokens.length)
+				continue;
+
+			if (model >= 0) {
+				if (firstModel == null)
+					firstModel = tokens[model];
+				else if (!firstModel.equals(tokens[model])) {
+					if (!allModels)
+						break; // only the first model
+					firstModel = tokens[model];
+					nextModel();
+				}
+			}
+
+			String atomName = tokens[atomId];
+			if (!atomName.equals(CA) && !atomName.equals(C1))
+				continue;
+			if (type >= 0 && !tokens[type].equals("C"))
+				continue;
+			if (group >= 0 && !tokens[group].equals("ATOM")
+					&& !tokens[group].equals("HETATM"))
+				continue;
+			if (labelSeq >= 0 && isNull(tokens[labelSeq]))
+				continue; // ligand or solvent
+			Character ins = null;
+			if (insCode >= 0 && !isNull(tokens[insCode]))
+				ins = tokens[insCode].charAt(0);
+
+			addAtom(tokens[labelAsym], tokens[authAsym],
+					compId < 0 ? "UNK" : tokens[compId],
+					Integer.parseInt(tokens[authSeq]), ins, atomName,
+					serial < 0 ? nAtoms + 1 : parseInt(tokens[serial]),
+					Double.parseDouble(tokens[cx]),
+					Double.parseDouble(tokens[cy]),
+					Double.parseDouble(tokens[cz]),
+					occ < 0 ? 1.0f : parseFloat(tokens[occ]),
+					bfac < 0 ? 0.0f : parseFloat(tokens[bfac]));
+
+		} while ((line = reader.readLine()) != null);
+	}
+
+	/**
+	 * Add a representative atom to the structure scaffolding. Only one atom is
+	 * kept per residue (the first alternate location).
+	 */
+	private void addAtom(String chainId, String chainName, String resName,
+			int resNum, Character insCode, String atomName, int serial,
+			double x, double y, double z, float occ, float bfac) {
+
+		String key = residueKey(chainId, Integer.toString(resNum),
+				insCode == null ? null : insCode.toString());
+		if (key.equals(lastResidue))
+			return;
+		lastResidue = key;
+
+		Chain chain = chains.get(chainId);
+		if (chain == null) {
+			chain = new ChainImpl();
+			chain.setId(chainId);
+			chain.setName(chainName);
+			chains.put(chainId, chain);
+		}
+
+		Group g = atomName.equals(CA) ? new AminoAcidImpl()
+				: new NucleotideImpl();
+		g.setPDBName(resName);
+		g.setResidueNumber(new ResidueNumber(chainName, resNum, insCode));
+
+		Atom atom = new AtomImpl();
+		atom.setName(atomName);
+		atom.setElement(Element.C);
+		atom.setPDBserial(serial);
+		atom.setX(x);
+		atom.setY(y);
+		atom.setZ(z);
+		atom.setOccupancy(occ);
+		atom.setTempFactor(bfac);
+		g.addAtom(atom);
+		chain.addGroup(g);
+		nAtoms++;
+	}
+
+	/**
+	 * Start the chains of the next model.
+	 */
+	private void nextModel() {
+		if (chains.isEmpty())
+			return;
+		chains = new LinkedHashMap<String, Chain>();
+		models.add(chains);
+		lastResidue = null;
+	}
+
+	private Structure getStructure() {
+		Structure structure = new StructureImpl();
+		PDBHeader header = new PDBHeader();
+		if (pdbId != null) {
+			try {
+				PdbId id = new PdbId(pdbId);
+				structure.setPdbId(id);
+				header.setPdbId(id);
+			} catch (IllegalArgumentException e) {
+				// not a PDB ID, e.g. a local file
+			}
+		}
+		structure.setPDBHeader(header);
+
+		// one polymer entity per chain, shared by its copies in the models
+		Map<String, EntityInfo> entities = new LinkedHashMap<String, EntityInfo>();
+		for (Map<String, Chain> model : models) {
+			if (model.isEmpty())
+				continue;
+			for (Chain c : model.values()) {
+				EntityInfo entity = entities.get(c.getId());
+				if (entity == null) {
+					entity = new EntityInfo();
+					entity.setMolId(entities.size() + 1);
+					entity.setType(EntityType.POLYMER);
+					entities.put(c.getId(), entity);
+				}
+				c.setEntityInfo(entity);
+				entity.addChain(c);
+			}
+			structure.addModel(new ArrayList<Chain>(model.values()));
+		}
+		structure.setEntityInfos(new ArrayList<EntityInfo>(entities.values()));
+		return structure;
+	}
+
+	private static String residueKey(String chainId, String resNum,
+			String insCode) {
+		if (insCode == null || isNull(insCode))
+			return chainId + "_" + resNum;
+		return chainId + "_" + resNum + insCode;
+	}
+
+	private static boolean isNull(String token) {
+		return token.equals("?") || token.equals(".");
+	}
+
+	private static int parseInt(String s) {
+		try {
+			return Integer.parseInt(s.trim());
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	private static float parseFloat(String s) {
+		try {
+			return Float.parseFloat(s.trim());
+		} catch (NumberFormatException e) {
+			return 0.0f;
+		}
+	}
+
+	/**
+	 * Split a mmCIF data line into whitespace separated tokens, honoring
+	 * single and double quoted values (e.g. "C1'").
+	 *
+	 * @return the number of tokens found, up to the length of the array
+	 */
+	static int tokenize(String line, String[] tokens) {
+		int n = 0;
+		int i = 0;
+		int len = line.length();
+		while (i < len && n < tokens.length) {
+			char c = line.charAt(i);
+			if (c == ' ' || c == '\t') {
+				i++;
+				continue;
+			}
+			int start;
+			int end;
+			if (c == '\'' || c == '"') {
+				// Quoted value ends at a quote followed by whitespace
+				start = i + 1;
+				end = start;
+				while (end < len
+						&& !(line.charAt(end) == c && (end + 1 == len || Character
+								.isWhitespace(line.charAt(end + 1)))))
+					end++;
+				i = end + 1;
+			} else {
+				start = i;
+				end = i;
+				while (end < len && !Character.isWhitespace(line.charAt(end)))
+					end++;
+				i = end;
+			}
+			tokens[n++] = line.substring(start, Math.min(end, len));
+		}
+		return n;
+	}
+}
@@ -0,0 +1,70 @@
+package org.biojava.nbio.structure.align.symm;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Implementation of the {@link DistanceKernels} with the Vector API. It is
+ * only compiled on JDK 17 or later and loaded by
+ * {@link DistanceKernels#getInstance()} when the jdk.incubator.vector module
+ * is available.
+ * <p>
+ * The lanes do the same operations as the scalar loops, and the remainder of
+ * each range is computed by a scalar loop.
+ */
+class VectorDistanceKernels extends DistanceKernels {
+
+	private static final VectorSpecies<Double> DOUBLES = DoubleVector.SPECIES_PREFERRED;
+
+	/** Floats with as many lanes as {@link #DOUBLES}, for the conversions */
+	private static final VectorSpecies<Float> HALF_FLOATS = VectorSpecies.of(
+			float.class,
+			VectorShape.forBitSize(DOUBLES.vectorBitSize() / 2));
+
+	@Override
+	public void distances(double[] x, double[] y, double[] z, int from1,
+			int from2, int len, float[] out, int outFrom) {
+
+		int i = 0;
+		for (int bound = DOUBLES.loopBound(len); i < bound; i += DOUBLES
+				.length()) {
+			DoubleVector dx = DoubleVector.fromArray(DOUBLES, x, from1 + i)
+					.sub(DoubleVector.fromArray(DOUBLES, x, from2 + i));
+			DoubleVector dy = DoubleVector.fromArray(DOUBLES, y, from1 + i)
+					.sub(DoubleVector.fromArray(DOUBLES, y, from2 + i));
+			DoubleVector dz = DoubleVector.fromArray(DOUBLES, z, from1 + i)
+					.sub(DoubleVector.fromArray(DOUBLES, z, from2 + i));
+			DoubleVector d = dx.mul(dx).add(dy.mul(dy)).add(dz.mul(dz)).sqrt();
+			((FloatVector) d.convertShape(VectorOperators.D2F, HALF_FLOATS, 0))
+					.intoArray(out, outFrom + i);
+		}
+		for (; i < len; i++) {
+			double dx = x[from1 + i] - x[from2 + i];
+			double dy = y[from1 + i] - y[from2 + i];
+			double dz = z[from1 + i] - z[from2 + i];
+			out[outFrom + i] = (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+		}
+	}
+
+	@Override
+	public void addAbsDifferences(float a, float[] b, int bFrom,
+			double[] sum, int len) {
+
+		double da = a;
+		DoubleVector va = DoubleVector.broadcast(DOUBLES, da);
+		int i = 0;
+		for (int bound = DOUBLES.loopBound(len); i < bound; i += DOUBLES
+				.length()) {
+			DoubleVector vb = (DoubleVector) FloatVector.fromArray(
+					HALF_FLOATS, b, bFrom + i).convertShape(
+					VectorOperators.F2D, DOUBLES, 0);
+			DoubleVector.fromArray(DOUBLES, sum, i).add(va.sub(vb).abs())
+					.intoArray(sum, i);
+		}
+		for (; i < len; i++)
+			sum[i] += Math.abs(da - b[bFrom + i]);
+	}
+}
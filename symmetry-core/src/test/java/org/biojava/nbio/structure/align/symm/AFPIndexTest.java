@@ -0,0 +1,117 @@
+package org.biojava.nbio.structure.align.symm;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Test that the {@link AFPIndex} of a dense or packed matrix enumerates the
+ * same cells as a scan of all the cells, by rows and by columns.
+ */
+public class AFPIndexTest {
+
+	/**
+	 * Scores in [-1,4), with the bounds of the candidates, 0 and the maximum
+	 * score, and the cells of negative scores.
+	 */
+	private static double[][] getScores(int rows, int cols, double maxScore) {
+		Random rnd = new Random(0);
+		double[][] scores = new double[rows][cols];
+		for (int i = 0; i < rows; i++) {
+			for (int j = 0; j < cols; j++)
+				scores[i][j] = 5 * rnd.nextDouble() - 1;
+		}
+		scores[0][0] = 0.0;
+		scores[1][2] = maxScore;
+		scores[2][1] = Math.nextUp(maxScore);
+		scores[3][3] = -0.0;
+		return scores;
+	}
+
+	/**
+	 * Check the rows and columns of the index against a scan of the cells.
+	 */
+	private static void checkIndex(AFPIndex index, double[][] scores,
+			double maxScore) {
+		int rows = scores.length;
+		int cols = scores[0].length;
+		int size = 0;
+		for (int i = 0; i < rows; i++) {
+			for (int from = 0; from <= cols; from++) {
+				List<Integer> expected = new ArrayList<Integer>();
+				for (int j = from; j < cols; j++) {
+					if (scores[i][j] >= 0.0 && scores[i][j] <= maxScore)
+						expected.add(j);
+				}
+				List<Integer> found = new ArrayList<Integer>();
+				for (int p = index.rowFrom(i, from); p < index.rowEnd(i); p++)
+					found.add(index.col(p));
+				assertEquals("row " + i + " from " + from, expected, found);
+				if (from == 0)
+					size += found.size();
+			}
+		}
+		assertEquals(size, index.size());
+
+		for (int j = 0; j < cols; j++) {
+			for (int from = 0; from <= rows; from++) {
+				List<Integer> expected = new ArrayList<Integer>();
+				for (int i = from; i < rows; i++) {
+					if (scores[i][j] >= 0.0 && scores[i][j] <= maxScore)
+						expected.add(i);
+				}
+				List<Integer> found = new ArrayList<Integer>();
+				for (int p = index.colFrom(j, from); p < index.colEnd(j); p++)
+					found.add(index.row(p));
+				assertEquals("column " + j + " from " + from, expected, found);
+			}
+		}
+	}
+
+	@Test
+	public void testDenseMatrix() {
+		double maxScore = 3.0;
+		double[][] scores = getScores(40, 25, maxScore);
+		checkIndex(AFPIndex.fromMatrix(scores, 40, 25, maxScore), scores,
+				maxScore);
+
+		// no candidates
+		AFPIndex empty = AFPIndex.fromMatrix(scores, 40, 25, -1.0);
+		assertEquals(0, empty.size());
+		assertEquals(empty.rowEnd(5), empty.rowFrom(5, 0));
+		assertEquals(empty.colEnd(5), empty.colFrom(5, 0));
+	}
+
+	@Test
+	public void testPackedMatrix() {
+		double maxScore = 2.5f;
+
+		// a full matrix, rounded to the single precision of the packed one
+		double[][] scores = getScores(30, 45, maxScore);
+		PackedMatrix full = new PackedMatrix(30, 45);
+		for (int i = 0; i < 30; i++) {
+			for (int j = 0; j < 45; j++) {
+				full.set(i, j, (float) scores[i][j]);
+				scores[i][j] = full.get(i, j);
+			}
+		}
+		checkIndex(AFPIndex.fromMatrix(full, maxScore), scores, maxScore);
+
+		// a symmetric matrix, which stores only one triangle
+		PackedMatrix symmetric = new PackedMatrix(35);
+		scores = getScores(35, 35, maxScore);
+		for (int i = 0; i < 35; i++) {
+			for (int j = i; j < 35; j++)
+				symmetric.set(i, j, (float) scores[i][j]);
+		}
+		for (int i = 0; i < 35; i++) {
+			for (int j = 0; j < 35; j++)
+				scores[i][j] = symmetric.get(i, j);
+		}
+		checkIndex(AFPIndex.fromMatrix(symmetric, maxScore), scores, maxScore);
+	}
+}
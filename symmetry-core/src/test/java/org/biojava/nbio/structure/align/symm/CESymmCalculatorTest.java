@@ -0,0 +1,581 @@
+package org.biojava.nbio.structure.align.symm;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.biojava.nbio.structure.AminoAcidImpl;
+import org.biojava.nbio.structure.Atom;
+import org.biojava.nbio.structure.AtomImpl;
+import org.biojava.nbio.structure.Chain;
+import org.biojava.nbio.structure.ChainImpl;
+import org.biojava.nbio.structure.Group;
+import org.biojava.nbio.structure.StructureException;
+import org.biojava.nbio.structure.align.ce.CeParameters;
+import org.biojava.nbio.structure.align.model.AFPChain;
+import org.junit.Test;
+
+/**
+ * Test that the triangular self-alignment mode finds the same alignment as
+ * the full scan on a structure with exact repeats, that the parallel seed
+ * search finds the same best and candidate traces as the sequential search,
+ * that the index of the candidate AFPs finds the same traces as a scan of all
+ * the cells, that the budget of traces or time truncates the sequential and
+ * parallel searches, that self-alignments share the distance matrix, that the
+ * self-alignment of a sub-range can reuse the matrices of the whole, that the
+ * banded search only restricts the seeds of periodic structures, that the
+ * sequence of a tandem repeat predicts the same bands as its contact map,
+ * that a warm start from the previous frame finds the same trace, and that
+ * AFPs rotated by more than {@link CESymmCalculator#MIN_ANGLE} degrees extend
+ * each other.
+ */
+public class CESymmCalculatorTest {
+
+	/**
+	 * Exposes the trace results of the calculator.
+	 */
+	private static class TraceCalculator extends CESymmCalculator {
+
+		TraceCalculator(boolean triangular, int parallelism) {
+			this(new CeParameters(), triangular, parallelism);
+		}
+
+		TraceCalculator(CeParameters params, boolean triangular,
+				int parallelism) {
+			super(params);
+			setTriangular(triangular);
+			setParallelism(parallelism);
+		}
+
+		void trace(Atom[] ca) throws StructureException {
+			AFPChain afpChain = new AFPChain("CE-Symm");
+			extractFragments(afpChain, ca, ca);
+			traceFragmentMatrix(afpChain, ca, ca);
+		}
+
+		void extract(Atom[] ca) throws StructureException {
+			extractFragments(new AFPChain("CE-Symm"), ca, ca);
+		}
+
+		AFPChain align(Atom[] ca) throws StructureException {
+			AFPChain afpChain = new AFPChain("CE-Symm");
+			extractFragments(afpChain, ca, ca);
+			traceFragmentMatrix(afpChain, ca, ca);
+			nextStep(afpChain, ca, ca);
+			return afpChain;
+		}
+
+		long getTraces() {
+			return nTraces;
+		}
+
+		int getBestTraceLength() {
+			return nBestTrace;
+		}
+
+		double getBestTraceScore() {
+			return bestTraceScore;
+		}
+
+		/**
+		 * The candidate traces of the first iteration, in slot order.
+		 */
+		String getCandidates() {
+			StringBuilder candidates = new StringBuilder();
+			for (int c = 0; c < nBestTraces; c++) {
+				int n = bestTracesN[c];
+				candidates.append(bestTracesScores[c]).append(' ')
+						.append(Arrays.toString(Arrays.copyOf(bestTraces1[c], n)))
+						.append(Arrays.toString(Arrays.copyOf(bestTraces2[c], n)))
+						.append('\n');
+			}
+			return candidates.toString();
+		}
+
+		int[] getBestTrace1() {
+			return bestTrace1;
+		}
+
+		int[] getBestTrace2() {
+			return bestTrace2;
+		}
+
+		boolean isDistanceShared() {
+			return dist1 == dist2;
+		}
+	}
+
+	/**
+	 * Copies of a random walk, related by a rotation around the z axis.
+	 */
+	private static Atom[] getRepeats(int repeats, int length) {
+		Random rnd = new Random(0);
+		double[][] walk = new double[length][];
+		double x = 12, y = 0, z = 0;
+		for (int i = 0; i < length; i++) {
+			double dx = rnd.nextGaussian(), dy = rnd.nextGaussian(), dz = rnd
+					.nextGaussian();
+			double norm = Math.sqrt(dx * dx + dy * dy + dz * dz) / 3.8;
+			x += dx / norm;
+			y += dy / norm;
+			z += dz / norm;
+			walk[i] = new double[] { x, y, z };
+		}
+		Atom[] ca = new Atom[repeats * length];
+		for (int r = 0; r < repeats; r++) {
+			double angle = 2 * Math.PI * r / repeats;
+			double c = Math.cos(angle), s = Math.sin(angle);
+			for (int i = 0; i < length; i++) {
+				Atom a = new AtomImpl();
+				a.setName("CA");
+				a.setCoords(new double[] { c * walk[i][0] - s * walk[i][1],
+						s * walk[i][0] + c * walk[i][1], walk[i][2] });
+				ca[r * length + i] = a;
+			}
+		}
+		return ca;
+	}
+
+	/**
+	 * Put the atoms in residues of a chain, which the final optimization of
+	 * the alignment needs.
+	 */
+	private static Atom[] addGroups(Atom[] ca) {
+		Chain chain = new ChainImpl();
+		chain.setId("A");
+		chain.setName("A");
+		for (int i = 0; i < ca.length; i++) {
+			Group g = new AminoAcidImpl();
+			g.setPDBName("ALA");
+			g.setResidueNumber("A", i + 1, null);
+			g.addAtom(ca[i]);
+			chain.addGroup(g);
+		}
+		return ca;
+	}
+
+	@Test
+	public void testTriangularMatchesFullScan() throws StructureException {
+
+		Atom[] ca = getRepeats(3, 30);
+
+		TraceCalculator full = new TraceCalculator(false, 0);
+		full.trace(ca);
+		TraceCalculator half = new TraceCalculator(true, 0);
+		half.trace(ca);
+
+		// the similarity matrix is the same
+		double[][] fullMat = full.getMatMatrix();
+		double[][] halfMat = half.getMatMatrix();
+		for (int i = 0; i < ca.length; i++)
+			assertArrayEquals(fullMat[i], halfMat[i], 0.0);
+
+		// with a single distance matrix
+		assertTrue(full.isDistanceShared());
+		assertTrue(half.isDistanceShared());
+
+		// and so is the best trace of this structure
+		int n = full.getBestTraceLength();
+		assertTrue(n > 1);
+		assertEquals(n, half.getBestTraceLength());
+		assertEquals(full.getBestTraceScore(), half.getBestTraceScore(), 0.0);
+		for (int i = 0; i < n; i++) {
+			assertEquals(full.getBestTrace1()[i], half.getBestTrace1()[i]);
+			assertEquals(full.getBestTrace2()[i], half.getBestTrace2()[i]);
+		}
+	}
+
+	@Test
+	public void testTriangularAlignment() throws StructureException {
+
+		Atom[] ca = addGroups(getRepeats(3, 30));
+
+		AFPChain full = new TraceCalculator(false, 0).align(ca);
+		AFPChain half = new TraceCalculator(true, 0).align(ca);
+
+		// the final alignments of this structure are the same
+		assertTrue(full.getOptLength() > 0);
+		assertEquals(full.getBlockNum(), half.getBlockNum());
+		for (int b = 0; b < full.getBlockNum(); b++) {
+			assertEquals(full.getOptLen()[b], half.getOptLen()[b]);
+			for (int s = 0; s < 2; s++) {
+				assertArrayEquals(
+						Arrays.copyOf(full.getOptAln()[b][s], full.getOptLen()[b]),
+						Arrays.copyOf(half.getOptAln()[b][s], half.getOptLen()[b]));
+			}
+		}
+	}
+
+	@Test
+	public void testMinAngleInDegrees() throws StructureException {
+
+		// the copies are rotated by 120 degrees, so the AFPs of different
+		// copies extend each other. Compared in radians against 20, no AFP
+		// extended another and no trace was found.
+		Atom[] ca = addGroups(getRepeats(3, 30));
+		TraceCalculator calc = new TraceCalculator(false, 0);
+		AFPChain afpChain = calc.align(ca);
+
+		assertTrue(calc.getBestTraceLength() > 1);
+		assertTrue(afpChain.getOptLength() > 0);
+	}
+
+	/**
+	 * Bytes allocated by the current thread for the distance and similarity
+	 * matrices of the fragment extraction, after a warm up run.
+	 */
+	private static long getExtractionAllocation(Atom[] ca, boolean compact)
+			throws StructureException {
+		com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory
+				.getThreadMXBean();
+		long allocated = 0;
+		for (int run = 0; run < 2; run++) {
+			TraceCalculator calc = new TraceCalculator(true, 0);
+			calc.setCompact(compact);
+			long start = bean.getThreadAllocatedBytes(Thread.currentThread()
+					.getId());
+			calc.extract(ca);
+			allocated = bean.getThreadAllocatedBytes(Thread.currentThread()
+					.getId()) - start;
+		}
+		return allocated;
+	}
+
+	@Test
+	public void testCompactMatricesAllocation() throws StructureException {
+
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		assumeTrue(bean instanceof com.sun.management.ThreadMXBean
+				&& ((com.sun.management.ThreadMXBean) bean)
+						.isThreadAllocatedMemorySupported());
+
+		// the dense distance and similarity matrices take 2*8*n^2 bytes
+		Atom[] ca = getRepeats(4, 150);
+		long dense = 16L * ca.length * ca.length;
+
+		assertTrue(getExtractionAllocation(ca, false) >= dense);
+		// the packed triangles take 2*4*n^2/2 bytes. The index of the trace
+		// search depends on the candidate AFPs, and the final step of the
+		// superclass still needs the dense matrices, so neither is bounded.
+		long compact = getExtractionAllocation(ca, true);
+		assertTrue("Compact matrices allocated " + compact + " bytes",
+				compact < dense / 3);
+	}
+
+	@Test
+	public void testParallelMatchesSequential() throws StructureException {
+
+		Atom[] ca = getRepeats(4, 25);
+
+		TraceCalculator sequential = new TraceCalculator(true, 0);
+		sequential.trace(ca);
+		TraceCalculator single = new TraceCalculator(true, 1);
+		single.trace(ca);
+		TraceCalculator multi = new TraceCalculator(true, 4);
+		multi.trace(ca);
+
+		// identical for any number of threads
+		int n = single.getBestTraceLength();
+		assertTrue(n > 1);
+		assertEquals(single.getTraces(), multi.getTraces());
+		assertEquals(n, multi.getBestTraceLength());
+		assertEquals(single.getBestTraceScore(), multi.getBestTraceScore(),
+				0.0);
+		assertEquals(n, sequential.getBestTraceLength());
+		assertEquals(sequential.getBestTraceScore(),
+				single.getBestTraceScore(), 0.0);
+		assertEquals(sequential.getCandidates(), single.getCandidates());
+		assertEquals(sequential.getCandidates(), multi.getCandidates());
+		for (int i = 0; i < n; i++) {
+			assertEquals(single.getBestTrace1()[i], multi.getBestTrace1()[i]);
+			assertEquals(single.getBestTrace2()[i], multi.getBestTrace2()[i]);
+			assertEquals(sequential.getBestTrace1()[i],
+					single.getBestTrace1()[i]);
+			assertEquals(sequential.getBestTrace2()[i],
+					single.getBestTrace2()[i]);
+		}
+	}
+
+	@Test
+	public void testIndexMatchesFullScan() throws StructureException {
+
+		// a tight maximum RMSD lowers the score cutoff of the candidates
+		CeParameters tight = new CeParameters();
+		tight.setMaxOptRMSD(1.0);
+
+		for (Atom[] ca : new Atom[][] { getRepeats(3, 30), getRepeats(4, 25),
+				getRepeats(8, 40) }) {
+			for (int mode = 0; mode < 5; mode++) {
+				TraceCalculator[] calcs = new TraceCalculator[2];
+				for (int c = 0; c < 2; c++) {
+					// full, triangular, parallel, banded and tight searches
+					calcs[c] = new TraceCalculator(mode == 4 ? tight
+							: new CeParameters(), mode != 0, mode == 2 ? 4 : 0);
+					calcs[c].setBanded(mode == 3);
+					calcs[c].setIndexed(c == 0);
+					calcs[c].trace(ca);
+				}
+				TraceCalculator index = calcs[0], scan = calcs[1];
+
+				String msg = ca.length + " atoms, mode " + mode;
+				int n = scan.getBestTraceLength();
+				assertEquals(msg, scan.getTraces(), index.getTraces());
+				assertEquals(msg, n, index.getBestTraceLength());
+				assertEquals(msg, scan.getBestTraceScore(),
+						index.getBestTraceScore(), 0.0);
+				assertEquals(msg, scan.getCandidates(), index.getCandidates());
+				for (int i = 0; i < n; i++) {
+					assertEquals(msg, scan.getBestTrace1()[i],
+							index.getBestTrace1()[i]);
+					assertEquals(msg, scan.getBestTrace2()[i],
+							index.getBestTrace2()[i]);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testTraceBudget() throws StructureException {
+
+		Atom[] ca = getRepeats(4, 25);
+		TraceCalculator full = new TraceCalculator(false, 0);
+		full.trace(ca);
+		assertTrue(full.isExhaustive());
+		TraceCalculator parallel = new TraceCalculator(false, 4);
+		parallel.trace(ca);
+		assertTrue(parallel.isExhaustive());
+
+		// the budget of the parameters truncates the sequential search
+		BudgetedCESymmParameters budget = new BudgetedCESymmParameters();
+		budget.setMaxTraces(1000);
+		TraceCalculator sequential = new TraceCalculator(budget, false, 0);
+		assertEquals(1000, sequential.getMaxTraces());
+		sequential.trace(ca);
+		assertFalse(sequential.isExhaustive());
+		assertTrue(sequential.getTraces() <= 1000 + 2);
+
+		// the parallel search stops replaying after the block that exceeds
+		// the budget, which traced at most the budget itself
+		parallel = new TraceCalculator(false, 4);
+		parallel.setMaxTraces(1000);
+		parallel.trace(ca);
+		assertFalse(parallel.isExhaustive());
+		assertTrue(parallel.getTraces() <= 2 * (1000 + 2));
+
+		// a new search resets the budget
+		parallel.setMaxTraces(BudgetedCESymmParameters.DEFAULT_MAX_TRACES);
+		parallel.trace(ca);
+		assertTrue(parallel.isExhaustive());
+
+		// the time budget, only if the search is long enough to exceed it
+		ca = getRepeats(8, 40);
+		for (int parallelism : new int[] { 0, 4 }) {
+			TraceCalculator timed = new TraceCalculator(false, parallelism);
+			long start = System.nanoTime();
+			timed.trace(ca);
+			long time = (System.nanoTime() - start) / 1000000;
+			assertTrue(timed.isExhaustive());
+			assumeTrue(time > 20);
+
+			timed.setMaxTraceTime(1);
+			timed.trace(ca);
+			assertFalse(timed.isExhaustive());
+		}
+	}
+
+	@Test
+	public void testParentMatricesReused() throws StructureException {
+
+		Atom[] ca = getRepeats(3, 30);
+		Atom[] sub = Arrays.copyOfRange(ca, 30, 90);
+
+		for (boolean compact : new boolean[] { false, true }) {
+
+			TraceCalculator parent = new TraceCalculator(true, 0);
+			parent.setCompact(compact);
+			parent.setKeepMatrices(true);
+			parent.trace(ca);
+
+			TraceCalculator child = new TraceCalculator(true, 0);
+			child.setCompact(compact);
+			child.setParent(parent, 30);
+			child.trace(sub);
+			TraceCalculator fresh = new TraceCalculator(true, 0);
+			fresh.setCompact(compact);
+			fresh.trace(sub);
+
+			// the matrices of the sub-range are the same
+			for (int i = 0; i < sub.length; i++) {
+				for (int j = 0; j < sub.length; j++) {
+					if (compact)
+						assertEquals(fresh.getPackedMatrix().get(i, j), child
+								.getPackedMatrix().get(i, j), 0.0);
+					else
+						assertEquals(fresh.getMatMatrix()[i][j],
+								child.getMatMatrix()[i][j], 0.0);
+				}
+			}
+
+			// and so is the best trace
+			int n = fresh.getBestTraceLength();
+			assertTrue(n > 1);
+			assertEquals(fresh.getTraces(), child.getTraces());
+			assertEquals(n, child.getBestTraceLength());
+			assertEquals(fresh.getBestTraceScore(), child.getBestTraceScore(),
+					0.0);
+			for (int i = 0; i < n; i++) {
+				assertEquals(fresh.getBestTrace1()[i], child.getBestTrace1()[i]);
+				assertEquals(fresh.getBestTrace2()[i], child.getBestTrace2()[i]);
+			}
+		}
+	}
+
+	@Test
+	public void testBandedSearch() throws StructureException {
+
+		// a clear periodicity restricts the seeds to the bands
+		Atom[] ca = getRepeats(8, 40);
+		TraceCalculator full = new TraceCalculator(true, 0);
+		full.trace(ca);
+		TraceCalculator banded = new TraceCalculator(true, 0);
+		banded.setBanded(true);
+		banded.trace(ca);
+
+		assertArrayEquals(new int[] { 40 }, banded.getRepeatLengths());
+		assertTrue(banded.getBestTraceLength() > 1);
+		assertTrue(banded.getTraces() < full.getTraces());
+
+		// the atoms have no sequence, so the contact map is used
+		TraceCalculator prior = new TraceCalculator(true, 0);
+		prior.setBanded(true);
+		prior.setSequencePrior(true);
+		prior.trace(ca);
+		assertFalse(prior.isSequencePriorHit());
+		assertArrayEquals(new int[] { 40 }, prior.getRepeatLengths());
+		assertEquals(banded.getTraces(), prior.getTraces());
+
+		// without a clear periodicity all the seeds are traced
+		ca = getRepeats(3, 30);
+		full = new TraceCalculator(true, 0);
+		full.trace(ca);
+		banded = new TraceCalculator(true, 0);
+		banded.setBanded(true);
+		banded.trace(ca);
+
+		assertEquals(0, banded.getRepeatLengths().length);
+		assertEquals(full.getTraces(), banded.getTraces());
+		assertEquals(full.getBestTraceLength(), banded.getBestTraceLength());
+		assertEquals(full.getBestTraceScore(), banded.getBestTraceScore(), 0.0);
+	}
+
+	@Test
+	public void testSequencePriorHit() throws StructureException {
+
+		// the 8 repeats of 40 residues have the same sequence
+		Atom[] ca = addGroups(getRepeats(8, 40));
+		String[] residues = { "ALA", "ARG", "ASN", "ASP", "CYS", "GLN", "GLU",
+				"GLY", "HIS", "ILE", "LEU", "LYS", "MET", "PHE", "PRO", "SER",
+				"THR", "TRP", "TYR", "VAL" };
+		Random rnd = new Random(1);
+		String[] repeat = new String[40];
+		for (int i = 0; i < repeat.length; i++)
+			repeat[i] = residues[rnd.nextInt(residues.length)];
+		for (int i = 0; i < ca.length; i++)
+			ca[i].getGroup().setPDBName(repeat[i % repeat.length]);
+
+		TraceCalculator contacts = new TraceCalculator(true, 0);
+		contacts.setBanded(true);
+		contacts.trace(ca);
+		assertFalse(contacts.isSequencePriorHit());
+
+		// the sequence predicts the same repeat length as the contact map
+		TraceCalculator prior = new TraceCalculator(true, 0);
+		prior.setBanded(true);
+		prior.setSequencePrior(true);
+		prior.trace(ca);
+		assertTrue(prior.isSequencePriorHit());
+		assertTrue(prior.getSequencePriorTime() > 0);
+		assertArrayEquals(new int[] { 40 }, prior.getRepeatLengths());
+		assertArrayEquals(contacts.getRepeatLengths(),
+				prior.getRepeatLengths());
+
+		// so the seeds and the traces are the same
+		int n = contacts.getBestTraceLength();
+		assertTrue(n > 1);
+		assertEquals(contacts.getTraces(), prior.getTraces());
+		assertEquals(n, prior.getBestTraceLength());
+		assertEquals(contacts.getBestTraceScore(), prior.getBestTraceScore(),
+				0.0);
+		assertEquals(contacts.getCandidates(), prior.getCandidates());
+		for (int i = 0; i < n; i++) {
+			assertEquals(contacts.getBestTrace1()[i], prior.getBestTrace1()[i]);
+			assertEquals(contacts.getBestTrace2()[i], prior.getBestTrace2()[i]);
+		}
+	}
+
+	@Test
+	public void testWarmStart() throws StructureException {
+
+		Atom[] ca = getRepeats(3, 30);
+		TraceCalculator previous = new TraceCalculator(true, 0);
+		previous.trace(ca);
+
+		// the next frame moves every atom a little
+		Random rnd = new Random(1);
+		Atom[] frame = new Atom[ca.length];
+		for (int i = 0; i < ca.length; i++) {
+			frame[i] = new AtomImpl();
+			frame[i].setName("CA");
+			double[] xyz = ca[i].getCoords();
+			for (int c = 0; c < 3; c++)
+				xyz[c] += 0.2 * rnd.nextGaussian();
+			frame[i].setCoords(xyz);
+		}
+		TraceCalculator cold = new TraceCalculator(true, 0);
+		cold.trace(frame);
+
+		// the aligned residues of the best trace of the previous frame
+		int winSize = new CeParameters().getWinSize();
+		int n = previous.getBestTraceLength();
+		int[][][] optAln = new int[1][2][n * winSize];
+		for (int i = 0; i < n; i++) {
+			for (int k = 0; k < winSize; k++) {
+				optAln[0][0][i * winSize + k] = previous.getBestTrace1()[i] + k;
+				optAln[0][1][i * winSize + k] = previous.getBestTrace2()[i] + k;
+			}
+		}
+		AFPChain alignment = new AFPChain("CE-Symm");
+		alignment.setOptAln(optAln);
+		alignment.setOptLen(new int[] { n * winSize });
+		alignment.setBlockNum(1);
+
+		TraceCalculator warm = new TraceCalculator(true, 0);
+		warm.setWarmStart(alignment);
+		warm.trace(frame);
+
+		assertTrue(warm.getTraces() < cold.getTraces());
+		assertEquals(cold.getBestTraceLength(), warm.getBestTraceLength());
+		assertEquals(cold.getBestTraceScore(), warm.getBestTraceScore(), 0.0);
+
+		// without aligned residues all the seeds are traced
+		warm = new TraceCalculator(true, 0);
+		warm.setWarmStart(new AFPChain("CE-Symm"));
+		warm.trace(frame);
+		assertEquals(cold.getTraces(), warm.getTraces());
+	}
+
+	@Test
+	public void testBands() {
+
+		// bands at +-40 and +-(160-40)
+		assertArrayEquals(new int[] { -136, -103, -56, -23, 24, 57, 104, 137 },
+				CESymmCalculator.getBands(new int[] { 40 }, 160, 160, 16));
+		// the overlapping bands at 45 and 100-45 are merged
+		assertArrayEquals(new int[] { -63, -36, 37, 64 },
+				CESymmCalculator.getBands(new int[] { 45 }, 100, 100, 8));
+	}
+}
@@ -0,0 +1,60 @@
+package org.biojava.nbio.structure.align.symm;
+
+import java.util.Random;
+
+import org.biojava.nbio.structure.Atom;
+import org.biojava.nbio.structure.AtomImpl;
+import org.biojava.nbio.structure.StructureException;
+import org.biojava.nbio.structure.align.ce.CeParameters;
+import org.biojava.nbio.structure.align.model.AFPChain;
+
+/**
+ * Time the compact matrices of the {@link CESymmCalculator} with the scalar
+ * and the Vector API {@link DistanceKernels}. Run with
+ * <code>--add-modules jdk.incubator.vector</code> to include the Vector API.
+ * <p>
+ * Usage: DistanceKernelsBenchmark [length] [repetitions]
+ */
+public class DistanceKernelsBenchmark {
+
+	public static void main(String[] args) throws StructureException {
+
+		int length = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		int repetitions = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+		Random rnd = new Random(0);
+		Atom[] ca = new Atom[length];
+		for (int i = 0; i < length; i++) {
+			ca[i] = new AtomImpl();
+			ca[i].setName("CA");
+			ca[i].setCoords(new double[] { 50 * rnd.nextGaussian(),
+					50 * rnd.nextGaussian(), 50 * rnd.nextGaussian() });
+		}
+
+		time("scalar", DistanceKernels.getScalar(), ca, repetitions);
+		if (DistanceKernels.getVector() != null)
+			time("vector", DistanceKernels.getVector(), ca, repetitions);
+		else
+			System.out.println("Vector API kernels not available");
+	}
+
+	private static void time(String name, DistanceKernels kernels, Atom[] ca,
+			int repetitions) throws StructureException {
+
+		CESymmCalculator calc = new CESymmCalculator(new CeParameters());
+		calc.setCompact(true);
+		calc.setKernels(kernels);
+
+		// warm up the JIT
+		for (int r = 0; r < 3; r++)
+			calc.extractFragments(new AFPChain("CE-Symm"), ca, ca);
+
+		long start = System.nanoTime();
+		for (int r = 0; r < repetitions; r++)
+			calc.extractFragments(new AFPChain("CE-Symm"), ca, ca);
+		long time = (System.nanoTime() - start) / repetitions;
+
+		System.out.println(String.format("%s: %d atoms, %.1f ms", name,
+				ca.length, time / 1e6));
+	}
+}
@@ -0,0 +1,112 @@
+package org.biojava.nbio.structure.align.symm;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeNotNull;
+
+import java.util.Random;
+
+import org.biojava.nbio.structure.Atom;
+import org.biojava.nbio.structure.AtomImpl;
+import org.biojava.nbio.structure.StructureException;
+import org.biojava.nbio.structure.align.ce.CeParameters;
+import org.biojava.nbio.structure.align.model.AFPChain;
+import org.junit.Test;
+
+/**
+ * Test that the Vector API and the scalar {@link DistanceKernels} give the
+ * same matrices, and that the compact matrices match the ones of the
+ * superclass. The Vector API tests are skipped if the kernels are not
+ * available.
+ */
+public class DistanceKernelsTest {
+
+	private static double[] getCoordinates(int n) {
+		Random rnd = new Random(0);
+		double[] coords = new double[3 * n];
+		for (int i = 0; i < coords.length; i++)
+			coords[i] = 50 * rnd.nextGaussian();
+		return coords;
+	}
+
+	private static Atom[] getAtoms(double[] coords) {
+		Atom[] ca = new Atom[coords.length / 3];
+		for (int i = 0; i < ca.length; i++) {
+			ca[i] = new AtomImpl();
+			ca[i].setName("CA");
+			ca[i].setCoords(new double[] { coords[3 * i], coords[3 * i + 1],
+					coords[3 * i + 2] });
+		}
+		return ca;
+	}
+
+	private static PackedMatrix getSimilarity(Atom[] ca,
+			DistanceKernels kernels) throws StructureException {
+		CESymmCalculator calc = new CESymmCalculator(new CeParameters());
+		calc.setCompact(true);
+		calc.setKernels(kernels);
+		calc.extractFragments(new AFPChain("CE-Symm"), ca, ca);
+		return calc.getPackedMatrix();
+	}
+
+	@Test
+	public void testScalarDistances() {
+
+		// odd length to cover the remainder loops
+		double[] coords = getCoordinates(37);
+		PackedMatrix dist = PackedMatrix.distances(coords,
+				DistanceKernels.getScalar());
+
+		for (int i = 0; i < 37; i++) {
+			for (int j = 0; j < 37; j++) {
+				double x = coords[3 * i] - coords[3 * j];
+				double y = coords[3 * i + 1] - coords[3 * j + 1];
+				double z = coords[3 * i + 2] - coords[3 * j + 2];
+				assertEquals(Math.sqrt(x * x + y * y + z * z),
+						dist.get(i, j), 1e-4);
+			}
+		}
+	}
+
+	@Test
+	public void testScalarMatchesFullMatrix() throws StructureException {
+
+		Atom[] ca = getAtoms(getCoordinates(41));
+		PackedMatrix packed = getSimilarity(ca, DistanceKernels.getScalar());
+
+		CESymmCalculator calc = new CESymmCalculator(new CeParameters());
+		calc.extractFragments(new AFPChain("CE-Symm"), ca, ca);
+		double[][] mat = calc.getMatMatrix();
+
+		for (int i = 0; i < ca.length; i++) {
+			for (int j = 0; j < ca.length; j++)
+				assertEquals(mat[i][j], packed.get(i, j), 1e-3);
+		}
+	}
+
+	@Test
+	public void testVectorMatchesScalar() throws StructureException {
+
+		DistanceKernels vector = DistanceKernels.getVector();
+		assumeNotNull(vector);
+		DistanceKernels scalar = DistanceKernels.getScalar();
+
+		double[] coords = getCoordinates(53);
+		assertArrayEquals(PackedMatrix.distances(coords, scalar).getValues(),
+				PackedMatrix.distances(coords, vector).getValues(), 0.0f);
+
+		float[] b = new float[29];
+		for (int i = 0; i < b.length; i++)
+			b[i] = (float) coords[i];
+		double[] sumScalar = new double[27];
+		double[] sumVector = new double[27];
+		for (int i = 0; i < 3; i++) {
+			scalar.addAbsDifferences(b[i], b, i, sumScalar, 27);
+			vector.addAbsDifferences(b[i], b, i, sumVector, 27);
+		}
+		assertArrayEquals(sumScalar, sumVector, 0.0);
+
+		Atom[] ca = getAtoms(coords);
+		assertArrayEquals(getSimilarity(ca, scalar).getValues(),
+				getSimilarity(ca, vector).getValues(), 0.0f);
+	}
+}
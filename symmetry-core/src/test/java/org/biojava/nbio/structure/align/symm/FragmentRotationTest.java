@@ -0,0 +1,219 @@
+package org.biojava.nbio.structure.align.symm;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import javax.vecmath.Matrix4d;
+import javax.vecmath.Point3d;
+
+import org.biojava.nbio.structure.align.util.RotationAxis;
+import org.biojava.nbio.structure.geometry.SuperPositions;
+import org.junit.Test;
+
+/**
+ * Test that the allocation-free fragment angle matches the angle of the full
+ * superposition.
+ */
+public class FragmentRotationTest {
+
+	@Test
+	public void testAngleMatchesSuperposition() {
+		Random rnd = new Random(0);
+		int n = 8;
+		for (int t = 0; t < 1000; t++) {
+			double[] coords1 = new double[3 * (n + 3)];
+			double[] coords2 = new double[3 * (n + 5)];
+			for (int i = 0; i < coords1.length; i++)
+				coords1[i] = rnd.nextGaussian() * 5;
+			for (int i = 0; i < coords2.length; i++)
+				coords2[i] = rnd.nextGaussian() * 5;
+
+			Point3d[] p1 = new Point3d[n];
+			Point3d[] p2 = new Point3d[n];
+			for (int i = 0; i < n; i++) {
+				p1[i] = new Point3d(coords1[3 * (i + 3)],
+						coords1[3 * (i + 3) + 1], coords1[3 * (i + 3) + 2]);
+				p2[i] = new Point3d(coords2[3 * (i + 5)],
+						coords2[3 * (i + 5) + 1], coords2[3 * (i + 5) + 2]);
+			}
+			Matrix4d transform = SuperPositions.superpose(p1, p2);
+			double expected = RotationAxis.getAngle(transform);
+
+			double angle = FragmentRotation.getAngle(coords1, 3, coords2, 5, n);
+			assertEquals(expected, angle, 1e-4);
+		}
+	}
+
+	@Test
+	public void testIdentity() {
+		double[] coords = new double[] { 0, 0, 0, 1, 0, 0, 0, 1, 0, 0, 0, 1 };
+		assertEquals(0.0, FragmentRotation.getAngle(coords, 0, coords, 0, 4),
+				1e-6);
+	}
+
+	@Test
+	public void testCompareAngleOfRigidRotation() {
+		Random rnd = new Random(1);
+		int n = 8;
+		double[] coords1 = new double[3 * n];
+		for (int i = 0; i < coords1.length; i++)
+			coords1[i] = rnd.nextGaussian() * 5;
+		double[] frames1 = FragmentRotation.getFrames(coords1, n, 0);
+		double[] local1 = FragmentRotation.getLocalCoordinates(coords1, n,
+				frames1);
+		assertEquals(9, frames1.length);
+		assertEquals(3 * n + 1, local1.length);
+
+		double cos20 = Math.cos(Math.toRadians(20));
+		for (double angle : new double[] { 0.1, 1.0 }) {
+			// rotate around the z axis and translate
+			double[] coords2 = new double[3 * n];
+			double c = Math.cos(angle), s = Math.sin(angle);
+			for (int i = 0; i < n; i++) {
+				double x = coords1[3 * i], y = coords1[3 * i + 1];
+				coords2[3 * i] = c * x - s * y + 3;
+				coords2[3 * i + 1] = s * x + c * y - 2;
+				coords2[3 * i + 2] = coords1[3 * i + 2] + 1;
+			}
+			double[] frames2 = FragmentRotation.getFrames(coords2, n, 0);
+			double[] local2 = FragmentRotation.getLocalCoordinates(coords2, n,
+					frames2);
+			assertEquals(angle < 0.35 ? -1 : 1, FragmentRotation.compareAngle(
+					frames1, local1, 0, frames2, local2, 0, n, cos20));
+		}
+
+		// ill-defined frames are undecided
+		double[] strict = FragmentRotation.getFrames(coords1, n, 1e6);
+		double[] local = FragmentRotation.getLocalCoordinates(coords1, n,
+				strict);
+		assertEquals(0, FragmentRotation.compareAngle(strict, local, 0,
+				frames1, local1, 0, n, cos20));
+	}
+
+	/**
+	 * The frame comparison must never contradict the exact angle. The
+	 * fragments come from protein-like CA traces, built from the virtual bond
+	 * angles and torsions of helices, strands and loops. The share of decided
+	 * comparisons is measured on the fragment pairs with similar internal
+	 * distances, the AFPs whose angle is checked in the search.
+	 */
+	@Test
+	public void testCompareAngleMatchesExact() {
+		Random rnd = new Random(2);
+		int n = 8;
+		double cos20 = Math.cos(Math.toRadians(20));
+		long afps = 0, decided = 0;
+		for (int t = 0; t < 4; t++) {
+			double[] coords1 = getTrace(rnd, 150);
+			double[] coords2 = getTrace(rnd, 150);
+			double[] frames1 = FragmentRotation.getFrames(coords1, n, 1.0);
+			double[] frames2 = FragmentRotation.getFrames(coords2, n, 1.0);
+			double[] local1 = FragmentRotation.getLocalCoordinates(coords1, n,
+					frames1);
+			double[] local2 = FragmentRotation.getLocalCoordinates(coords2, n,
+					frames2);
+			for (int i = 0; i < frames1.length / 9; i++) {
+				for (int j = 0; j < frames2.length / 9; j++) {
+					int cmp = FragmentRotation.compareAngle(frames1, local1, i,
+							frames2, local2, j, n, cos20);
+					if (getFragmentScore(coords1, i, coords2, j, n) < 3.0) {
+						afps++;
+						if (cmp != 0)
+							decided++;
+					}
+					if (cmp == 0)
+						continue;
+					double angle = FragmentRotation.getAngle(coords1, i,
+							coords2, j, n);
+					assertEquals(angle >= Math.toRadians(20) ? 1 : -1, cmp);
+				}
+			}
+		}
+		// the frames decide a useful share of the comparisons
+		assertTrue(decided > afps / 4);
+	}
+
+	/**
+	 * Mean difference of the internal distances of two fragments, as in the
+	 * AFP similarity of CE.
+	 */
+	private static double getFragmentScore(double[] coords1, int i,
+			double[] coords2, int j, int n) {
+		double score = 0;
+		for (int k = 0; k < n - 1; k++) {
+			score += Math.abs(getDistance(coords1, i + k, i + n - 1 - k)
+					- getDistance(coords2, j + k, j + n - 1 - k));
+		}
+		return score / n;
+	}
+
+	private static double getDistance(double[] c, int a, int b) {
+		double x = c[3 * a] - c[3 * b];
+		double y = c[3 * a + 1] - c[3 * b + 1];
+		double z = c[3 * a + 2] - c[3 * b + 2];
+		return Math.sqrt(x * x + y * y + z * z);
+	}
+
+	/**
+	 * Build a CA trace from virtual bond angles and torsions, alternating
+	 * helix, strand and loop segments.
+	 */
+	private static double[] getTrace(Random rnd, int length) {
+		double[] c = new double[3 * length];
+		c[3] = 3.8;
+		c[6] = 5.7;
+		c[7] = 3.8 * Math.sin(Math.toRadians(60));
+		int ss = 0, left = 0;
+		for (int i = 3; i < length; i++) {
+			if (left == 0) {
+				ss = rnd.nextInt(3);
+				left = ss == 0 ? 8 + rnd.nextInt(15) : ss == 1 ? 4 + rnd
+						.nextInt(6) : 2 + rnd.nextInt(6);
+			}
+			left--;
+			double theta, tau;
+			if (ss == 0) { // helix
+				theta = 91 + rnd.nextGaussian() * 3;
+				tau = 50 + rnd.nextGaussian() * 8;
+			} else if (ss == 1) { // strand
+				theta = 122 + rnd.nextGaussian() * 5;
+				tau = -170 + rnd.nextGaussian() * 15;
+			} else { // loop
+				theta = 85 + rnd.nextDouble() * 65;
+				tau = -180 + rnd.nextDouble() * 360;
+			}
+			theta = Math.toRadians(theta);
+			tau = Math.toRadians(tau);
+
+			// place atom i from the previous three (NeRF)
+			int a = 3 * (i - 3), b = 3 * (i - 2), p = 3 * (i - 1);
+			double[] bc = new double[3], ab = new double[3];
+			for (int k = 0; k < 3; k++) {
+				bc[k] = c[p + k] - c[b + k];
+				ab[k] = c[b + k] - c[a + k];
+			}
+			normalize(bc);
+			double[] nv = cross(ab, bc);
+			normalize(nv);
+			double[] m = cross(nv, bc);
+			double dx = -3.8 * Math.cos(theta);
+			double dy = 3.8 * Math.sin(theta) * Math.cos(tau);
+			double dz = 3.8 * Math.sin(theta) * Math.sin(tau);
+			for (int k = 0; k < 3; k++)
+				c[3 * i + k] = c[p + k] + bc[k] * dx + m[k] * dy + nv[k] * dz;
+		}
+		return c;
+	}
+
+	private static double[] cross(double[] a, double[] b) {
+		return new double[] { a[1] * b[2] - a[2] * b[1],
+				a[2] * b[0] - a[0] * b[2], a[0] * b[1] - a[1] * b[0] };
+	}
+
+	private static void normalize(double[] a) {
+		double norm = Math.sqrt(a[0] * a[0] + a[1] * a[1] + a[2] * a[2]);
+		for (int k = 0; k < 3; k++)
+			a[k] /= norm;
+	}
+}
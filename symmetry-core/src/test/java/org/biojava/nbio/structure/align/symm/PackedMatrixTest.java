@@ -0,0 +1,83 @@
+package org.biojava.nbio.structure.align.symm;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.biojava.nbio.structure.align.symm.PackedMatrix.Storage;
+import org.junit.Test;
+
+/**
+ * Test that the {@link PackedMatrix} gives the same values with every
+ * {@link Storage}, also through views.
+ */
+public class PackedMatrixTest {
+
+	@Test
+	public void testOffHeapMatchesHeap() {
+
+		Random rnd = new Random(0);
+		double[] coords = new double[3 * 40];
+		for (int i = 0; i < coords.length; i++)
+			coords[i] = 50 * rnd.nextGaussian();
+		DistanceKernels kernels = DistanceKernels.getScalar();
+
+		PackedMatrix heap = PackedMatrix.distances(coords, kernels,
+				Storage.HEAP);
+		assertFalse(heap.isOffHeap());
+
+		for (Storage storage : new Storage[] { Storage.DIRECT, Storage.MAPPED }) {
+
+			PackedMatrix dist = PackedMatrix.distances(coords, kernels,
+					storage);
+			assertTrue(dist.isOffHeap());
+			for (int i = 0; i < 40; i++) {
+				for (int j = 0; j < 40; j++)
+					assertEquals(heap.get(i, j), dist.get(i, j), 0.0);
+			}
+			assertArrayEquals(heap.getDiagonal(3), dist.getDiagonal(3), 0.0f);
+
+			// a view shares the values of the whole matrix
+			PackedMatrix view = new PackedMatrix(dist, 10, 20);
+			assertEquals(dist.get(12, 25), view.get(2, 15), 0.0);
+			view.fill(-1.0f);
+			assertEquals(-1.0, dist.get(29, 10), 0.0);
+			assertEquals(heap.get(30, 10), dist.get(30, 10), 0.0);
+			view.set(5, 0, 7.0f);
+			assertEquals(7.0, dist.get(10, 15), 0.0);
+
+			// full matrices are stored the same way
+			PackedMatrix full = new PackedMatrix(3, 5, storage);
+			full.set(2, 4, 1.5f);
+			assertEquals(1.5, full.get(2, 4), 0.0);
+			assertEquals(0.0, full.get(4 - 2, 0), 0.0);
+		}
+	}
+
+	@Test
+	public void testClose() {
+
+		for (Storage storage : new Storage[] { Storage.DIRECT, Storage.MAPPED }) {
+
+			PackedMatrix matrix = new PackedMatrix(30, storage);
+			matrix.fill(2.0f);
+
+			// closing a view does not free the values of the whole matrix
+			PackedMatrix view = new PackedMatrix(matrix, 5, 10);
+			view.close();
+			assertFalse(matrix.isClosed());
+			assertEquals(2.0, matrix.get(20, 3), 0.0);
+
+			matrix.close();
+			assertTrue(matrix.isClosed());
+			// closing twice does nothing
+			matrix.close();
+			assertTrue(matrix.isClosed());
+		}
+
+		PackedMatrix heap = new PackedMatrix(30);
+		heap.close();
+		assertFalse(heap.isClosed());
+		assertEquals(0.0, heap.get(1, 2), 0.0);
+	}
+}
@@ -0,0 +1,78 @@
+package org.biojava.nbio.structure.align.symm;
+
+import java.util.Random;
+
+/**
+ * Time the sequence prediction of repeat lengths of
+ * {@link RepeatPeriodicity} and measure its hit rate on random tandem-repeat
+ * sequences, whose repeats are mutated copies of a consensus with single
+ * residue insertions and deletions, and its false hit rate on random
+ * sequences of the same length.
+ * <p>
+ * Usage: RepeatPeriodicityBenchmark [repeats] [length] [trials]
+ */
+public class RepeatPeriodicityBenchmark {
+
+	private static final String RESIDUES = "ACDEFGHIKLMNPQRSTVWY";
+
+	public static void main(String[] args) {
+
+		int repeats = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+		int length = args.length > 1 ? Integer.parseInt(args[1]) : 33;
+		int trials = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+
+		Random rnd = new Random(0);
+		for (double identity : new double[] { 0.2, 0.3, 0.4, 0.5, 0.7 }) {
+			int hits = 0;
+			long time = 0;
+			for (int t = 0; t < trials; t++) {
+				String sequence = getTandemRepeats(rnd, repeats, length,
+						identity);
+				long start = System.nanoTime();
+				int[] lengths = RepeatPeriodicity.getSequenceRepeatLengths(
+						sequence, 16);
+				time += System.nanoTime() - start;
+				if (lengths.length > 0 && Math.abs(lengths[0] - length) <= 1)
+					hits++;
+			}
+			System.out.println(String.format(
+					"%d x %d, identity %.1f: hit rate %.2f, %.2f ms", repeats,
+					length, identity, (double) hits / trials, time / 1e6
+							/ trials));
+		}
+
+		int falseHits = 0;
+		for (int t = 0; t < trials; t++) {
+			String sequence = getTandemRepeats(rnd, 1, repeats * length, 0.0);
+			if (RepeatPeriodicity.getSequenceRepeatLengths(sequence, 16).length > 0)
+				falseHits++;
+		}
+		System.out.println(String.format("random %d: false hit rate %.2f",
+				repeats * length, (double) falseHits / trials));
+	}
+
+	/**
+	 * Copies of a random consensus, where each residue is kept with the given
+	 * identity or mutated, and inserted or deleted with a probability of 2%.
+	 */
+	private static String getTandemRepeats(Random rnd, int repeats,
+			int length, double identity) {
+		char[] consensus = new char[length];
+		for (int i = 0; i < length; i++)
+			consensus[i] = RESIDUES.charAt(rnd.nextInt(RESIDUES.length()));
+		StringBuilder sequence = new StringBuilder();
+		for (int r = 0; r < repeats; r++) {
+			for (int i = 0; i < length; i++) {
+				double indel = rnd.nextDouble();
+				if (indel < 0.02)
+					continue;
+				if (indel > 0.98)
+					sequence.append(RESIDUES.charAt(rnd.nextInt(RESIDUES
+							.length())));
+				sequence.append(rnd.nextDouble() < identity ? consensus[i]
+						: RESIDUES.charAt(rnd.nextInt(RESIDUES.length())));
+			}
+		}
+		return sequence.toString();
+	}
+}
@@ -0,0 +1,94 @@
+package org.biojava.nbio.structure.align.symm;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Test the prediction of repeat lengths from the contact map and the
+ * sequence periodicity.
+ */
+public class RepeatPeriodicityTest {
+
+	/**
+	 * Copies of a random walk, stacked along the z axis as in a solenoid.
+	 */
+	private static double[] getSolenoid(int repeats, int length) {
+		Random rnd = new Random(0);
+		double[] walk = new double[3 * length];
+		double x = 0, y = 0, z = 0;
+		for (int i = 0; i < length; i++) {
+			double dx = rnd.nextGaussian(), dy = rnd.nextGaussian(), dz = rnd
+					.nextGaussian();
+			double norm = Math.sqrt(dx * dx + dy * dy + dz * dz) / 3.8;
+			x += dx / norm;
+			y += dy / norm;
+			z += dz / norm;
+			walk[3 * i] = x;
+			walk[3 * i + 1] = y;
+			walk[3 * i + 2] = z;
+		}
+		double[] coords = new double[repeats * walk.length];
+		for (int r = 0; r < repeats; r++) {
+			for (int i = 0; i < walk.length; i++)
+				coords[r * walk.length + i] = walk[i] + (i % 3 == 2 ? 5 * r : 0);
+		}
+		return coords;
+	}
+
+	@Test
+	public void testRepeatLength() {
+
+		double[] coords = getSolenoid(6, 40);
+		double[] autocorrelation = RepeatPeriodicity
+				.getAutocorrelation(coords);
+		assertEquals(240, autocorrelation.length);
+		assertTrue(autocorrelation[40] > autocorrelation[30]);
+		assertTrue(autocorrelation[40] > autocorrelation[50]);
+
+		// the multiples of the repeat length are not repeat lengths
+		assertArrayEquals(new int[] { 40 },
+				RepeatPeriodicity.getRepeatLengths(coords, 16));
+	}
+
+	@Test
+	public void testNoContacts() {
+
+		// an extended chain has no contacts beyond the close residues
+		double[] coords = new double[3 * 100];
+		for (int i = 0; i < 100; i++)
+			coords[3 * i] = 3.8 * i;
+
+		assertEquals(0, RepeatPeriodicity.getRepeatLengths(coords, 16).length);
+	}
+
+	@Test
+	public void testSequenceRepeatLength() {
+
+		// 8 copies of a 33 residue consensus, with one mutation, one
+		// insertion and one deletion in each copy
+		String consensus = "DVNAKDKDGYTPLHLAAREGHLEIVKLLLEAGA";
+		Random rnd = new Random(0);
+		StringBuilder sequence = new StringBuilder();
+		for (int r = 0; r < 8; r++) {
+			StringBuilder repeat = new StringBuilder(consensus);
+			repeat.setCharAt(rnd.nextInt(33), 'W');
+			repeat.insert(rnd.nextInt(33), 'P');
+			repeat.deleteCharAt(rnd.nextInt(33));
+			sequence.append(repeat);
+		}
+		assertArrayEquals(new int[] { 33 },
+				RepeatPeriodicity.getSequenceRepeatLengths(
+						sequence.toString(), 16));
+
+		// a random sequence has no periodicity
+		String residues = "ACDEFGHIKLMNPQRSTVWY";
+		StringBuilder random = new StringBuilder();
+		for (int i = 0; i < 264; i++)
+			random.append(residues.charAt(rnd.nextInt(20)));
+		assertEquals(0, RepeatPeriodicity.getSequenceRepeatLengths(
+				random.toString(), 16).length);
+	}
+}
@@ -0,0 +1,72 @@
+package org.biojava.nbio.structure.align.symm;
+
+import java.io.File;
+
+import org.biojava.nbio.structure.Structure;
+import org.biojava.nbio.structure.StructureTools;
+import org.biojava.nbio.structure.io.CifFileReader;
+import org.biojava.nbio.structure.io.PDBFileReader;
+import org.biojava.nbio.structure.io.StructureIOFile;
+
+/**
+ * Compare the parse time and the retained heap of the
+ * {@link RepresentativeAtomReader} with the full biojava parsers, on local
+ * mmCIF or PDB files (e.g. the ribosome entries 4V6X or 4V9D). The retained
+ * heap is the used heap after a garbage collection while the parsed structure
+ * is still referenced.
+ * <p>
+ * Usage: RepresentativeAtomReaderBenchmark file [file ...]
+ */
+public class RepresentativeAtomReaderBenchmark {
+
+	public static void main(String[] args) throws Exception {
+
+		if (args.length < 1) {
+			System.err.println("Usage: RepresentativeAtomReaderBenchmark "
+					+ "file [file ...]");
+			System.exit(1);
+		}
+
+		for (String name : args) {
+			File file = new File(name);
+			String lower = name.toLowerCase();
+			StructureIOFile full = lower.contains(".cif") ? new CifFileReader()
+					: new PDBFileReader();
+
+			// warm up both parsers
+			RepresentativeAtomReader.read(file);
+			full.getStructure(file);
+
+			long heap = usedHeap();
+			long start = System.nanoTime();
+			Structure s = RepresentativeAtomReader.read(file);
+			long time = System.nanoTime() - start;
+			long retained = usedHeap() - heap;
+			int atoms = StructureTools.getRepresentativeAtomArray(s).length;
+			s = null;
+
+			heap = usedHeap();
+			start = System.nanoTime();
+			Structure f = full.getStructure(file);
+			long fullTime = System.nanoTime() - start;
+			long fullRetained = usedHeap() - heap;
+			int fullAtoms = StructureTools.getNrAtoms(f);
+			f = null;
+
+			System.out.println(String.format(
+					"%s: representative %d atoms %.0f ms %.1f MB, full %d "
+							+ "atoms %.0f ms %.1f MB, time %.1fx heap %.1fx",
+					file.getName(), atoms, time / 1e6, retained / 1e6,
+					fullAtoms, fullTime / 1e6, fullRetained / 1e6,
+					(double) fullTime / time, (double) fullRetained
+							/ Math.max(retained, 1)));
+		}
+	}
+
+	private static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++)
+			System.gc();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
@@ -0,0 +1,168 @@
+package org.biojava.nbio.structure.align.symm;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.biojava.nbio.structure.Atom;
+import org.biojava.nbio.structure.EntityType;
+import org.biojava.nbio.structure.Structure;
+import org.biojava.nbio.structure.StructureTools;
+import org.junit.Test;
+
+/**
+ * Test the extraction of representative atoms from mmCIF and PDB text.
+ */
+public class RepresentativeAtomReaderTest {
+
+	private static final String CIF = "data_TEST\n"
+			+ "#\n"
+			+ "loop_\n"
+			+ "_atom_site.group_PDB\n"
+			+ "_atom_site.id\n"
+			+ "_atom_site.type_symbol\n"
+			+ "_atom_site.label_atom_id\n"
+			+ "_atom_site.label_alt_id\n"
+			+ "_atom_site.label_comp_id\n"
+			+ "_atom_site.label_asym_id\n"
+			+ "_atom_site.Cartn_x\n"
+			+ "_atom_site.Cartn_y\n"
+			+ "_atom_site.Cartn_z\n"
+			+ "_atom_site.occupancy\n"
+			+ "_atom_site.B_iso_or_equiv\n"
+			+ "_atom_site.auth_seq_id\n"
+			+ "_atom_site.pdbx_PDB_ins_code\n"
+			+ "_atom_site.auth_asym_id\n"
+			+ "_atom_site.pdbx_PDB_model_num\n"
+			+ "ATOM   1 N  N     . ALA A 1.0 2.0 3.0 1.00 10.0 1 ? A 1\n"
+			+ "ATOM   2 C  CA    A ALA A 1.5 2.5 3.5 0.50 10.0 1 ? A 1\n"
+			+ "ATOM   3 C  CA    B ALA A 1.6 2.6 3.6 0.50 10.0 1 ? A 1\n"
+			+ "ATOM   4 C  CA    . GLY A 4.0 5.0 6.0 1.00 10.0 2 ? A 1\n"
+			+ "ATOM   5 C  \"C1'\" . G   B 7.0 8.0 9.0 1.00 10.0 1 ? C 1\n"
+			+ "HETATM 6 CA CA    . CA  C 0.0 0.0 0.0 1.00 10.0 1 ? A 1\n"
+			+ "ATOM   7 C  CA    . ALA A 9.0 9.0 9.0 1.00 10.0 1 ? A 2\n"
+			+ "#\n";
+
+	private static final String PDB = ""
+			+ "ATOM      1  N   ALA A   1       1.000   2.000   3.000  1.00 10.00           N\n"
+			+ "ATOM      2  CA  ALA A   1       1.500   2.500   3.500  1.00 10.00           C\n"
+			+ "ATOM      3  CA  GLY A   2       4.000   5.000   6.000  1.00 10.00           C\n"
+			+ "HETATM    4 CA    CA A 101       0.000   0.000   0.000  1.00 10.00          CA\n"
+			+ "ENDMDL\n"
+			+ "ATOM      5  CA  ALA A   1       9.000   9.000   9.000  1.00 10.00           C\n";
+
+	/** Ligand CA atoms of element C, in their own label_asym_id chain */
+	private static final String CIF_LIGAND = "data_1ABC\n"
+			+ "loop_\n"
+			+ "_atom_site.group_PDB\n"
+			+ "_atom_site.id\n"
+			+ "_atom_site.type_symbol\n"
+			+ "_atom_site.label_atom_id\n"
+			+ "_atom_site.label_comp_id\n"
+			+ "_atom_site.label_asym_id\n"
+			+ "_atom_site.label_seq_id\n"
+			+ "_atom_site.Cartn_x\n"
+			+ "_atom_site.Cartn_y\n"
+			+ "_atom_site.Cartn_z\n"
+			+ "_atom_site.auth_seq_id\n"
+			+ "_atom_site.auth_asym_id\n"
+			+ "_atom_site.pdbx_PDB_model_num\n"
+			+ "ATOM   1 C CA ALA A 1 1.0 2.0 3.0 1 A 1\n"
+			+ "ATOM   2 C CA GLY A 2 4.0 5.0 6.0 2 A 1\n"
+			+ "HETATM 3 C CA ACT C . 0.0 0.0 0.0 101 A 1\n"
+			+ "ATOM   4 C CA ALA B 1 7.0 8.0 9.0 1 B 1\n"
+			+ "ATOM   5 C CA ALA A 1 1.0 2.0 3.0 1 A 2\n"
+			+ "ATOM   6 C CA GLY A 2 4.0 5.0 6.0 2 A 2\n"
+			+ "ATOM   7 C CA ALA B 1 7.0 8.0 9.0 1 B 2\n"
+			+ "#\n";
+
+	@Test
+	public void testReadCif() throws IOException {
+		Structure s = RepresentativeAtomReader.read(new ByteArrayInputStream(
+				CIF.getBytes(StandardCharsets.US_ASCII)), true);
+
+		assertEquals(2, s.getChains().size());
+		assertEquals("A", s.getChains().get(0).getName());
+		assertEquals("C", s.getChains().get(1).getName());
+		assertEquals(2, s.getChains().get(0).getAtomGroups().size());
+		assertEquals(1, s.getChains().get(1).getAtomGroups().size());
+
+		// First alternate location is kept
+		Atom ca = s.getChains().get(0).getAtomGroup(0).getAtom(0);
+		assertEquals("CA", ca.getName());
+		assertEquals(1.5, ca.getX(), 1e-6);
+
+		Atom c1 = s.getChains().get(1).getAtomGroup(0).getAtom(0);
+		assertEquals("C1'", c1.getName());
+		assertEquals(9.0, c1.getZ(), 1e-6);
+	}
+
+	@Test
+	public void testReadPdb() throws IOException {
+		Structure s = RepresentativeAtomReader.read(new ByteArrayInputStream(
+				PDB.getBytes(StandardCharsets.US_ASCII)), false);
+
+		assertEquals(1, s.getChains().size());
+		assertEquals(2, s.getChains().get(0).getAtomGroups().size());
+		assertEquals(2, s.getChains().get(0).getAtomGroup(1)
+				.getResidueNumber().getSeqNum().intValue());
+	}
+
+	@Test
+	public void testPolymerEntities() throws IOException {
+		Structure s = RepresentativeAtomReader.read(new ByteArrayInputStream(
+				CIF_LIGAND.getBytes(StandardCharsets.US_ASCII)), true);
+
+		assertEquals("1ABC", s.getPdbId().getId());
+		assertEquals("1ABC", s.getPDBHeader().getPdbId().getId());
+		assertEquals(1, s.nrModels());
+
+		// the ligand chain C is skipped, the polymer chains are kept
+		assertEquals(2, s.getPolyChains().size());
+		assertEquals(2, s.getEntityInfos().size());
+		assertEquals(EntityType.POLYMER, s.getPolyChainByPDB("A")
+				.getEntityInfo().getType());
+		assertEquals(3, StructureTools.getRepresentativeAtomArray(s).length);
+	}
+
+	@Test
+	public void testReadAllModels() throws IOException {
+		Structure s = RepresentativeAtomReader.read(new ByteArrayInputStream(
+				CIF_LIGAND.getBytes(StandardCharsets.US_ASCII)), true, true);
+
+		assertEquals(2, s.nrModels());
+		assertEquals(2, s.getChains(1).size());
+		assertEquals(2, s.getEntityInfos().size());
+		assertEquals(2, s.getChains(1).get(0).getAtomGroups().size());
+		assertSame(s.getChains(0).get(0).getEntityInfo(), s.getChains(1)
+				.get(0).getEntityInfo());
+	}
+
+	@Test
+	public void testReadPdbLigands() throws IOException {
+		String pdb = ""
+				+ "HEADER    TRANSFERASE                             01-JAN-00   1XYZ              \n"
+				+ "ATOM      1  CA  ALA A   1       1.500   2.500   3.500  1.00 10.00           C\n"
+				+ "HETATM    2  CA  MSE A   2       4.000   5.000   6.000  1.00 10.00           C\n"
+				+ "TER       3      MSE A   2\n"
+				+ "HETATM    4  CA  ACT A 101       0.000   0.000   0.000  1.00 10.00           C\n";
+		Structure s = RepresentativeAtomReader.read(new ByteArrayInputStream(
+				pdb.getBytes(StandardCharsets.US_ASCII)), false);
+
+		assertEquals("1XYZ", s.getPdbId().getId());
+		// the modified residue before the TER is kept, the ligand is not
+		assertEquals(2, s.getPolyChainByPDB("A").getAtomGroups().size());
+	}
+
+	@Test
+	public void testTokenize() {
+		String[] tokens = new String[4];
+		int n = RepresentativeAtomReader.tokenize(
+				"ATOM 'it''s' \"C1'\" x", tokens);
+		assertEquals(4, n);
+		assertEquals("it''s", tokens[1]);
+		assertEquals("C1'", tokens[2]);
+	}
+}
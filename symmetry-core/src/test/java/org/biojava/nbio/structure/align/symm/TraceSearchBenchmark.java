@@ -0,0 +1,77 @@
+package org.biojava.nbio.structure.align.symm;
+
+import java.util.Random;
+
+import org.biojava.nbio.structure.Atom;
+import org.biojava.nbio.structure.AtomImpl;
+import org.biojava.nbio.structure.StructureException;
+import org.biojava.nbio.structure.align.ce.CeParameters;
+import org.biojava.nbio.structure.align.model.AFPChain;
+
+/**
+ * Time the trace search of the {@link CESymmCalculator} on noisy copies of a
+ * random walk. Run with <code>-XX:+PrintCompilation</code> to see which
+ * methods of the search are compiled, and add
+ * <code>-XX:+UnlockDiagnosticVMOptions -XX:+PrintInlining</code> to see
+ * which of them are inlined into each other.
+ * <p>
+ * Usage: TraceSearchBenchmark [repeats] [length] [repetitions]
+ */
+public class TraceSearchBenchmark {
+
+	public static void main(String[] args) throws StructureException {
+
+		int repeats = args.length > 0 ? Integer.parseInt(args[0]) : 6;
+		int length = args.length > 1 ? Integer.parseInt(args[1]) : 60;
+		int repetitions = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+
+		Random rnd = new Random(7);
+		double[][] walk = new double[length][];
+		double x = 12, y = 0, z = 0;
+		for (int i = 0; i < length; i++) {
+			double dx = rnd.nextGaussian(), dy = rnd.nextGaussian(), dz = rnd
+					.nextGaussian();
+			double norm = Math.sqrt(dx * dx + dy * dy + dz * dz) / 3.8;
+			x += dx / norm;
+			y += dy / norm;
+			z += dz / norm;
+			walk[i] = new double[] { x, y, z };
+		}
+		Atom[] ca = new Atom[repeats * length];
+		for (int r = 0; r < repeats; r++) {
+			double angle = 2 * Math.PI * r / repeats;
+			double c = Math.cos(angle), s = Math.sin(angle);
+			for (int i = 0; i < length; i++) {
+				Atom a = new AtomImpl();
+				a.setName("CA");
+				a.setCoords(new double[] {
+						c * walk[i][0] - s * walk[i][1] + 0.8 * rnd.nextGaussian(),
+						s * walk[i][0] + c * walk[i][1] + 0.8 * rnd.nextGaussian(),
+						walk[i][2] + 0.8 * rnd.nextGaussian() });
+				ca[r * length + i] = a;
+			}
+		}
+
+		CESymmCalculator calc = new CESymmCalculator(new CeParameters());
+		AFPChain afpChain = new AFPChain("CE-Symm");
+		calc.extractFragments(afpChain, ca, ca);
+
+		// warm up the JIT
+		for (int r = 0; r < 30; r++)
+			calc.traceFragmentMatrix(afpChain, ca, ca);
+
+		long min = Long.MAX_VALUE;
+		long total = 0;
+		for (int r = 0; r < repetitions; r++) {
+			long start = System.nanoTime();
+			calc.traceFragmentMatrix(afpChain, ca, ca);
+			long time = System.nanoTime() - start;
+			min = Math.min(min, time);
+			total += time;
+		}
+
+		System.out.println(String.format(
+				"%d atoms: mean %.1f ms, minimum %.1f ms per search", ca.length,
+				total / 1e6 / repetitions, min / 1e6));
+	}
+}
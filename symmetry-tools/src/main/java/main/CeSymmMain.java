@@ -5,10 +5,10 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Scanner;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Set;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -24,13 +24,14 @@ import org.apache.logging.log4j.core.LoggerContext;
 import org.apache.logging.log4j.core.config.Configuration;
 import org.apache.logging.log4j.core.config.LoggerConfig;
 import org.biojava.nbio.core.util.FileDownloadUtils;
+import org.biojava.nbio.structure.StructureException;
 import org.biojava.nbio.structure.StructureIdentifier;
 import org.biojava.nbio.structure.align.ce.CeParameters.ScoringStrategy;
 import org.biojava.nbio.structure.align.client.StructureName;
-import org.biojava.nbio.structure.align.util.AtomCache;
 import org.biojava.nbio.structure.align.util.CliTools;
 import org.biojava.nbio.structure.align.util.UserConfiguration;
 import org.biojava.nbio.structure.io.LocalPDBDirectory.ObsoleteBehavior;
+import org.biojava.nbio.structure.io.StructureFiletype;
 import org.biojava.nbio.structure.scop.ScopFactory;
 import org.biojava.nbio.structure.symmetry.gui.SymmetryGui;
 import org.biojava.nbio.structure.symmetry.internal.CESymmParameters;
@@ -40,7 +41,14 @@ import org.biojava.nbio.structure.symmetry.internal.CESymmParameters.SymmetryTyp
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import workers.AtomCacheProvider;
 import workers.CeSymmWorker;
+import workers.DomainIndex;
+import workers.DomainSplitter;
+import workers.EntryCache;
+import workers.FrameWorker;
+import workers.RepeatWindows;
+import workers.WorkerPool;
 import writers.CeSymmAxesWriter;
 import writers.CeSymmFastaWriter;
 import writers.CeSymmFatcatWriter;
@@ -145,11 +153,53 @@ public class CeSymmMain {
 			pdbFilePath = cli.getOptionValue("pdbfilepath");
 			pdbFilePath = FileDownloadUtils.expandUserHome(pdbFilePath);
 		}
+		StructureFiletype filetype = null;
+		if (cli.hasOption("filetype")) {
+			String strVal = cli.getOptionValue("filetype");
+			try {
+				filetype = StructureFiletype.valueOf(strVal.toUpperCase());
+			} catch (IllegalArgumentException e) {
+				logger.error("Illegal filetype. Requires on of "
+						+ CliTools.getEnumValuesAsString(StructureFiletype.class));
+				System.exit(1);
+			}
+		}
+
+		long entryCacheSize = EntryCache.DEFAULT_MAX_ATOMS;
+		if (cli.hasOption("entrycache")) {
+			String strVal = cli.getOptionValue("entrycache");
+			try {
+				entryCacheSize = Long.parseLong(strVal);
+				if (entryCacheSize < 0) {
+					logger.error("Invalid entrycache: " + strVal);
+					System.exit(1);
+				}
+			} catch (NumberFormatException e) {
+				logger.error("Invalid entrycache: " + strVal);
+				System.exit(1);
+			}
+		}
 
 		// SCOP version
+		String scopVersion = null;
 		if (cli.hasOption("scopversion")) {
-			String scopVersion = cli.getOptionValue("scopversion");
+			scopVersion = cli.getOptionValue("scopversion");
+		}
+
+		if (scopVersion != null)
 			ScopFactory.setScopDatabase(scopVersion);
+
+		// Domain index
+		DomainIndex domainIndex = null;
+		if (cli.hasOption("domainindex")) {
+			File indexFile = new File(FileDownloadUtils.expandUserHome(cli
+					.getOptionValue("domainindex")));
+			try {
+				domainIndex = loadDomainIndex(indexFile, names);
+			} catch (Exception e) {
+				logger.error("Could not load domain index " + indexFile, e);
+				System.exit(1);
+			}
 		}
 
 		// Logger control
@@ -468,6 +518,70 @@ public class CeSymmMain {
 				System.exit(1);
 			}
 		}
+		double prescreenMargin = -1;
+		if (cli.hasOption("prescreen")) {
+			String strVal = cli.getOptionValue("prescreen");
+			prescreenMargin = CeSymmWorker.DEFAULT_PRESCREEN_MARGIN;
+			if (strVal != null) {
+				try {
+					prescreenMargin = Double.parseDouble(strVal);
+					if (prescreenMargin < 0) {
+						logger.error("Invalid prescreen: " + strVal);
+						System.exit(1);
+					}
+				} catch (NumberFormatException e) {
+					logger.error("Invalid prescreen: " + strVal);
+					System.exit(1);
+				}
+			}
+		}
+		boolean sequencePrior = cli.hasOption("sequenceprior");
+		DomainSplitter splitter = null;
+		if (cli.hasOption("split") || cli.hasOption("splitdomains")) {
+			String strVal = cli.getOptionValue("split");
+			int minLength = DomainSplitter.DEFAULT_MIN_LENGTH;
+			if (strVal != null) {
+				try {
+					minLength = Integer.parseInt(strVal);
+					if (minLength < 1) {
+						logger.error("Invalid split: " + strVal);
+						System.exit(1);
+					}
+				} catch (NumberFormatException e) {
+					logger.error("Invalid split: " + strVal);
+					System.exit(1);
+				}
+			}
+			splitter = new DomainSplitter(minLength);
+			if (cli.hasOption("splitdomains")) {
+				File boundaries = new File(FileDownloadUtils.expandUserHome(cli
+						.getOptionValue("splitdomains")));
+				try {
+					splitter.readBoundaries(boundaries, domainIndex);
+				} catch (IOException e) {
+					logger.error("Could not read domain boundaries "
+							+ boundaries, e);
+					System.exit(1);
+				}
+			}
+		}
+		int windowLength = -1;
+		if (cli.hasOption("window")) {
+			String strVal = cli.getOptionValue("window");
+			windowLength = RepeatWindows.DEFAULT_WINDOW;
+			if (strVal != null) {
+				try {
+					windowLength = Integer.parseInt(strVal);
+					if (windowLength < 2) {
+						logger.error("Invalid window: " + strVal);
+						System.exit(1);
+					}
+				} catch (NumberFormatException e) {
+					logger.error("Invalid window: " + strVal);
+					System.exit(1);
+				}
+			}
+		}
 		if (cli.hasOption("refinedscorethreshold")) {
 			String strVal = cli.getOptionValue("refinedscorethreshold");
 			try {
@@ -527,6 +641,13 @@ public class CeSymmMain {
 
 		verifyParams(params);
 
+		// The representative atoms are only parsed from the first model
+		if (cli.hasOption("frames") && cli.hasOption("caonly")) {
+			logger.error("--caonly parses only the first model and cannot be "
+					+ "used with --frames");
+			System.exit(1);
+		}
+
 		// Done parsing arguments
 
 		// Configure atomcache
@@ -535,8 +656,10 @@ public class CeSymmMain {
 			cacheConfig.setPdbFilePath(pdbFilePath);
 			cacheConfig.setCacheFilePath(pdbFilePath);
 		}
-		AtomCache cache = new AtomCache(cacheConfig);
-		cache.setObsoleteBehavior(ObsoleteBehavior.FETCH_OBSOLETE);
+		AtomCacheProvider cache = new AtomCacheProvider(cacheConfig, filetype,
+				ObsoleteBehavior.FETCH_OBSOLETE);
+		EntryCache entryCache = new EntryCache(cache, entryCacheSize);
+		entryCache.setRepresentativeOnly(cli.hasOption("caonly"));
 
 		// Write the headers of the files
 		for (CeSymmWriter writer : writers) {
@@ -549,16 +672,39 @@ public class CeSymmMain {
 		long startTime = System.nanoTime();
 
 		// Start the workers in a fixed threaded pool
-		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		List<StructureIdentifier> ids = new ArrayList<StructureIdentifier>();
 		for (String name : names) {
-			StructureIdentifier id = new StructureName(name);
-			Runnable worker = new CeSymmWorker(id, params, cache, writers,
-					displayAlignment);
-			executor.execute(worker);
+			StructureIdentifier id = null;
+			if (domainIndex != null)
+				id = domainIndex.get(name);
+			if (id == null)
+				id = new StructureName(name);
+			ids.add(id);
+		}
+
+		WorkerPool pool = new WorkerPool(threads);
+		if (cli.hasOption("frames")) {
+			// Consecutive inputs in input order, in one batch per thread,
+			// loaded by the workers
+			int batchSize = Math.max(1, (ids.size() + threads - 1) / threads);
+			for (int f = 0; f < ids.size(); f += batchSize)
+				pool.submit(new FrameWorker(ids.subList(f,
+						Math.min(f + batchSize, ids.size())), params,
+						entryCache, writers));
+		} else {
+			// Jobs of the same PDB entry are scheduled together to share the parse
+			ids = EntryCache.groupByEntry(ids);
+			for (StructureIdentifier id : ids) {
+				CeSymmWorker worker = new CeSymmWorker(id, params, entryCache,
+						writers, displayAlignment);
+				worker.setPrescreenMargin(prescreenMargin);
+				worker.setSequencePrior(sequencePrior);
+				worker.setDomainSplitter(splitter, pool);
+				worker.setWindowLength(windowLength, pool);
+				pool.submit(worker);
+			}
 		}
-		executor.shutdown();
-		while (!executor.isTerminated())
-			Thread.sleep(100); // sleep .1 seconds
+		pool.awaitCompletion();
 
 		long elapsed = (System.nanoTime() - startTime) / 1000000;
 		long meanRT = (long) (elapsed / (float) names.size());
@@ -569,6 +715,32 @@ public class CeSymmMain {
 			writer.close();
 	}
 
+	/**
+	 * Open the domain index file for the classifications (SCOP, CATH, ECOD)
+	 * used by the input names, building it first if needed.
+	 *
+	 * @param file
+	 *            index file
+	 * @param names
+	 *            input structure names
+	 * @return the DomainIndex
+	 */
+	private static DomainIndex loadDomainIndex(File file, List<String> names)
+			throws IOException, StructureException {
+
+		Set<String> classifications = new LinkedHashSet<String>();
+		for (String name : names) {
+			StructureName sn = new StructureName(name);
+			if (sn.isScopName())
+				classifications.add(DomainIndex.SCOP);
+			else if (sn.isCathID())
+				classifications.add(DomainIndex.CATH);
+			else if (sn.isEcodDomain())
+				classifications.add(DomainIndex.ECOD);
+		}
+		return DomainIndex.load(file, classifications);
+	}
+
 	/**
 	 * Check dependencies between parameters
 	 * @param params
@@ -740,6 +912,34 @@ public class CeSymmMain {
 						+ "Can also be set with the PDB_DIR environmental variable.")
 				.build());
 
+		options.addOption(Option.builder()
+				.longOpt("filetype")
+				.hasArg(true)
+				.argName("str")
+				.desc( "File format used to fetch and parse structures from "
+						+ "the local mirror: "
+						+ CliTools.getEnumValuesAsString(StructureFiletype.class)
+						+ " [default: AtomCache default]")
+				.build());
+
+		options.addOption(Option.builder()
+				.longOpt("entrycache")
+				.hasArg(true)
+				.argName("int")
+				.desc( "Maximum number of atoms of parsed PDB entries kept in "
+						+ "memory and shared between chain and domain "
+						+ "identifiers of the same entry. 0 disables sharing "
+						+ "[default: " + EntryCache.DEFAULT_MAX_ATOMS + "].")
+				.build());
+
+		options.addOption(Option.builder()
+				.longOpt("caonly")
+				.hasArg(false)
+				.desc( "Parse only the representative atoms (CA and C1') of "
+						+ "PDB and mmCIF entries, to reduce parse time and "
+						+ "memory for large entries.")
+				.build());
+
 		options.addOption(Option.builder().longOpt("threads").hasArg(true)
 				.desc("Number of threads [default cores-1]")
 				.build());
@@ -832,6 +1032,76 @@ public class CeSymmMain {
 								+ "will be considered significant results "
 								+ "[default: 0.4, interval [0.0,1.0]].")
 				.build());
+
+		options.addOption(Option.builder()
+				.longOpt("prescreen")
+				.hasArg()
+				.optionalArg(true)
+				.argName("float")
+				.desc(
+						"Self-align every second residue first, and report "
+								+ "the structure as C1 without the full analysis "
+								+ "if the TM-score is below the unrefined score "
+								+ "threshold minus this margin [default: "
+								+ CeSymmWorker.DEFAULT_PRESCREEN_MARGIN + "].")
+				.build());
+
+		options.addOption(Option.builder()
+				.longOpt("sequenceprior")
+				.desc(
+						"Predict the repeat lengths of each structure from "
+								+ "the periodicity of its sequence, and log them "
+								+ "with the time of the prediction and whether "
+								+ "the sequence has a clear periodicity.")
+				.build());
+
+		options.addOption(Option.builder()
+				.longOpt("split")
+				.hasArg()
+				.optionalArg(true)
+				.argName("int")
+				.desc(
+						"Split chains of at least this number of residues "
+								+ "into domains, analyzed as separate jobs, and "
+								+ "add a summary row for the chain [default: "
+								+ DomainSplitter.DEFAULT_MIN_LENGTH + "].")
+				.build());
+
+		options.addOption(Option.builder()
+				.longOpt("splitdomains")
+				.hasArg(true)
+				.argName("file")
+				.desc(
+						"Domain boundaries to split the chains, one line per "
+								+ "domain with the chain and domain identifiers "
+								+ "(e.g. ECOD or CATH domains). Chains not in the "
+								+ "file are split with the built-in domain "
+								+ "parser. Implies --split.")
+				.build());
+
+		options.addOption(Option.builder()
+				.longOpt("frames")
+				.desc(
+						"Analyze the inputs as consecutive frames of a "
+								+ "trajectory, with every model of multi-model "
+								+ "inputs as a frame. The inputs are run in one "
+								+ "batch per thread, each frame bounded to the "
+								+ "symmetry of the previous one if it still fits. "
+								+ "Not compatible with --caonly.")
+				.build());
+
+		options.addOption(Option.builder()
+				.longOpt("window")
+				.hasArg()
+				.optionalArg(true)
+				.argName("int")
+				.desc(
+						"Analyze chains longer than this number of residues "
+								+ "in overlapping windows, in parallel, and merge "
+								+ "their tandem repeats into one result per chain "
+								+ "[default: " + RepeatWindows.DEFAULT_WINDOW
+								+ "].")
+				.build());
 		
 		options.addOption(Option.builder()
 				.longOpt("refinedscorethreshold")
@@ -898,6 +1168,20 @@ public class CeSymmMain {
 								+ "when resolving SCOP identifiers [defaults to latest SCOPe]")
 				.build());
 
+		options.addOption(Option.builder()
+				.longOpt("domainindex")
+				.hasArg(true)
+				.argName("file")
+				.desc(
+						"Memory-mapped index of SCOP, CATH and ECOD domain "
+								+ "boundaries used to resolve domain identifiers "
+								+ "without loading the classifications. It is "
+								+ "built from the classifications of the input "
+								+ "domains if the file does not exist, and "
+								+ "rebuilt if it does not hold their current "
+								+ "release (see --scopversion).")
+				.build());
+
 		return options;
 	}
 
@@ -26,7 +26,6 @@ import org.apache.logging.log4j.core.config.LoggerConfig;
 import org.biojava.nbio.core.util.FileDownloadUtils;
 import org.biojava.nbio.structure.StructureIdentifier;
 import org.biojava.nbio.structure.align.client.StructureName;
-import org.biojava.nbio.structure.align.util.AtomCache;
 import org.biojava.nbio.structure.align.util.CliTools;
 import org.biojava.nbio.structure.align.util.UserConfiguration;
 import org.biojava.nbio.structure.cluster.SubunitClustererMethod;
@@ -37,6 +36,7 @@ import org.biojava.nbio.structure.symmetry.core.QuatSymmetryParameters;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import workers.AtomCacheProvider;
 import workers.QuatSymmWorker;
 import writers.QuatSymmFastaWriter;
 import writers.QuatSymmStatsWriter;
@@ -137,6 +137,17 @@ public class QuatSymmMain {
 			pdbFilePath = cli.getOptionValue("pdbfilepath");
 			pdbFilePath = FileDownloadUtils.expandUserHome(pdbFilePath);
 		}
+		StructureFiletype filetype = StructureFiletype.CIF;
+		if (cli.hasOption("filetype")) {
+			String value = cli.getOptionValue("filetype");
+			try {
+				filetype = StructureFiletype.valueOf(value.toUpperCase());
+			} catch (IllegalArgumentException e) {
+				logger.error("Illegal filetype. Requires on of "
+						+ CliTools.getEnumValuesAsString(StructureFiletype.class));
+				System.exit(1);
+			}
+		}
 
 		// Logger control
 		if (cli.hasOption("verbose")) {
@@ -319,9 +330,8 @@ public class QuatSymmMain {
 			cacheConfig.setPdbFilePath(pdbFilePath);
 			cacheConfig.setCacheFilePath(pdbFilePath);
 		}
-		AtomCache cache = new AtomCache(cacheConfig);
-		cache.setObsoleteBehavior(ObsoleteBehavior.FETCH_OBSOLETE);
-		cache.setFiletype(StructureFiletype.CIF);
+		AtomCacheProvider cache = new AtomCacheProvider(cacheConfig, filetype,
+				ObsoleteBehavior.FETCH_OBSOLETE);
 
 		long startTime = System.nanoTime();
 
@@ -431,6 +441,16 @@ public class QuatSymmMain {
 						+ "Can also be set with the PDB_DIR environmental variable.")
 				.build());
 
+		options.addOption(Option
+				.builder()
+				.longOpt("filetype")
+				.hasArg(true)
+				.argName("str")
+				.desc("File format used to fetch and parse structures from "
+						+ "the local mirror: "
+						+ CliTools.getEnumValuesAsString(StructureFiletype.class)
+						+ " (default: CIF)").build());
+
 		options.addOption(Option.builder().longOpt("threads").hasArg(true)
 				.desc("Number of threads [default cores-1]").build());
 
@@ -0,0 +1,160 @@
+package workers;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.biojava.nbio.structure.Structure;
+import org.biojava.nbio.structure.StructureException;
+import org.biojava.nbio.structure.StructureIdentifier;
+import org.biojava.nbio.structure.align.util.AtomCache;
+import org.biojava.nbio.structure.align.util.UserConfiguration;
+import org.biojava.nbio.structure.io.BcifFileReader;
+import org.biojava.nbio.structure.io.CifFileReader;
+import org.biojava.nbio.structure.io.LocalPDBDirectory;
+import org.biojava.nbio.structure.io.LocalPDBDirectory.ObsoleteBehavior;
+import org.biojava.nbio.structure.io.PDBFileReader;
+import org.biojava.nbio.structure.io.StructureFiletype;
+
+/**
+ * {@link StructureProvider} that avoids sharing a single {@link AtomCache}
+ * between all the worker threads.
+ * <p>
+ * Each thread parses with its own AtomCache, so that parsing runs fully in
+ * parallel. Downloads to the local mirror are serialized per PDB entry with a
+ * fixed set of striped locks, so that every entry is downloaded at most once.
+ * The entries known to be in the mirror are recorded in a shared concurrent
+ * set, so that later requests skip the locks entirely.
+ */
+public class AtomCacheProvider implements StructureProvider {
+
+	/** Default number of lock stripes for the downloads */
+	public static final int DEFAULT_STRIPES = 64;
+
+	private final UserConfiguration config;
+	private final StructureFiletype filetype;
+	private final ObsoleteBehavior obsoleteBehavior;
+
+	private final ThreadLocal<AtomCache> caches;
+	private final ThreadLocal<LocalPDBDirectory> readers;
+	private final Object[] locks;
+	private final Set<String> mirrored;
+
+	/**
+	 * @param config
+	 *            configuration of the local mirror
+	 * @param filetype
+	 *            file format of the mirror, or null for the AtomCache default
+	 * @param obsoleteBehavior
+	 *            behavior for obsolete entries
+	 */
+	public AtomCacheProvider(UserConfiguration config,
+			StructureFiletype filetype, ObsoleteBehavior obsoleteBehavior) {
+		this.config = config;
+		this.filetype = filetype;
+		this.obsoleteBehavior = obsoleteBehavior;
+		this.caches = ThreadLocal.withInitial(this::createCache);
+		this.readers = ThreadLocal.withInitial(this::createReader);
+		this.locks = new Object[DEFAULT_STRIPES];
+		for (int i = 0; i < locks.length; i++)
+			locks[i] = new Object();
+		this.mirrored = ConcurrentHashMap.newKeySet();
+	}
+
+	private AtomCache createCache() {
+		AtomCache cache = new AtomCache(config);
+		cache.setObsoleteBehavior(obsoleteBehavior);
+		if (filetype != null)
+			cache.setFiletype(filetype);
+		return cache;
+	}
+
+	/**
+	 * @return the AtomCache of the calling thread
+	 */
+	public AtomCache getCache() {
+		return caches.get();
+	}
+
+	@Override
+	public Structure getStructure(StructureIdentifier id) throws IOException,
+			StructureException {
+		String pdbId = EntryCache.getEntryKey(id);
+		if (pdbId != null)
+			fetch(pdbId);
+		return getCache().getStructure(id);
+	}
+
+	/**
+	 * Load the full PDB entry.
+	 *
+	 * @param pdbId
+	 *            PDB ID
+	 * @return the Structure of the entry
+	 * @throws IOException
+	 * @throws StructureException
+	 */
+	public Structure getStructure(String pdbId) throws IOException,
+			StructureException {
+		fetch(pdbId);
+		return getCache().getStructure(pdbId);
+	}
+
+	/**
+	 * Make sure the PDB entry is in the local mirror, downloading it if
+	 * needed. Concurrent calls for the same entry download it only once.
+	 *
+	 * @param pdbId
+	 *            PDB ID
+	 * @return the local file, or null if the file format has no local mirror
+	 * @throws IOException
+	 */
+	public File fetch(String pdbId) throws IOException {
+		LocalPDBDirectory reader = getReader();
+		if (reader == null)
+			return null;
+		String key = pdbId.toUpperCase();
+		if (mirrored.contains(key))
+			return reader.prefetchStructure(pdbId); // no download needed
+
+		synchronized (locks[(key.hashCode() & 0x7fffffff) % locks.length]) {
+			File file = reader.prefetchStructure(pdbId);
+			mirrored.add(key);
+			return file;
+		}
+	}
+
+	/**
+	 * @return the mirror reader of the calling thread, or null if the file
+	 *         format has no local mirror
+	 */
+	LocalPDBDirectory getReader() {
+		return readers.get();
+	}
+
+	/**
+	 * Create the reader of the calling thread for the local mirror of the file
+	 * format in use, or null if the format has no local mirror.
+	 */
+	private LocalPDBDirectory createReader() {
+		AtomCache cache = getCache();
+		LocalPDBDirectory reader;
+		switch (cache.getFiletype()) {
+		case CIF:
+			reader = new CifFileReader(cache.getPath());
+			break;
+		case BCIF:
+			reader = new BcifFileReader(cache.getPath());
+			break;
+		case PDB:
+			reader = new PDBFileReader(cache.getPath());
+			break;
+		default:
+			return null;
+		}
+		reader.setFetchBehavior(cache.getFetchBehavior());
+		reader.setObsoleteBehavior(cache.getObsoleteBehavior());
+		return reader;
+	}
+}
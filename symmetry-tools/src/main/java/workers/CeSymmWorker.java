@@ -1,17 +1,24 @@
 package workers;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.biojava.nbio.structure.Atom;
 import org.biojava.nbio.structure.Structure;
 import org.biojava.nbio.structure.StructureException;
 import org.biojava.nbio.structure.StructureIdentifier;
-import org.biojava.nbio.structure.align.util.AtomCache;
+import org.biojava.nbio.structure.align.symm.RepeatPeriodicity;
+import org.biojava.nbio.structure.align.model.AFPChain;
+import org.biojava.nbio.structure.align.multiple.Block;
+import org.biojava.nbio.structure.align.multiple.MultipleAlignment;
 import org.biojava.nbio.structure.symmetry.gui.SymmetryDisplay;
 import org.biojava.nbio.structure.symmetry.internal.CESymmParameters;
 import org.biojava.nbio.structure.symmetry.internal.CeSymm;
 import org.biojava.nbio.structure.symmetry.internal.CeSymmResult;
+import org.biojava.nbio.structure.symmetry.internal.CESymmParameters.RefineMethod;
 import org.biojava.nbio.structure.symmetry.utils.SymmetryTools;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -24,6 +31,21 @@ import writers.CeSymmWriter;
  * <p>
  * If the 3D visualization is turned on, it creates a new thread with the Jmol
  * frame.
+ * <p>
+ * Optionally, a coarse self-alignment of every second representative atom is
+ * run first, without refinement nor optimization. If its TM-score is below
+ * the unrefined score threshold minus a margin, the structure is reported as
+ * asymmetric (C1) without running the full analysis.
+ * <p>
+ * Optionally, long chains are split into their domains (see
+ * {@link DomainSplitter}), which are analyzed as separate jobs in the
+ * {@link WorkerPool}. When the last domain is finished, a chain summary with
+ * the symmetry of the domain with the most repeats is written.
+ * <p>
+ * Optionally, chains longer than a window are analyzed in overlapping
+ * windows, as separate jobs, and the tandem repeats of the windows are merged
+ * into one result for the chain (see {@link RepeatWindows}). The memory of
+ * each job is bounded by the window length.
  * 
  * @author Aleix Lafita
  *
@@ -35,12 +57,44 @@ public class CeSymmWorker implements Runnable {
 
 	private StructureIdentifier id;
 	private CESymmParameters params;
-	private AtomCache cache;
+	private StructureProvider cache;
 	private List<CeSymmWriter> writers;
 	private boolean show3d;
 
+	/** Default margin below the unrefined score threshold of the prescreen */
+	public static final double DEFAULT_PRESCREEN_MARGIN = 0.1;
+
+	/** Start of the reason of the results rejected by the prescreen */
+	static final String PRESCREEN_REASON = "Prescreened";
+
+	/**
+	 * Minimum number of atoms of a structure to prescreen it, so that the
+	 * coarse self-alignment has at least half as many
+	 */
+	static final int MIN_PRESCREEN_ATOMS = 80;
+
+	/** Margin of the prescreen, or a negative value to disable it */
+	private double prescreenMargin = -1;
+
+	/** Whether to report the repeat lengths predicted from the sequence */
+	private boolean sequencePrior = false;
+
+	/** Splitter of long chains, or null to analyze the whole chain */
+	private DomainSplitter splitter;
+	private WorkerPool pool;
+
+	/** Number of residues of a window, or a negative value to disable */
+	private int windowLength = -1;
+
+	/** Chain of this domain job, or null for a chain job */
+	private ChainSummary chain;
+	private int domain;
+
+	/** Atoms of a chain analyzed in windows, until the windows are merged */
+	private Atom[] windowedAtoms;
+
 	public CeSymmWorker(StructureIdentifier id, CESymmParameters params,
-			AtomCache cache, List<CeSymmWriter> writers, boolean show3d) {
+			StructureProvider cache, List<CeSymmWriter> writers, boolean show3d) {
 		this.id = id;
 		this.cache = cache;
 		this.writers = writers;
@@ -48,11 +102,67 @@ public class CeSymmWorker implements Runnable {
 		this.params = params;
 	}
 
+	/**
+	 * Run a coarse self-alignment before the full analysis, and skip the full
+	 * analysis if its TM-score is below the unrefined score threshold minus
+	 * the margin. A negative margin disables the prescreen (default).
+	 *
+	 * @param prescreenMargin
+	 *            margin below the unrefined score threshold
+	 */
+	public void setPrescreenMargin(double prescreenMargin) {
+		this.prescreenMargin = prescreenMargin;
+	}
+
+	/**
+	 * Predict the repeat lengths of each structure from its sequence, as the
+	 * sequence prior of the banded CESymmCalculator, and log them with the
+	 * time of the prediction and whether the sequence has a clear
+	 * periodicity (default false). The analysis is not changed.
+	 *
+	 * @param sequencePrior
+	 */
+	public void setSequencePrior(boolean sequencePrior) {
+		this.sequencePrior = sequencePrior;
+	}
+
+	/**
+	 * Split long chains into domains, each analyzed as a separate job of the
+	 * pool. A null splitter disables the splitting (default).
+	 *
+	 * @param splitter
+	 *            the domain splitter
+	 * @param pool
+	 *            the pool running the domain jobs
+	 */
+	public void setDomainSplitter(DomainSplitter splitter, WorkerPool pool) {
+		this.splitter = splitter;
+		this.pool = pool;
+	}
+
+	/**
+	 * Analyze the chains longer than the window length in overlapping
+	 * windows, each a separate job of the pool, and merge their tandem
+	 * repeats. A negative length disables the windows (default).
+	 *
+	 * @param windowLength
+	 *            number of residues of a window
+	 * @param pool
+	 *            the pool running the window jobs
+	 */
+	public void setWindowLength(int windowLength, WorkerPool pool) {
+		this.windowLength = windowLength;
+		this.pool = pool;
+	}
+
 	@Override
 	public void run() {
 
+		CeSymmResult result = null;
+		boolean windowed = false;
 		try {
 			// Obtain the structure representation
+			long startTime = System.nanoTime();
 			Structure structure = null;
 			try {
 				structure = cache.getStructure(id);
@@ -63,31 +173,361 @@ public class CeSymmWorker implements Runnable {
 			}
 
 			Atom[] atoms = SymmetryTools.getRepresentativeAtoms(structure);
+			long loadTime = System.nanoTime();
 
-			// Run the symmetry analysis
-			CeSymmResult result = CeSymm.analyze(atoms, params);
+			// Analyze the domains of long chains as separate jobs
+			if (splitter != null && chain == null && split(atoms))
+				return;
 
-			// Write into the output files
-			for (CeSymmWriter writer : writers) {
-				try {
-					synchronized (writer) {
-						writer.writeResult(result);
-					}
-				} catch (Exception e) {
-					logger.error(
-							"Could not save results for " + id.getIdentifier(),
-							e);
-				}
+			// Analyze giant chains in windows, the last one writes the result
+			if (windowLength > 0 && atoms.length > windowLength) {
+				scanWindows(atoms);
+				windowed = true;
+				return;
 			}
 
+			if (sequencePrior)
+				logSequencePrior(atoms);
+
+			// Run the symmetry analysis, unless the prescreen rejects it
+			if (prescreenMargin >= 0)
+				result = prescreen(atoms);
+			boolean prescreened = result != null;
+			if (!prescreened)
+				result = CeSymm.analyze(atoms, params);
+			long analysisTime = System.nanoTime();
+			logger.info("Timing for {} ({} residues): load {} ms, analysis {} ms",
+					id, atoms.length, (loadTime - startTime) / 1000000,
+					(analysisTime - loadTime) / 1000000);
+
+			// Write into the output files
+			write(result);
+
 			// Display alignment in 3D Jmol
-			if (show3d) 
+			if (show3d && !prescreened)
 				SymmetryDisplay.display(result);
 			
 		} catch (Exception e) {
 			logger.error("Could not complete job: " + id.getIdentifier(), e);
 		} finally {
 			logger.info("Finished job: " + id);
+			if (!windowed)
+				finishDomain(result);
+		}
+	}
+
+	/**
+	 * The last domain of a split chain writes the chain summary.
+	 */
+	private void finishDomain(CeSymmResult result) {
+		if (chain != null && chain.finish(domain, result))
+			write(chain.summarize(params));
+	}
+
+	/**
+	 * Submit a job for each window of the chain to the pool.
+	 *
+	 * @param atoms
+	 *            representative atoms of the chain
+	 */
+	private void scanWindows(Atom[] atoms) {
+
+		RepeatWindows windows = new RepeatWindows(atoms.length, windowLength);
+		logger.info("Scanning {} ({} residues) in {} windows of {}", id,
+				atoms.length, windows.size(), windowLength);
+
+		// only the merge needs the whole chain, each job gets its window
+		windowedAtoms = atoms;
+		for (int w = 0; w < windows.size(); w++) {
+			int index = w;
+			Atom[] window = Arrays.copyOfRange(atoms, windows.getStart(w),
+					windows.getEnd(w));
+			pool.submit(() -> analyzeWindow(window, windows, index));
+		}
+	}
+
+	/**
+	 * Analyze one window of the chain. Only the repeats of significant
+	 * results are kept. The last window to finish merges the repeats of all
+	 * the windows and writes the result of the chain.
+	 */
+	private void analyzeWindow(Atom[] window, RepeatWindows windows, int w) {
+
+		List<int[]> repeats = new ArrayList<int[]>();
+		String group = "C1";
+		try {
+			CeSymmResult result = CeSymm.analyze(window, params);
+			if (result.isRefined() && result.isSignificant()) {
+				group = result.getSymmGroup();
+				// first and last aligned residue of each repeat
+				MultipleAlignment msa = result.getMultipleAlignment();
+				List<Block> blocks = msa.getBlocks();
+				for (int r = 0; r < msa.size(); r++)
+					repeats.add(new int[] { blocks.get(0).getStartResidue(r),
+							blocks.get(blocks.size() - 1).getFinalResidue(r) });
+				repeats.sort((a, b) -> Integer.compare(a[0], b[0]));
+			}
+		} catch (Exception e) {
+			logger.error("Could not analyze window " + w + " of "
+					+ id.getIdentifier(), e);
+		}
+		if (!windows.finish(w, repeats, group))
+			return;
+
+		CeSymmResult result = null;
+		try {
+			result = mergeWindows(windowedAtoms, windows);
+			windowedAtoms = null;
+			write(result);
+		} catch (Exception e) {
+			logger.error("Could not merge windows of " + id.getIdentifier(), e);
+		} finally {
+			logger.info("Finished windows: " + id);
+			finishDomain(result);
+		}
+	}
+
+	/**
+	 * Chain result with the tandem repeats merged from its windows.
+	 */
+	private CeSymmResult mergeWindows(Atom[] atoms, RepeatWindows windows) {
+
+		List<int[]> repeats = windows.merge();
+
+		CeSymmResult result = new CeSymmResult();
+		result.setParams(params);
+		result.setAtoms(atoms);
+		result.setRefined(false);
+		if (repeats.size() < 2) {
+			result.setNumRepeats(1);
+			result.setSymmGroup("C1");
+			result.setReason(String.format(
+					"Windows: no repeats in %d windows of %d", windows.size(),
+					windowLength));
+			return result;
+		}
+
+		StringBuilder ranges = new StringBuilder();
+		for (int[] repeat : repeats) {
+			if (ranges.length() > 0)
+				ranges.append(",");
+			ranges.append(atoms[repeat[0]].getGroup().getResidueNumber())
+					.append("-")
+					.append(atoms[repeat[1]].getGroup().getResidueNumber());
+		}
+		result.setNumRepeats(repeats.size());
+		result.setSymmGroup(windows.getGroup());
+		result.setReason(String.format(
+				"Windows: %d repeats merged from windows %d-%d of %d: %s",
+				repeats.size(), windows.getRunFrom() + 1,
+				windows.getRunTo() + 1, windows.size(), ranges));
+		return result;
+	}
+
+	/**
+	 * Write a result into the output files.
+	 */
+	private void write(CeSymmResult result) {
+		for (CeSymmWriter writer : writers) {
+			try {
+				synchronized (writer) {
+					writer.writeResult(result);
+				}
+			} catch (Exception e) {
+				logger.error("Could not save results for " + id.getIdentifier(),
+						e);
+			}
+		}
+	}
+
+	/**
+	 * Submit a job for each domain of the chain to the pool.
+	 *
+	 * @param atoms
+	 *            representative atoms of the chain
+	 * @return true if the chain was split, false if it has to be analyzed
+	 *         as a whole
+	 */
+	private boolean split(Atom[] atoms) throws StructureException {
+
+		List<StructureIdentifier> domains = splitter.split(id, atoms);
+		if (domains.isEmpty())
+			return false;
+
+		logger.info("Split {} ({} residues) into {} domains: {}", id,
+				atoms.length, domains.size(), domains);
+
+		ChainSummary summary = new ChainSummary(atoms, domains);
+		for (int d = 0; d < domains.size(); d++) {
+			CeSymmWorker worker = new CeSymmWorker(domains.get(d), params,
+					cache, writers, show3d);
+			worker.prescreenMargin = prescreenMargin;
+			worker.sequencePrior = sequencePrior;
+			worker.windowLength = windowLength;
+			worker.pool = pool;
+			worker.chain = summary;
+			worker.domain = d;
+			pool.submit(worker);
+		}
+		return true;
+	}
+
+	/**
+	 * Self-align every second representative atom of the structure, without
+	 * refinement nor optimization.
+	 *
+	 * @param atoms
+	 *            representative atoms of the structure
+	 * @return an asymmetric result if the coarse TM-score is below the
+	 *         unrefined score threshold minus the margin, null if the full
+	 *         analysis has to be run
+	 */
+	private CeSymmResult prescreen(Atom[] atoms) {
+
+		double tmScore = Double.NaN;
+		try {
+			tmScore = getCoarseTMScore(atoms, params);
+		} catch (StructureException e) {
+			logger.warn("Prescreen failed for " + id.getIdentifier()
+					+ ", running the full analysis", e);
+			return null;
+		}
+		double threshold = params.getUnrefinedScoreThreshold()
+				- prescreenMargin;
+		if (Double.isNaN(tmScore) || tmScore >= threshold)
+			return null;
+
+		logger.info("Prescreened {}: coarse TM-score {} below {}", id,
+				String.format("%.2f", tmScore),
+				String.format("%.2f", threshold));
+
+		CeSymmResult result = new CeSymmResult();
+		result.setParams(params);
+		result.setAtoms(atoms);
+		result.setNumRepeats(1);
+		result.setSymmGroup("C1");
+		result.setRefined(false);
+		result.setReason(String.format(PRESCREEN_REASON
+				+ ": TM-score of the coarse self-alignment %.2f below %.2f",
+				tmScore, threshold));
+		return result;
+	}
+
+	/**
+	 * Whether the result is the asymmetric result of a structure rejected by
+	 * the prescreen, without the full analysis.
+	 *
+	 * @param result
+	 * @return true if the structure was prescreened
+	 */
+	public static boolean isPrescreened(CeSymmResult result) {
+		return result.getSelfAlignment() == null && result.getReason() != null
+				&& result.getReason().startsWith(PRESCREEN_REASON + ":");
+	}
+
+	/**
+	 * Log the repeat lengths predicted from the sequence of the atoms, with
+	 * the minimum repeat length of the banded CESymmCalculator.
+	 */
+	private void logSequencePrior(Atom[] atoms) {
+		long start = System.nanoTime();
+		int[] lengths = RepeatPeriodicity.getSequenceRepeatLengths(
+				RepeatPeriodicity.getSequence(atoms), 2 * params.getWinSize());
+		long time = System.nanoTime() - start;
+		logger.info("Sequence prior for {}: {}, repeat lengths {} in {} ms",
+				id, lengths.length > 0 ? "hit" : "miss",
+				Arrays.toString(lengths), String.format("%.1f", time / 1e6));
+	}
+
+	/**
+	 * Self-align every second representative atom of a structure, with one
+	 * symmetry level and without refinement nor optimization.
+	 *
+	 * @param atoms
+	 *            representative atoms of the structure
+	 * @param params
+	 *            parameters of the full analysis
+	 * @return the TM-score of the coarse self-alignment, or NaN if the
+	 *         structure has less than {@link #MIN_PRESCREEN_ATOMS} atoms or
+	 *         there is no self-alignment
+	 * @throws StructureException
+	 */
+	static double getCoarseTMScore(Atom[] atoms, CESymmParameters params)
+			throws StructureException {
+
+		if (atoms.length < MIN_PRESCREEN_ATOMS)
+			return Double.NaN;
+
+		Atom[] coarse = new Atom[(atoms.length + 1) / 2];
+		for (int i = 0; i < coarse.length; i++)
+			coarse[i] = atoms[2 * i];
+
+		CESymmParameters coarseParams = params.clone();
+		coarseParams.setRefineMethod(RefineMethod.NOT_REFINED);
+		coarseParams.setOptimization(false);
+		coarseParams.setSymmLevels(1);
+
+		AFPChain selfAlignment = CeSymm.analyze(coarse, coarseParams)
+				.getSelfAlignment();
+		if (selfAlignment == null)
+			return Double.NaN;
+		return selfAlignment.getTMScore();
+	}
+
+	/**
+	 * Results of the domains of a split chain.
+	 */
+	private static class ChainSummary {
+
+		private final Atom[] atoms;
+		private final List<StructureIdentifier> domains;
+		private final CeSymmResult[] results;
+		private final AtomicInteger remaining;
+
+		ChainSummary(Atom[] atoms, List<StructureIdentifier> domains) {
+			this.atoms = atoms;
+			this.domains = domains;
+			this.results = new CeSymmResult[domains.size()];
+			this.remaining = new AtomicInteger(domains.size());
+		}
+
+		/**
+		 * Store the result of a domain, null if it failed.
+		 *
+		 * @return true if it was the last domain of the chain
+		 */
+		boolean finish(int domain, CeSymmResult result) {
+			results[domain] = result;
+			return remaining.decrementAndGet() == 0;
+		}
+
+		/**
+		 * The chain has the symmetry of the domain with the most repeats, and
+		 * the symmetry of each domain is listed in the reason.
+		 */
+		CeSymmResult summarize(CESymmParameters params) {
+
+			CeSymmResult best = null;
+			StringBuilder reason = new StringBuilder("Domains:");
+			for (int d = 0; d < results.length; d++) {
+				CeSymmResult result = results[d];
+				reason.append(d == 0 ? " " : "; ")
+						.append(domains.get(d).getIdentifier()).append(" ")
+						.append(result == null ? "failed" : result.getSymmGroup());
+				if (result != null
+						&& (best == null || result.getNumRepeats() > best
+								.getNumRepeats()))
+					best = result;
+			}
+
+			CeSymmResult summary = new CeSymmResult();
+			summary.setParams(params);
+			summary.setAtoms(atoms);
+			summary.setNumRepeats(best == null ? 1 : best.getNumRepeats());
+			summary.setSymmGroup(best == null ? "C1" : best.getSymmGroup());
+			summary.setRefined(false);
+			summary.setReason(reason.toString());
+			return summary;
 		}
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,440 @@
+package workers;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.biojava.nbio.structure.Structure;
+import org.biojava.nbio.structure.StructureException;
+import org.biojava.nbio.structure.StructureIdentifier;
+import org.biojava.nbio.structure.SubstructureIdentifier;
+import org.biojava.nbio.structure.align.util.AtomCache;
+import org.biojava.nbio.structure.cath.CathDatabase;
+import org.biojava.nbio.structure.cath.CathFactory;
+import org.biojava.nbio.structure.ecod.EcodDatabase;
+import org.biojava.nbio.structure.ecod.EcodFactory;
+import org.biojava.nbio.structure.scop.ScopCategory;
+import org.biojava.nbio.structure.scop.ScopDatabase;
+import org.biojava.nbio.structure.scop.ScopDescription;
+import org.biojava.nbio.structure.scop.ScopFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compact, memory-mapped index of SCOP, CATH and ECOD domain boundaries.
+ * <p>
+ * Resolving domain identifiers through {@link ScopFactory},
+ * {@link CathFactory} or {@link EcodFactory} loads and parses the whole
+ * classification at startup. The index is built once per release with
+ * {@link #write(File, String, Collection)} and then mapped read-only, so that
+ * each lookup by domain id is a single hash probe into the file.
+ * <p>
+ * File layout: a header with the release name and the table size, an open
+ * addressing hash table of record offsets, and the records, each holding the
+ * domain id and its canonical {@link SubstructureIdentifier} as UTF-8.
+ * <p>
+ * The release name lists the classification releases in the index, e.g.
+ * "SCOP 2.08,ECOD develop285", as returned by {@link #getCurrentRelease}.
+ */
+public class DomainIndex {
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(DomainIndex.class);
+
+	public static final String SCOP = "SCOP";
+	public static final String CATH = "CATH";
+	public static final String ECOD = "ECOD";
+
+	private static final int MAGIC = 0x53594d44; // SYMD
+	private static final int FORMAT = 1;
+
+	/** Maximum length in bytes of the strings, stored as unsigned shorts */
+	static final int MAX_STRING_LENGTH = 0xffff;
+
+	private final ByteBuffer buffer;
+	private final String release;
+	private final int mask;
+	private final int slotsStart;
+	private final int recordsStart;
+
+	private DomainIndex(ByteBuffer buffer) throws IOException {
+		this.buffer = buffer;
+		if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != FORMAT)
+			throw new IOException("Not a domain index file");
+		int len = buffer.getShort(8) & 0xffff;
+		byte[] name = new byte[len];
+		ByteBuffer b = buffer.duplicate();
+		b.position(10);
+		b.get(name);
+		this.release = new String(name, StandardCharsets.UTF_8);
+		int nSlots = buffer.getInt(10 + len);
+		this.mask = nSlots - 1;
+		this.slotsStart = 10 + len + 8;
+		this.recordsStart = slotsStart + 4 * nSlots;
+	}
+
+	/**
+	 * Map an index file into memory.
+	 *
+	 * @param file
+	 *            index file written by {@link #write(File, String, Collection)}
+	 * @return the DomainIndex
+	 * @throws IOException
+	 */
+	public static DomainIndex open(File file) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+				FileChannel channel = raf.getChannel()) {
+			MappedByteBuffer buffer = channel.map(
+					FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			return new DomainIndex(buffer);
+		}
+	}
+
+	/**
+	 * @return the release name the index was built from
+	 */
+	public String getRelease() {
+		return release;
+	}
+
+	/**
+	 * @return the classification releases the index was built from
+	 */
+	public List<String> getReleases() {
+		return Arrays.asList(release.split(","));
+	}
+
+	/**
+	 * Look up a domain by its identifier.
+	 *
+	 * @param domainId
+	 *            SCOP, CATH or ECOD domain identifier
+	 * @return a StructureIdentifier with the domain boundaries that keeps the
+	 *         domain name, or null if the domain is not in the index
+	 */
+	public StructureIdentifier get(String domainId) {
+		byte[] key = domainId.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer b = buffer.duplicate();
+		int slot = hash(domainId) & mask;
+		while (true) {
+			int offset = buffer.getInt(slotsStart + 4 * slot);
+			if (offset < 0)
+				return null;
+			int pos = recordsStart + offset;
+			int len = buffer.getShort(pos) & 0xffff;
+			if (len == key.length && matches(pos + 2, key)) {
+				pos += 2 + len;
+				byte[] range = new byte[buffer.getShort(pos) & 0xffff];
+				b.position(pos + 2);
+				b.get(range);
+				return new IndexedDomain(domainId, new SubstructureIdentifier(
+						new String(range, StandardCharsets.UTF_8)));
+			}
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	private boolean matches(int pos, byte[] key) {
+		for (int i = 0; i < key.length; i++) {
+			if (buffer.get(pos + i) != key[i])
+				return false;
+		}
+		return true;
+	}
+
+	private static int hash(String id) {
+		int h = id.hashCode();
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * Write an index file for the given domains. The file is written to a
+	 * temporary file first and then moved in place, so that an existing index
+	 * is replaced atomically.
+	 *
+	 * @param file
+	 *            output file
+	 * @param release
+	 *            name of the classification release(s)
+	 * @param domains
+	 *            domains to index. The canonical form of each one is stored.
+	 * @throws IOException
+	 * @throws StructureException
+	 */
+	public static void write(File file, String release,
+			Collection<? extends StructureIdentifier> domains)
+			throws IOException, StructureException {
+
+		int nSlots = Integer.highestOneBit(Math.max(2 * domains.size(), 2)) * 2;
+		int[] slots = new int[nSlots];
+		for (int i = 0; i < nSlots; i++)
+			slots[i] = -1;
+
+		// Serialize the records and fill the hash table
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream records = new DataOutputStream(bytes);
+		for (StructureIdentifier domain : domains) {
+			String id = domain.getIdentifier();
+			int slot = hash(id) & (nSlots - 1);
+			while (slots[slot] >= 0)
+				slot = (slot + 1) & (nSlots - 1);
+			slots[slot] = records.size();
+			writeString(records, id);
+			writeString(records, domain.toCanonical().getIdentifier());
+		}
+		records.flush();
+
+		File dir = file.getAbsoluteFile().getParentFile();
+		File tmp = File.createTempFile(file.getName(), ".tmp", dir);
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(tmp)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(FORMAT);
+			writeString(out, release);
+			out.writeInt(nSlots);
+			out.writeInt(domains.size());
+			for (int slot : slots)
+				out.writeInt(slot);
+			bytes.writeTo(out);
+		} catch (IOException e) {
+			tmp.delete();
+			throw e;
+		}
+		Files.move(tmp.toPath(), file.toPath(),
+				StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		logger.info("Wrote {} domains of release {} to {}", domains.size(),
+				release, file);
+	}
+
+	private static void writeString(DataOutputStream out, String s)
+			throws IOException {
+		byte[] b = s.getBytes(StandardCharsets.UTF_8);
+		if (b.length > MAX_STRING_LENGTH)
+			throw new IOException("String of " + b.length
+					+ " bytes too long for the domain index: "
+					+ s.substring(0, 50) + "...");
+		out.writeShort(b.length);
+		out.write(b);
+	}
+
+	/**
+	 * Open the index file, building it first if it does not exist or if it
+	 * does not hold the current release of every classification requested.
+	 * A rebuilt index also keeps the classifications of the previous file, at
+	 * their current release.
+	 *
+	 * @param file
+	 *            index file
+	 * @param classifications
+	 *            classifications in use: {@link #SCOP}, {@link #CATH} or
+	 *            {@link #ECOD}
+	 * @return the DomainIndex
+	 * @throws IOException
+	 * @throws StructureException
+	 */
+	public static DomainIndex load(File file,
+			Collection<String> classifications) throws IOException,
+			StructureException {
+		return load(file, classifications, new DomainSource() {
+			@Override
+			public String getCurrentRelease(String classification) {
+				return DomainIndex.getCurrentRelease(classification);
+			}
+
+			@Override
+			public List<StructureIdentifier> getDomains(String classification)
+					throws IOException {
+				return DomainIndex.getDomains(classification);
+			}
+		});
+	}
+
+	static DomainIndex load(File file, Collection<String> requested,
+			DomainSource source) throws IOException, StructureException {
+
+		Set<String> classifications = new LinkedHashSet<String>(requested);
+		if (file.exists()) {
+			DomainIndex index = open(file);
+			List<String> releases = index.getReleases();
+			for (String release : releases)
+				classifications.add(release.split(" ")[0]);
+			boolean current = true;
+			for (String classification : classifications) {
+				current &= releases.contains(source
+						.getCurrentRelease(classification));
+			}
+			if (current)
+				return index;
+			logger.info("Domain index {} was built from {}, rebuilding it",
+					file, index.getRelease());
+		}
+
+		List<StructureIdentifier> domains = new ArrayList<StructureIdentifier>();
+		List<String> releases = new ArrayList<String>();
+		for (String classification : classifications) {
+			domains.addAll(source.getDomains(classification));
+			releases.add(source.getCurrentRelease(classification));
+		}
+		logger.info("Building domain index {} with {} domains", file,
+				domains.size());
+		write(file, String.join(",", releases), domains);
+		return open(file);
+	}
+
+	/**
+	 * Name the release of a classification that is currently in use, which
+	 * for SCOP depends on {@link ScopFactory#setScopDatabase(String)}.
+	 *
+	 * @param classification
+	 *            one of {@link #SCOP}, {@link #CATH} or {@link #ECOD}
+	 * @return the release name, e.g. "SCOP 2.08"
+	 */
+	public static String getCurrentRelease(String classification) {
+		switch (classification) {
+		case SCOP:
+			return SCOP + " " + ScopFactory.getSCOP().getScopVersion();
+		case CATH:
+			return CATH + " " + CathFactory.DEFAULT_VERSION;
+		case ECOD:
+			return ECOD + " " + EcodFactory.DEFAULT_VERSION;
+		default:
+			throw new IllegalArgumentException("Unknown classification "
+					+ classification);
+		}
+	}
+
+	/**
+	 * Collect all domains of the current release of a classification.
+	 *
+	 * @param classification
+	 *            one of {@link #SCOP}, {@link #CATH} or {@link #ECOD}
+	 * @return list of domains
+	 * @throws IOException
+	 */
+	public static List<StructureIdentifier> getDomains(String classification)
+			throws IOException {
+		switch (classification) {
+		case SCOP:
+			return getScopDomains();
+		case CATH:
+			return getCathDomains();
+		case ECOD:
+			return getEcodDomains();
+		default:
+			throw new IllegalArgumentException("Unknown classification "
+					+ classification);
+		}
+	}
+
+	/**
+	 * Collect all domains of the current SCOP version, as set with
+	 * {@link ScopFactory#setScopDatabase(String)}.
+	 *
+	 * @return list of SCOP domains
+	 */
+	public static List<StructureIdentifier> getScopDomains() {
+		ScopDatabase scop = ScopFactory.getSCOP();
+		List<StructureIdentifier> domains = new ArrayList<StructureIdentifier>();
+		for (ScopDescription c : scop.getByCategory(ScopCategory.Class))
+			domains.addAll(scop.getScopDomainsBySunid(c.getSunID()));
+		return domains;
+	}
+
+	/**
+	 * Collect all domains of the default CATH version.
+	 *
+	 * @return list of CATH domains
+	 */
+	public static List<StructureIdentifier> getCathDomains() {
+		CathDatabase cath = CathFactory.getCathDatabase();
+		List<StructureIdentifier> domains = new ArrayList<StructureIdentifier>();
+		for (String node : new String[] { "1", "2", "3", "4", "6" })
+			domains.addAll(cath.getDomainsByNodeId(node));
+		return domains;
+	}
+
+	/**
+	 * Collect all domains of the default ECOD version.
+	 *
+	 * @return list of ECOD domains
+	 * @throws IOException
+	 */
+	public static List<StructureIdentifier> getEcodDomains()
+			throws IOException {
+		EcodDatabase ecod = EcodFactory.getEcodDatabase();
+		return new ArrayList<StructureIdentifier>(ecod.getAllDomains());
+	}
+
+	/**
+	 * Current release and domains of each classification.
+	 */
+	interface DomainSource {
+
+		String getCurrentRelease(String classification);
+
+		List<StructureIdentifier> getDomains(String classification)
+				throws IOException;
+	}
+
+	/**
+	 * A domain resolved from the index. It keeps the domain name as
+	 * identifier and delegates to its canonical boundaries.
+	 */
+	static class IndexedDomain implements StructureIdentifier {
+
+		private static final long serialVersionUID = 1L;
+
+		private final String name;
+		private final SubstructureIdentifier canonical;
+
+		IndexedDomain(String name, SubstructureIdentifier canonical) {
+			this.name = name;
+			this.canonical = canonical;
+		}
+
+		@Override
+		public String getIdentifier() {
+			return name;
+		}
+
+		@Override
+		public SubstructureIdentifier toCanonical() {
+			return canonical;
+		}
+
+		@Override
+		public Structure reduce(Structure input) throws StructureException {
+			Structure s = canonical.reduce(input);
+			s.setStructureIdentifier(this);
+			return s;
+		}
+
+		@Override
+		public Structure loadStructure(AtomCache cache)
+				throws StructureException, IOException {
+			return canonical.loadStructure(cache);
+		}
+
+		@Override
+		public String toString() {
+			return name;
+		}
+	}
+}
@@ -0,0 +1,160 @@
+package workers;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.biojava.nbio.structure.Atom;
+import org.biojava.nbio.structure.Group;
+import org.biojava.nbio.structure.ResidueRange;
+import org.biojava.nbio.structure.StructureException;
+import org.biojava.nbio.structure.StructureIdentifier;
+import org.biojava.nbio.structure.align.client.StructureName;
+import org.biojava.nbio.structure.domain.LocalProteinDomainParser;
+import org.biojava.nbio.structure.domain.pdp.Domain;
+import org.biojava.nbio.structure.domain.pdp.Segment;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Splits long chains into structural domains, so that CE-Symm analyzes each
+ * domain separately instead of aligning unrelated domains. The cost of the
+ * self-alignment then drops from the square of the chain length to the sum
+ * of the squares of the domain lengths.
+ * <p>
+ * The domain boundaries can be supplied in a file, as for example ECOD or
+ * CATH domains. The chains without supplied boundaries are split with the
+ * built-in Protein Domain Parser (PDP) of BioJava. Chains shorter than the
+ * minimum length are never split.
+ */
+public class DomainSplitter {
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(DomainSplitter.class);
+
+	/** Default minimum number of residues of a chain to be split */
+	public static final int DEFAULT_MIN_LENGTH = 1000;
+
+	private final int minLength;
+	/** Supplied domains of each chain identifier */
+	private final Map<String, List<StructureIdentifier>> boundaries;
+
+	/**
+	 * Split the chains with the built-in domain parser.
+	 *
+	 * @param minLength
+	 *            minimum number of residues of a chain to be split
+	 */
+	public DomainSplitter(int minLength) {
+		this.minLength = minLength;
+		this.boundaries = new HashMap<String, List<StructureIdentifier>>();
+	}
+
+	/**
+	 * Read the domain boundaries of the chains from a file. Each line has the
+	 * identifier of a chain, as given in the input, and the identifier of one
+	 * of its domains, separated by whitespace. The domain identifier is
+	 * either a domain name, like e1mjcA1, or a residue range, like
+	 * 1MJC.A_1-69. Lines beginning with '#' are ignored.
+	 *
+	 * @param file
+	 *            the boundaries file
+	 * @param index
+	 *            index to resolve the domain names, or null
+	 * @throws IOException
+	 */
+	public void readBoundaries(File file, DomainIndex index) throws IOException {
+		int domains = 0;
+		try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#"))
+					continue;
+				String[] fields = line.split("\\s+");
+				if (fields.length < 2)
+					throw new IOException("Expected a chain and a domain in "
+							+ file + ": " + line);
+				StructureIdentifier domain = null;
+				if (index != null)
+					domain = index.get(fields[1]);
+				if (domain == null)
+					domain = new StructureName(fields[1]);
+				List<StructureIdentifier> chain = boundaries.get(fields[0]);
+				if (chain == null) {
+					chain = new ArrayList<StructureIdentifier>();
+					boundaries.put(fields[0], chain);
+				}
+				chain.add(domain);
+				domains++;
+			}
+		}
+		logger.info("Read {} domains of {} chains from {}", domains,
+				boundaries.size(), file);
+	}
+
+	/**
+	 * @return the minimum number of residues of a chain to be split
+	 */
+	public int getMinLength() {
+		return minLength;
+	}
+
+	/**
+	 * Split a chain into its domains.
+	 *
+	 * @param id
+	 *            identifier of the chain
+	 * @param atoms
+	 *            representative atoms of the chain
+	 * @return the identifiers of the domains, or an empty list if the chain
+	 *         is too short or has a single domain
+	 * @throws StructureException
+	 */
+	public List<StructureIdentifier> split(StructureIdentifier id,
+			Atom[] atoms) throws StructureException {
+
+		if (atoms.length < minLength)
+			return Collections.emptyList();
+
+		List<StructureIdentifier> domains = boundaries.get(id.getIdentifier());
+		if (domains == null)
+			domains = parseDomains(id, atoms);
+		if (domains.size() < 2)
+			return Collections.emptyList();
+		return domains;
+	}
+
+	/**
+	 * Assign the domains of the chain with the built-in domain parser. The
+	 * domains are named by their residue ranges in the PDB entry.
+	 */
+	private static List<StructureIdentifier> parseDomains(
+			StructureIdentifier id, Atom[] atoms) throws StructureException {
+
+		// the domains can only be named within a PDB entry
+		Object pdbId = id.toCanonical().getPdbId();
+		if (pdbId == null)
+			return Collections.emptyList();
+
+		List<StructureIdentifier> domains = new ArrayList<StructureIdentifier>();
+		for (Domain domain : LocalProteinDomainParser.suggestDomains(atoms)) {
+			List<ResidueRange> ranges = new ArrayList<ResidueRange>();
+			for (Segment segment : domain.getSegments()) {
+				Group first = atoms[segment.getFrom()].getGroup();
+				Group last = atoms[segment.getTo()].getGroup();
+				ranges.add(new ResidueRange(first.getChain().getName(), first
+						.getResidueNumber(), last.getResidueNumber()));
+			}
+			domains.add(new StructureName(pdbId + "."
+					+ ResidueRange.toString(ranges)));
+		}
+		return domains;
+	}
+}
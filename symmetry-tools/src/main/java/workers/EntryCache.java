@@ -0,0 +1,372 @@
+package workers;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.biojava.nbio.structure.Chain;
+import org.biojava.nbio.structure.PDBHeader;
+import org.biojava.nbio.structure.PdbId;
+import org.biojava.nbio.structure.ResidueRange;
+import org.biojava.nbio.structure.Structure;
+import org.biojava.nbio.structure.StructureException;
+import org.biojava.nbio.structure.StructureIdentifier;
+import org.biojava.nbio.structure.StructureImpl;
+import org.biojava.nbio.structure.StructureTools;
+import org.biojava.nbio.structure.align.client.StructureName;
+import org.biojava.nbio.structure.align.symm.RepresentativeAtomReader;
+import org.biojava.nbio.structure.io.StructureFiletype;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Shares parsed PDB entries between the workers of a batch run.
+ * <p>
+ * Chain and domain identifiers (e.g. 1MER.A, 1MER.B, d1mera1) are grouped by
+ * their parent PDB entry. The full entry is parsed only once and shared
+ * read-only between the jobs: each job copies only the chains of its
+ * identifier and cuts the sub-structure from the copy with
+ * {@link StructureIdentifier#reduce(Structure)}. Parsed entries are kept in a
+ * least recently used cache bounded by the total number of atoms, so that
+ * large entries take up a proportional share of the budget.
+ * <p>
+ * If only representative atoms are requested, text mmCIF and PDB entries are
+ * parsed with the {@link RepresentativeAtomReader}, which keeps only the CA
+ * and C1' atoms and reduces parse time and memory for large entries.
+ * <p>
+ * Concurrent requests for the same entry wait for a single parse. Identifiers
+ * that are not tied to a PDB entry (files, URLs, biological assemblies) are
+ * loaded directly from the {@link AtomCacheProvider}.
+ */
+public class EntryCache implements StructureProvider {
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(EntryCache.class);
+
+	/** Default maximum number of atoms held in memory */
+	public static final long DEFAULT_MAX_ATOMS = 5000000;
+
+	private final StructureProvider provider;
+	private final EntryLoader loader;
+	private final long maxAtoms;
+	private boolean representativeOnly;
+
+	/** Access-ordered map of entry key to parse task */
+	private final LinkedHashMap<String, FutureTask<Structure>> entries;
+	private final Map<String, Long> sizes;
+	private long totalAtoms;
+
+	/**
+	 * @param provider
+	 *            provider used to fetch and parse the entries
+	 * @param maxAtoms
+	 *            maximum total number of atoms of the cached entries. If 0,
+	 *            no entries are kept after use.
+	 */
+	public EntryCache(AtomCacheProvider provider, long maxAtoms) {
+		this.provider = provider;
+		this.loader = pdbId -> loadEntry(provider, pdbId);
+		this.maxAtoms = maxAtoms;
+		this.entries = new LinkedHashMap<String, FutureTask<Structure>>(16,
+				0.75f, true);
+		this.sizes = new LinkedHashMap<String, Long>();
+		this.totalAtoms = 0;
+	}
+
+	/**
+	 * @param provider
+	 *            provider of the identifiers that are not tied to a PDB entry
+	 * @param loader
+	 *            parser of the full PDB entries
+	 * @param maxAtoms
+	 *            maximum total number of atoms of the cached entries
+	 */
+	EntryCache(StructureProvider provider, EntryLoader loader, long maxAtoms) {
+		this.provider = provider;
+		this.loader = loader;
+		this.maxAtoms = maxAtoms;
+		this.entries = new LinkedHashMap<String, FutureTask<Structure>>(16,
+				0.75f, true);
+		this.sizes = new LinkedHashMap<String, Long>();
+		this.totalAtoms = 0;
+	}
+
+	/**
+	 * Return the Structure of the identifier, using the cached parent entry
+	 * when possible.
+	 *
+	 * @param id
+	 *            structure identifier
+	 * @return the reduced Structure
+	 * @throws IOException
+	 * @throws StructureException
+	 */
+	@Override
+	public Structure getStructure(StructureIdentifier id) throws IOException,
+			StructureException {
+
+		String key = getEntryKey(id);
+		if (key == null)
+			return provider.getStructure(id);
+		if (maxAtoms <= 0)
+			return reduce(id, loader.load(key));
+
+		FutureTask<Structure> task;
+		boolean owner = false;
+		synchronized (this) {
+			task = entries.get(key);
+			if (task == null) {
+				task = new FutureTask<Structure>(() -> loader.load(key));
+				entries.put(key, task);
+				owner = true;
+			}
+		}
+
+		if (owner) {
+			task.run();
+			updateSize(key, task);
+		}
+
+		Structure full;
+		try {
+			full = task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new StructureException("Interrupted while loading " + key, e);
+		} catch (CancellationException | ExecutionException e) {
+			synchronized (this) {
+				if (entries.get(key) == task)
+					entries.remove(key);
+			}
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			if (cause instanceof StructureException)
+				throw (StructureException) cause;
+			throw new StructureException("Could not load entry " + key, e);
+		}
+
+		return reduce(id, full);
+	}
+
+	/**
+	 * Reduce the entry to the identifier, keeping the identifier as the name
+	 * of the resulting Structure for the output. The entry is shared between
+	 * the jobs, so only copies of the chains of the identifier are reduced.
+	 */
+	private static Structure reduce(StructureIdentifier id, Structure entry)
+			throws StructureException {
+
+		// the chain names of the ranges, or null for all the chains
+		Set<String> names = new HashSet<String>();
+		for (ResidueRange range : id.toCanonical().getResidueRanges()) {
+			String name = range.getChainName();
+			if (name == null || name.equals("_")) {
+				names = null;
+				break;
+			}
+			names.add(name);
+		}
+		if (names != null && names.isEmpty())
+			names = null;
+
+		Structure copy = new StructureImpl();
+		copy.setPdbId(entry.getPdbId());
+		copy.setPDBHeader(copyHeader(entry.getPDBHeader()));
+		copy.setEntityInfos(entry.getEntityInfos());
+		for (int m = 0; m < entry.nrModels(); m++) {
+			List<Chain> chains = new ArrayList<Chain>();
+			for (Chain chain : entry.getModel(m)) {
+				if (names == null || names.contains(chain.getName()))
+					chains.add((Chain) chain.clone());
+			}
+			copy.addModel(chains);
+		}
+
+		Structure s = id.reduce(copy);
+		s.setStructureIdentifier(id);
+		return s;
+	}
+
+	/**
+	 * Copy the header fields used in the output, since the reduction rewrites
+	 * the description of the header.
+	 */
+	private static PDBHeader copyHeader(PDBHeader header) {
+		PDBHeader copy = new PDBHeader();
+		copy.setPdbId(header.getPdbId());
+		copy.setTitle(header.getTitle());
+		copy.setDescription(header.getDescription());
+		copy.setClassification(header.getClassification());
+		copy.setDepDate(header.getDepDate());
+		copy.setRelDate(header.getRelDate());
+		copy.setResolution(header.getResolution());
+		return copy;
+	}
+
+	/**
+	 * Parse the full PDB entry, or only its representative atoms if requested
+	 * and supported by the file format.
+	 */
+	private Structure loadEntry(AtomCacheProvider provider, String pdbId)
+			throws IOException, StructureException {
+
+		StructureFiletype filetype = provider.getCache().getFiletype();
+		if (!representativeOnly || (filetype != StructureFiletype.CIF
+				&& filetype != StructureFiletype.PDB))
+			return provider.getStructure(pdbId);
+
+		File file = provider.fetch(pdbId);
+		Structure entry = RepresentativeAtomReader.read(file);
+		if (entry.getPdbId() == null) {
+			// PDB files without a HEADER record
+			entry.setPdbId(new PdbId(pdbId));
+			entry.getPDBHeader().setPdbId(entry.getPdbId());
+		}
+		return entry;
+	}
+
+	/**
+	 * Whether entries are parsed keeping only their representative atoms.
+	 *
+	 * @return true if only representative atoms are parsed
+	 */
+	public boolean isRepresentativeOnly() {
+		return representativeOnly;
+	}
+
+	/**
+	 * Parse only the representative atoms (CA and C1') of the entries. Only
+	 * use when the consumers do not need the other atoms, as in CeSymm.
+	 *
+	 * @param representativeOnly
+	 */
+	public void setRepresentativeOnly(boolean representativeOnly) {
+		this.representativeOnly = representativeOnly;
+	}
+
+	/**
+	 * @return true if the parsed entry is in the cache
+	 */
+	synchronized boolean isCached(String pdbId) {
+		return sizes.containsKey(pdbId);
+	}
+
+	/**
+	 * @return the total number of atoms of the cached entries
+	 */
+	synchronized long getCachedAtoms() {
+		return totalAtoms;
+	}
+
+	/**
+	 * Record the size of a loaded entry and evict the least recently used
+	 * entries until the cache fits the atom budget.
+	 */
+	private synchronized void updateSize(String key, FutureTask<Structure> task) {
+		long size = 0;
+		try {
+			size = StructureTools.getNrAtoms(task.get());
+		} catch (Exception e) {
+			return; // failed entries are removed by the caller
+		}
+		if (entries.get(key) != task)
+			return;
+		sizes.put(key, size);
+		totalAtoms += size;
+
+		Iterator<Map.Entry<String, FutureTask<Structure>>> it = entries
+				.entrySet().iterator();
+		while (totalAtoms > maxAtoms && it.hasNext()) {
+			Map.Entry<String, FutureTask<Structure>> eldest = it.next();
+			if (eldest.getKey().equals(key) || !eldest.getValue().isDone())
+				continue;
+			Long evicted = sizes.remove(eldest.getKey());
+			if (evicted != null)
+				totalAtoms -= evicted;
+			it.remove();
+			logger.info("Evicted entry {} from the cache", eldest.getKey());
+		}
+	}
+
+	/**
+	 * Return the PDB entry that contains the structure identifier, or null if
+	 * the identifier can not be reduced from a full PDB entry.
+	 *
+	 * @param id
+	 *            structure identifier
+	 * @return the upper case PDB ID, or null
+	 */
+	public static String getEntryKey(StructureIdentifier id) {
+		if (id instanceof StructureName) {
+			switch (((StructureName) id).getSource()) {
+			case PDB:
+			case SCOP:
+			case CATH:
+			case ECOD:
+				break;
+			default:
+				return null;
+			}
+		} else if (!(id instanceof DomainIndex.IndexedDomain)) {
+			return null;
+		}
+		try {
+			Object pdbId = id.toCanonical().getPdbId();
+			if (pdbId == null)
+				return null;
+			return pdbId.toString().toUpperCase();
+		} catch (StructureException e) {
+			logger.warn("Could not resolve the entry of " + id.getIdentifier(),
+					e);
+			return null;
+		}
+	}
+
+	/**
+	 * Sort the identifiers so that the ones from the same PDB entry are
+	 * consecutive. Entries keep the order of their first appearance, and the
+	 * identifiers within an entry keep their input order.
+	 *
+	 * @param ids
+	 *            input structure identifiers
+	 * @return the identifiers grouped by PDB entry
+	 */
+	public static List<StructureIdentifier> groupByEntry(
+			List<StructureIdentifier> ids) {
+		Map<String, List<StructureIdentifier>> groups = new LinkedHashMap<String, List<StructureIdentifier>>();
+		int unique = 0;
+		for (StructureIdentifier id : ids) {
+			String key = getEntryKey(id);
+			if (key == null)
+				key = "#" + unique++; // never shared
+			List<StructureIdentifier> group = groups.get(key);
+			if (group == null) {
+				group = new ArrayList<StructureIdentifier>();
+				groups.put(key, group);
+			}
+			group.add(id);
+		}
+		List<StructureIdentifier> sorted = new ArrayList<StructureIdentifier>(
+				ids.size());
+		for (List<StructureIdentifier> group : groups.values())
+			sorted.addAll(group);
+		return sorted;
+	}
+
+	/**
+	 * Parser of full PDB entries.
+	 */
+	interface EntryLoader {
+		Structure load(String pdbId) throws IOException, StructureException;
+	}
+}
@@ -0,0 +1,302 @@
+package workers;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.biojava.nbio.structure.Atom;
+import org.biojava.nbio.structure.Chain;
+import org.biojava.nbio.structure.Structure;
+import org.biojava.nbio.structure.StructureException;
+import org.biojava.nbio.structure.StructureIdentifier;
+import org.biojava.nbio.structure.StructureImpl;
+import org.biojava.nbio.structure.StructureTools;
+import org.biojava.nbio.structure.SubstructureIdentifier;
+import org.biojava.nbio.structure.align.model.AFPChain;
+import org.biojava.nbio.structure.align.util.AFPChainScorer;
+import org.biojava.nbio.structure.align.util.AtomCache;
+import org.biojava.nbio.structure.symmetry.internal.CESymmParameters;
+import org.biojava.nbio.structure.symmetry.internal.CESymmParameters.OrderDetectorMethod;
+import org.biojava.nbio.structure.symmetry.internal.CeSymm;
+import org.biojava.nbio.structure.symmetry.internal.CeSymmResult;
+import org.biojava.nbio.structure.symmetry.utils.SymmetryTools;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import writers.CeSymmWriter;
+
+/**
+ * This Runnable implementation runs CeSymm on a batch of consecutive inputs,
+ * the models of an NMR ensemble or the frames of a trajectory, and writes the
+ * result of each frame as soon as it is finished. The inputs are loaded by
+ * the worker, one at a time, and every model of an input is a frame.
+ * <p>
+ * Each frame is bounded by the result of the previous frame of the batch. If
+ * the previous frame was symmetric, its self-alignment is first superimposed
+ * on the new frame. If the TM-score of these residue pairs is still above the
+ * unrefined score threshold, the analysis is bounded to the number of
+ * symmetry levels of the previous frame and, with a single level, to its
+ * order, without order detection. The self-alignment is not seeded, since
+ * {@link CeSymm} builds its own calculator. Otherwise, or if the bounded
+ * result is not significant, the frame is analyzed without bounds. The first
+ * frame of a batch is always analyzed without bounds.
+ */
+public class FrameWorker implements Runnable {
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(FrameWorker.class);
+
+	private List<StructureIdentifier> inputs;
+	private CESymmParameters params;
+	private StructureProvider cache;
+	private List<CeSymmWriter> writers;
+
+	/** Number of frames of the batch bounded by the previous frame */
+	private int bounded;
+
+	public FrameWorker(List<StructureIdentifier> inputs,
+			CESymmParameters params, StructureProvider cache,
+			List<CeSymmWriter> writers) {
+		this.inputs = inputs;
+		this.params = params;
+		this.cache = cache;
+		this.writers = writers;
+	}
+
+	/**
+	 * The frames of a loaded input, one for each model.
+	 *
+	 * @param id
+	 *            identifier of the input
+	 * @param structure
+	 *            the loaded input, with all the models
+	 * @return the frames of the input
+	 */
+	public static List<Frame> getFrames(StructureIdentifier id,
+			Structure structure) {
+		int models = structure.nrModels();
+		List<Frame> frames = new ArrayList<Frame>();
+		for (int m = 0; m < models; m++)
+			frames.add(new Frame(id, m, models));
+		return frames;
+	}
+
+	@Override
+	public void run() {
+
+		CeSymmResult previous = null;
+		int count = 0;
+
+		for (StructureIdentifier input : inputs) {
+			long startTime = System.nanoTime();
+			Structure structure = null;
+			try {
+				structure = cache.getStructure(input);
+			} catch (IOException | StructureException e) {
+				logger.error("Could not load Structure " + input.getIdentifier(),
+						e);
+				previous = null;
+				continue;
+			}
+
+			for (Frame frame : getFrames(input, structure)) {
+				count++;
+				try {
+					previous = analyze(frame, structure, previous, startTime);
+				} catch (Exception e) {
+					logger.error("Could not complete frame: " + frame, e);
+					previous = null;
+				}
+				startTime = System.nanoTime();
+			}
+		}
+		logger.info("Finished batch of {} frames, {} bounded by the previous "
+				+ "frame", count, bounded);
+	}
+
+	/**
+	 * @return the number of frames of the batch bounded by the previous frame
+	 */
+	int getBoundedFrames() {
+		return bounded;
+	}
+
+	/**
+	 * Analyze a frame, bounded by the previous result if possible, and write
+	 * its result.
+	 */
+	private CeSymmResult analyze(Frame frame, Structure structure,
+			CeSymmResult previous, long startTime) throws StructureException {
+
+		Atom[] atoms = frame.getAtoms(structure);
+		long loadTime = System.nanoTime();
+
+		CeSymmResult result = null;
+		if (previous != null)
+			result = analyzeBounded(frame, atoms, previous);
+		if (result != null)
+			bounded++;
+		else
+			result = CeSymm.analyze(atoms, params);
+		long analysisTime = System.nanoTime();
+		logger.info("Timing for {} ({} residues): load {} ms, "
+				+ "analysis {} ms", frame, atoms.length,
+				(loadTime - startTime) / 1000000,
+				(analysisTime - loadTime) / 1000000);
+
+		// Stream the result of the frame
+		for (CeSymmWriter writer : writers) {
+			try {
+				synchronized (writer) {
+					writer.writeResult(result);
+				}
+			} catch (Exception e) {
+				logger.error("Could not save results for " + frame, e);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Analyze a frame bounded to the symmetry of the previous frame, if the
+	 * self-alignment of the previous frame still superimposes on this one.
+	 *
+	 * @param frame
+	 *            the frame
+	 * @param atoms
+	 *            representative atoms of the frame
+	 * @param previous
+	 *            result of the previous frame
+	 * @return the result if it is significant, null if the frame has to be
+	 *         analyzed without bounds
+	 */
+	private CeSymmResult analyzeBounded(Frame frame, Atom[] atoms,
+			CeSymmResult previous) throws StructureException {
+
+		if (!previous.isSignificant())
+			return null;
+
+		double tmScore = getPreviousTMScore(atoms, previous.getSelfAlignment());
+		if (tmScore < params.getUnrefinedScoreThreshold()) {
+			logger.info("Self-alignment of the previous frame scores {} on "
+					+ "{}, analyzing without bounds", String.format("%.2f",
+					tmScore), frame);
+			return null;
+		}
+
+		CESymmParameters boundedParams = params.clone();
+		boundedParams.setSymmLevels(previous.getSymmLevels());
+		if (previous.getSymmLevels() == 1) {
+			boundedParams.setOrderDetectorMethod(OrderDetectorMethod.USER_INPUT);
+			boundedParams.setUserOrder(previous.getNumRepeats());
+		}
+
+		CeSymmResult result = CeSymm.analyze(atoms, boundedParams);
+		if (!result.isSignificant()) {
+			logger.info("Bounded analysis of {} not significant, analyzing "
+					+ "without bounds", frame);
+			return null;
+		}
+		// the output reports the parameters of the run
+		result.setParams(params);
+		return result;
+	}
+
+	/**
+	 * TM-score of the residue pairs of a self-alignment superimposed on the
+	 * atoms of another frame with the same residues.
+	 *
+	 * @param atoms
+	 *            representative atoms of the frame
+	 * @param selfAlignment
+	 *            self-alignment of the previous frame
+	 * @return the TM-score, or -1 if the frames have different residues or
+	 *         there is no alignment
+	 * @throws StructureException
+	 */
+	static double getPreviousTMScore(Atom[] atoms, AFPChain selfAlignment)
+			throws StructureException {
+		if (selfAlignment == null
+				|| selfAlignment.getCa1Length() != atoms.length)
+			return -1;
+		// the self-alignment pairs the atoms with their duplicates
+		return AFPChainScorer.getTMScore(selfAlignment, atoms,
+				StructureTools.duplicateCA2(atoms));
+	}
+
+	/**
+	 * A model of a structure. It keeps the model number in the identifier
+	 * and delegates to the identifier of the structure.
+	 */
+	public static class Frame implements StructureIdentifier {
+
+		private static final long serialVersionUID = 1L;
+
+		private final StructureIdentifier source;
+		private final int model;
+		private final int models;
+
+		/**
+		 * @param source
+		 *            identifier of the structure
+		 * @param model
+		 *            index of the model, from 0
+		 * @param models
+		 *            number of models of the structure
+		 */
+		public Frame(StructureIdentifier source, int model, int models) {
+			this.source = source;
+			this.model = model;
+			this.models = models;
+		}
+
+		/**
+		 * The representative atoms of the model, in a Structure of their own
+		 * named by this frame.
+		 *
+		 * @param structure
+		 *            the loaded structure with all the models
+		 * @return the representative atoms
+		 */
+		Atom[] getAtoms(Structure structure) {
+			Structure frame = new StructureImpl();
+			frame.setPDBHeader(structure.getPDBHeader());
+			frame.setStructureIdentifier(this);
+			for (Chain chain : structure.getModel(model)) {
+				frame.addChain(chain);
+				chain.setStructure(frame);
+			}
+			return SymmetryTools.getRepresentativeAtoms(frame);
+		}
+
+		@Override
+		public String getIdentifier() {
+			if (models == 1)
+				return source.getIdentifier();
+			return source.getIdentifier() + "#" + (model + 1);
+		}
+
+		@Override
+		public SubstructureIdentifier toCanonical() throws StructureException {
+			return source.toCanonical();
+		}
+
+		@Override
+		public Structure reduce(Structure input) throws StructureException {
+			Structure s = source.reduce(input);
+			s.setStructureIdentifier(this);
+			return s;
+		}
+
+		@Override
+		public Structure loadStructure(AtomCache cache)
+				throws StructureException, IOException {
+			return source.loadStructure(cache);
+		}
+
+		@Override
+		public String toString() {
+			return getIdentifier();
+		}
+	}
+}
@@ -6,7 +6,6 @@ import java.util.List;
 import org.biojava.nbio.structure.Structure;
 import org.biojava.nbio.structure.StructureException;
 import org.biojava.nbio.structure.StructureIdentifier;
-import org.biojava.nbio.structure.align.util.AtomCache;
 import org.biojava.nbio.structure.cluster.SubunitClustererParameters;
 import org.biojava.nbio.structure.gui.BiojavaJmol;
 import org.biojava.nbio.structure.symmetry.axis.AxisAligner;
@@ -39,13 +38,13 @@ public class QuatSymmWorker implements Runnable {
 	private StructureIdentifier id;
 	private SubunitClustererParameters cparams;
 	private QuatSymmetryParameters sparams;
-	private AtomCache cache;
+	private StructureProvider cache;
 	private List<QuatSymmWriter> writers;
 	private boolean show3d;
 
 	public QuatSymmWorker(StructureIdentifier id,
 			QuatSymmetryParameters sparams, SubunitClustererParameters cparams,
-			AtomCache cache, List<QuatSymmWriter> writers, boolean show3d) {
+			StructureProvider cache, List<QuatSymmWriter> writers, boolean show3d) {
 		this.id = id;
 		this.cache = cache;
 		this.writers = writers;
@@ -59,6 +58,7 @@ public class QuatSymmWorker implements Runnable {
 
 		try {
 			// Obtain the structure representation
+			long startTime = System.nanoTime();
 			Structure structure = null;
 			try {
 				structure = cache.getStructure(id);
@@ -67,6 +67,7 @@ public class QuatSymmWorker implements Runnable {
 						e);
 				return;
 			}
+			long loadTime = System.nanoTime();
 
 			// Calculate the global symmetry
 			QuatSymmetryResults result = QuatSymmetryDetector
@@ -86,6 +87,10 @@ public class QuatSymmWorker implements Runnable {
 				if (local != null)
 					result = local;
 			}
+			long analysisTime = System.nanoTime();
+			logger.info("Timing for {}: load {} ms, analysis {} ms", id,
+					(loadTime - startTime) / 1000000,
+					(analysisTime - loadTime) / 1000000);
 
 			// Write into the output files
 			for (QuatSymmWriter writer : writers) {
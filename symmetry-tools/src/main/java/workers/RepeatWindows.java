@@ -0,0 +1,232 @@
+package workers;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Overlapping windows along a giant chain, analyzed separately for tandem
+ * repeats, and the merge of their repeat calls into one call for the chain.
+ * <p>
+ * Consecutive windows overlap by half of their length, so every repeat
+ * shorter than half a window is complete in at least one window. The repeats
+ * of consecutive windows with a consistent repeat period are merged, and the
+ * repeats called twice in the overlap of two windows are counted once. Only
+ * the longest run of consistent windows is reported.
+ * <p>
+ * The positions of the repeats are indices of the representative atoms of
+ * the chain, from the first to the last aligned residue of each repeat.
+ */
+public class RepeatWindows {
+
+	/** Default number of residues of a window */
+	public static final int DEFAULT_WINDOW = 400;
+
+	/** Relative tolerance of the repeat periods of consistent windows */
+	private static final double PERIOD_TOLERANCE = 0.2;
+
+	private final int[] starts;
+	private final int window;
+	private final int length;
+
+	/** Repeats of each window, in chain positions, null if not finished */
+	private final List<List<int[]>> repeats;
+	private final String[] groups;
+	private final AtomicInteger remaining;
+
+	/** First and last window of the merged run, -1 if none */
+	private int runFrom = -1;
+	private int runTo = -1;
+
+	/**
+	 * @param length
+	 *            number of residues of the chain
+	 * @param window
+	 *            number of residues of a window
+	 */
+	public RepeatWindows(int length, int window) {
+		this.length = length;
+		this.window = Math.min(window, length);
+		this.starts = getStarts(length, this.window);
+		this.repeats = new ArrayList<List<int[]>>(Collections.nCopies(
+				starts.length, (List<int[]>) null));
+		this.groups = new String[starts.length];
+		this.remaining = new AtomicInteger(starts.length);
+	}
+
+	/**
+	 * Start positions of the windows, every half window, with the last
+	 * window ending at the end of the chain.
+	 *
+	 * @param length
+	 *            number of residues of the chain
+	 * @param window
+	 *            number of residues of a window
+	 * @return the start positions
+	 */
+	public static int[] getStarts(int length, int window) {
+		if (length <= window)
+			return new int[] { 0 };
+		int step = Math.max(1, window / 2);
+		int count = (length - window + step - 1) / step + 1;
+		int[] starts = new int[count];
+		for (int w = 0; w < count; w++)
+			starts[w] = Math.min(w * step, length - window);
+		return starts;
+	}
+
+	/**
+	 * @return the number of windows
+	 */
+	public int size() {
+		return starts.length;
+	}
+
+	/**
+	 * @return the first position of the window
+	 */
+	public int getStart(int w) {
+		return starts[w];
+	}
+
+	/**
+	 * @return the position after the end of the window
+	 */
+	public int getEnd(int w) {
+		return starts[w] + window;
+	}
+
+	/**
+	 * Store the repeats called in a window. Thread safe.
+	 *
+	 * @param w
+	 *            index of the window
+	 * @param windowRepeats
+	 *            first and last position of each repeat in the window, in
+	 *            sequence order, empty if no repeats were called
+	 * @param group
+	 *            symmetry group of the window
+	 * @return true if it was the last window to finish
+	 */
+	public boolean finish(int w, List<int[]> windowRepeats, String group) {
+		List<int[]> shifted = new ArrayList<int[]>();
+		for (int[] repeat : windowRepeats)
+			shifted.add(new int[] { repeat[0] + starts[w],
+					repeat[1] + starts[w] });
+		synchronized (this) {
+			repeats.set(w, shifted);
+			groups[w] = group;
+		}
+		return remaining.decrementAndGet() == 0;
+	}
+
+	/**
+	 * Merge the repeats of the longest run of consecutive windows with a
+	 * consistent repeat period. Call it after all the windows are finished.
+	 *
+	 * @return the first and last position of each repeat of the chain, in
+	 *         sequence order, or an empty list if no window called repeats
+	 */
+	public synchronized List<int[]> merge() {
+
+		List<int[]> best = Collections.emptyList();
+		runFrom = runTo = -1;
+
+		int from = 0;
+		while (from < starts.length) {
+			if (getPeriod(from) == 0) {
+				from++;
+				continue;
+			}
+			// extend the run while the periods are consistent
+			int to = from;
+			while (to + 1 < starts.length && getPeriod(to + 1) > 0
+					&& isConsistent(getPeriod(to), getPeriod(to + 1)))
+				to++;
+
+			List<int[]> merged = mergeRepeats(from, to);
+			if (merged.size() > best.size()) {
+				best = merged;
+				runFrom = from;
+				runTo = to;
+			}
+			from = to + 1;
+		}
+		return best;
+	}
+
+	/**
+	 * @return the symmetry group of the first window of the merged run, or C1
+	 *         if there is none
+	 */
+	public synchronized String getGroup() {
+		return runFrom < 0 ? "C1" : groups[runFrom];
+	}
+
+	/**
+	 * @return the first window of the merged run, -1 if there is none
+	 */
+	public synchronized int getRunFrom() {
+		return runFrom;
+	}
+
+	/**
+	 * @return the last window of the merged run, -1 if there is none
+	 */
+	public synchronized int getRunTo() {
+		return runTo;
+	}
+
+	/**
+	 * @return the number of residues of the chain
+	 */
+	public int getLength() {
+		return length;
+	}
+
+	/**
+	 * Mean distance between the starts of consecutive repeats of a window, 0
+	 * if it has less than two repeats.
+	 */
+	private double getPeriod(int w) {
+		List<int[]> r = repeats.get(w);
+		if (r == null || r.size() < 2)
+			return 0;
+		return (double) (r.get(r.size() - 1)[0] - r.get(0)[0])
+				/ (r.size() - 1);
+	}
+
+	private static boolean isConsistent(double p1, double p2) {
+		return Math.abs(p1 - p2) <= PERIOD_TOLERANCE * Math.min(p1, p2);
+	}
+
+	/**
+	 * Union of the repeats of the windows in [from, to]. Two repeats that
+	 * overlap by more than half of the shorter one are the same repeat.
+	 */
+	private List<int[]> mergeRepeats(int from, int to) {
+
+		List<int[]> all = new ArrayList<int[]>();
+		for (int w = from; w <= to; w++)
+			all.addAll(repeats.get(w));
+		all.sort((a, b) -> Integer.compare(a[0], b[0]));
+
+		List<int[]> merged = new ArrayList<int[]>();
+		for (int[] repeat : all) {
+			if (!merged.isEmpty()) {
+				int[] last = merged.get(merged.size() - 1);
+				int overlap = Math.min(last[1], repeat[1])
+						- Math.max(last[0], repeat[0]) + 1;
+				int shorter = Math.min(last[1] - last[0], repeat[1]
+						- repeat[0]) + 1;
+				if (2 * overlap > shorter) {
+					last[1] = Math.max(last[1], repeat[1]);
+					continue;
+				}
+			}
+			merged.add(new int[] { repeat[0], repeat[1] });
+		}
+		return merged;
+	}
+}
@@ -0,0 +1,27 @@
+package workers;
+
+import java.io.IOException;
+
+import org.biojava.nbio.structure.Structure;
+import org.biojava.nbio.structure.StructureException;
+import org.biojava.nbio.structure.StructureIdentifier;
+
+/**
+ * Source of Structures for the workers of a batch run. Implementations must
+ * be safe to call concurrently from many worker threads.
+ */
+public interface StructureProvider {
+
+	/**
+	 * Load the Structure of the identifier.
+	 *
+	 * @param id
+	 *            structure identifier
+	 * @return the Structure
+	 * @throws IOException
+	 * @throws StructureException
+	 */
+	public Structure getStructure(StructureIdentifier id) throws IOException,
+			StructureException;
+
+}
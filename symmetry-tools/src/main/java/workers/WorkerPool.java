@@ -0,0 +1,53 @@
+package workers;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fixed thread pool for the jobs of a batch run that keeps track of the
+ * pending jobs. Running jobs can submit more jobs, like the domains of a
+ * split chain, and the batch waits until all of them are finished.
+ */
+public class WorkerPool {
+
+	private final ExecutorService executor;
+	private final AtomicInteger pending = new AtomicInteger();
+
+	/**
+	 * @param threads
+	 *            number of threads
+	 */
+	public WorkerPool(int threads) {
+		this.executor = Executors.newFixedThreadPool(threads);
+	}
+
+	/**
+	 * Schedule a job. A job that submits more jobs has to do it before it
+	 * finishes.
+	 *
+	 * @param job
+	 */
+	public void submit(Runnable job) {
+		pending.incrementAndGet();
+		executor.execute(() -> {
+			try {
+				job.run();
+			} finally {
+				pending.decrementAndGet();
+			}
+		});
+	}
+
+	/**
+	 * Wait until all the submitted jobs, and the jobs they submitted, are
+	 * finished, and shut down the threads.
+	 *
+	 * @throws InterruptedException
+	 */
+	public void awaitCompletion() throws InterruptedException {
+		while (pending.get() > 0)
+			Thread.sleep(100); // sleep .1 seconds
+		executor.shutdown();
+	}
+}
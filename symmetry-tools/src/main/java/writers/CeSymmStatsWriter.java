@@ -10,6 +10,8 @@ import org.biojava.nbio.structure.align.util.RotationAxis;
 import org.biojava.nbio.structure.symmetry.internal.CeSymmResult;
 import org.biojava.nbio.structure.symmetry.internal.SymmetryAxes.Axis;
 
+import workers.CeSymmWorker;
+
 /**
  * Writes a stats summary of the CeSymm result in TSV format.
  * 
@@ -30,7 +32,7 @@ public class CeSymmStatsWriter extends CeSymmWriter {
 				+ "RotationAngle\t" + "ScrewTranslation\t"
 				+ "UnrefinedTMscore\t" + "UnrefinedRMSD\t" + "SymmTMscore\t"
 				+ "SymmRMSD\t" + "RepeatLength\t" + "CoreLength\t"
-				+ "Length\t" + "Coverage\t" + "Repeats");
+				+ "Length\t" + "Coverage\t" + "Repeats\t" + "Prescreened");
 		writer.flush();
 	}
 
@@ -45,6 +47,19 @@ public class CeSymmStatsWriter extends CeSymmWriter {
 		}
 		try {
 			id = result.getStructureId().getIdentifier();
+
+			// Results without self-alignment, like the summary of a split chain
+			if (result.getSelfAlignment() == null) {
+				writer.format("%s\t%d\t%s\t%b\t%d\t%s\t%.2f\t%.2f\t%.2f\t"
+						+ "%.2f\t%.2f\t%.2f\t%d\t%d\t%d\t%.2f\t%s\t%b%n", id,
+						result.getNumRepeats(), result.getSymmGroup(), false, 0,
+						"NONE", 0.0, 0.0, 0.0, 0.0, 0.0, 0.0, 0, 0,
+						result.getAtoms().length, 0.0, "",
+						CeSymmWorker.isPrescreened(result));
+				writer.flush();
+				return;
+			}
+
 			int repeatLen = 0;
 			int coreLen = result.getSelfAlignment().getOptLength();
 			double coverage = result.getSelfAlignment().getCoverage1() / 100;
@@ -106,12 +121,13 @@ public class CeSymmStatsWriter extends CeSymmWriter {
 			}
 
 			writer.format("%s\t%d\t%s\t%b\t%d\t%s\t%s\t%s\t%.2f\t"
-					+ "%.2f\t%.2f\t%.2f\t%d\t%d\t%d\t%.2f\t%s%n", id, order,
+					+ "%.2f\t%.2f\t%.2f\t%d\t%d\t%d\t%.2f\t%s\t%b%n", id, order,
 					result.getSymmGroup(), result.isRefined(),
 					result.getSymmLevels(), type, rotation_angle,
 					screw_translation, result.getSelfAlignment().getTMScore(),
 					result.getSelfAlignment().getTotalRmsdOpt(), symmscore,
-					symmrmsd, repeatLen, coreLen, structureLen, coverage, repeats);
+					symmrmsd, repeatLen, coreLen, structureLen, coverage, repeats,
+					false);
 		} catch (Exception e) {
 			// If any exception occurs when writing the results store empty row
 			logger.warn("Could not write result for entry: " + id
@@ -124,7 +140,7 @@ public class CeSymmStatsWriter extends CeSymmWriter {
 
 	private synchronized void writeEmptyRow(String id) {
 		writer.format("%s\t%d\t%s\t%b\t%d\t%s\t%.2f\t%.2f\t%.2f\t%.2f\t%.2f\t"
-				+ "%.2f\t%d\t%d\t%d\t%.2f%n", id, 1, "C1", false, 0, "NONE",
-				0.0, 0.0, 0.0, 0.0, 0.0, 0.0, 0, 0, 0, 0.0);
+				+ "%.2f\t%d\t%d\t%d\t%.2f\t%s\t%b%n", id, 1, "C1", false, 0,
+				"NONE", 0.0, 0.0, 0.0, 0.0, 0.0, 0.0, 0, 0, 0, 0.0, "", false);
 	}
 }
\ No newline at end of file
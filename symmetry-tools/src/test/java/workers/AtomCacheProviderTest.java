@@ -0,0 +1,102 @@
+package workers;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.biojava.nbio.structure.Structure;
+import org.biojava.nbio.structure.StructureTools;
+import org.biojava.nbio.structure.align.client.StructureName;
+import org.biojava.nbio.structure.align.util.AtomCache;
+import org.biojava.nbio.structure.chem.ChemCompGroupFactory;
+import org.biojava.nbio.structure.chem.ChemCompProvider;
+import org.biojava.nbio.structure.chem.ReducedChemCompProvider;
+import org.biojava.nbio.structure.io.LocalPDBDirectory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test the per-thread caches of the structure provider on a local mirror.
+ */
+public class AtomCacheProviderTest {
+
+	private ChemCompProvider chemComps;
+
+	@Before
+	public void setUp() {
+		// no chemical component downloads
+		chemComps = ChemCompGroupFactory.getChemCompProvider();
+		ChemCompGroupFactory.setChemCompProvider(new ReducedChemCompProvider());
+	}
+
+	@After
+	public void tearDown() {
+		ChemCompGroupFactory.setChemCompProvider(chemComps);
+	}
+
+	@Test
+	public void testPerThreadReuse() throws Exception {
+		File mirror = Files.createTempDirectory("mirror").toFile();
+		AtomCacheProvider provider = EntryCacheTest
+				.createMirrorProvider(mirror);
+
+		// the same cache and mirror reader for all the calls of a thread
+		AtomCache cache = provider.getCache();
+		LocalPDBDirectory reader = provider.getReader();
+		assertNotNull(reader);
+		assertSame(cache, provider.getCache());
+		assertSame(reader, provider.getReader());
+
+		// and a different one for each thread
+		ExecutorService pool = Executors.newSingleThreadExecutor();
+		Future<AtomCache> other = pool.submit(provider::getCache);
+		Future<LocalPDBDirectory> otherReader = pool.submit(provider::getReader);
+		assertNotSame(cache, other.get());
+		assertNotSame(reader, otherReader.get());
+		assertSame(other.get(), pool.submit(provider::getCache).get());
+		pool.shutdown();
+		assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testConcurrentGetStructure() throws Exception {
+		File mirror = Files.createTempDirectory("mirror").toFile();
+		EntryCacheTest.writeMirrorEntry(mirror, "1ABC", 30);
+		EntryCacheTest.writeMirrorEntry(mirror, "2ABC", 20);
+		AtomCacheProvider provider = EntryCacheTest
+				.createMirrorProvider(mirror);
+
+		CountDownLatch start = new CountDownLatch(1);
+		ExecutorService pool = Executors.newFixedThreadPool(8);
+		List<Future<Structure>> results = new ArrayList<Future<Structure>>();
+		for (int i = 0; i < 32; i++) {
+			String name = (i % 2 == 0 ? "1ABC." : "2ABC.")
+					+ (i % 4 < 2 ? "A" : "B");
+			results.add(pool.submit(() -> {
+				start.await();
+				return provider.getStructure(new StructureName(name));
+			}));
+		}
+		start.countDown();
+		for (int i = 0; i < results.size(); i++) {
+			Structure s = results.get(i).get();
+			assertEquals(i % 2 == 0 ? 30 : 20,
+					StructureTools.getRepresentativeAtomArray(s).length);
+		}
+		pool.shutdown();
+		assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+
+		// the entries are in the mirror and found by every thread
+		assertTrue(provider.fetch("1ABC").exists());
+	}
+
+}
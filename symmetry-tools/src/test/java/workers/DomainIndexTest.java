@@ -0,0 +1,149 @@
+package workers;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.biojava.nbio.structure.StructureIdentifier;
+import org.biojava.nbio.structure.SubstructureIdentifier;
+import org.junit.Test;
+
+/**
+ * Test the writing and lookup of the memory-mapped domain index.
+ */
+public class DomainIndexTest {
+
+	@Test
+	public void testLookup() throws Exception {
+		List<StructureIdentifier> domains = new ArrayList<StructureIdentifier>();
+		for (int i = 0; i < 1000; i++) {
+			String name = String.format("d%dab%c%d", i % 10,
+					(char) ('a' + i % 26), i);
+			String range = String.format("%dABC.%c:%d-%d", 1 + i % 9,
+					(char) ('A' + i % 26), i + 1, i + 50);
+			domains.add(new DomainIndex.IndexedDomain(name,
+					new SubstructureIdentifier(range)));
+		}
+
+		File file = File.createTempFile("domains", ".idx");
+		file.deleteOnExit();
+		DomainIndex.write(file, "SCOP 2.08,ECOD develop285", domains);
+		DomainIndex index = DomainIndex.open(file);
+
+		assertEquals(Arrays.asList("SCOP 2.08", "ECOD develop285"),
+				index.getReleases());
+		for (StructureIdentifier domain : domains) {
+			StructureIdentifier found = index.get(domain.getIdentifier());
+			assertNotNull(domain.getIdentifier(), found);
+			assertEquals(domain.getIdentifier(), found.getIdentifier());
+			assertEquals(domain.toCanonical().getIdentifier(), found
+					.toCanonical().getIdentifier());
+		}
+		assertNull(index.get("d1xxxa_"));
+		assertNull(index.get(""));
+	}
+
+	@Test
+	public void testLongRecords() throws Exception {
+		// a domain of many segments, longer than a signed short
+		StringBuilder range = new StringBuilder("1ABC.A:1-2");
+		for (int i = 1; range.length() <= Short.MAX_VALUE; i++)
+			range.append(",A:").append(4 * i).append('-').append(4 * i + 1);
+		List<StructureIdentifier> domains = new ArrayList<StructureIdentifier>();
+		domains.add(new DomainIndex.IndexedDomain("e1abcA1",
+				new SubstructureIdentifier(range.toString())));
+
+		File file = File.createTempFile("domains", ".idx");
+		file.deleteOnExit();
+		DomainIndex.write(file, "ECOD develop285", domains);
+		StructureIdentifier found = DomainIndex.open(file).get("e1abcA1");
+		assertEquals(domains.get(0).toCanonical().getIdentifier(), found
+				.toCanonical().getIdentifier());
+
+		// longer than an unsigned short is rejected
+		while (range.length() <= DomainIndex.MAX_STRING_LENGTH)
+			range.append(",A:1-2");
+		domains.set(0, new DomainIndex.IndexedDomain("e1abcA1",
+				new SubstructureIdentifier(range.toString())));
+		try {
+			DomainIndex.write(file, "ECOD develop285", domains);
+			fail("Expected an IOException for a record that is too long");
+		} catch (IOException e) {
+			assertTrue(e.getMessage().contains("too long"));
+		}
+		// the previous index is kept
+		assertNotNull(DomainIndex.open(file).get("e1abcA1"));
+	}
+
+	/**
+	 * Classifications with a settable release, counting the domain queries.
+	 */
+	private static class TestSource implements DomainIndex.DomainSource {
+
+		final Map<String, String> releases = new HashMap<String, String>();
+		final List<String> builds = new ArrayList<String>();
+
+		@Override
+		public String getCurrentRelease(String classification) {
+			return classification + " " + releases.get(classification);
+		}
+
+		@Override
+		public List<StructureIdentifier> getDomains(String classification) {
+			builds.add(getCurrentRelease(classification));
+			String name = classification.equals(DomainIndex.SCOP) ? "d1abca1"
+					: "e1abcA1";
+			List<StructureIdentifier> domains = new ArrayList<StructureIdentifier>();
+			domains.add(new DomainIndex.IndexedDomain(name,
+					new SubstructureIdentifier("1ABC.A:1-"
+							+ (10 + builds.size()))));
+			return domains;
+		}
+	}
+
+	@Test
+	public void testRebuildOnReleaseChange() throws Exception {
+		File file = File.createTempFile("domains", ".idx");
+		file.delete();
+		file.deleteOnExit();
+		TestSource source = new TestSource();
+		source.releases.put(DomainIndex.SCOP, "2.07");
+		source.releases.put(DomainIndex.ECOD, "develop285");
+
+		// built when missing
+		DomainIndex index = DomainIndex.load(file,
+				Collections.singleton(DomainIndex.SCOP), source);
+		assertEquals(Arrays.asList("SCOP 2.07"), source.builds);
+		assertEquals("SCOP 2.07", index.getRelease());
+
+		// reused while the release is current
+		index = DomainIndex.load(file,
+				Collections.singleton(DomainIndex.SCOP), source);
+		assertEquals(1, source.builds.size());
+
+		// rebuilt for a new release of SCOP
+		source.releases.put(DomainIndex.SCOP, "2.08");
+		index = DomainIndex.load(file,
+				Collections.singleton(DomainIndex.SCOP), source);
+		assertEquals(Arrays.asList("SCOP 2.07", "SCOP 2.08"), source.builds);
+		assertEquals("SCOP 2.08", index.getRelease());
+		assertEquals(new SubstructureIdentifier("1ABC.A:1-12").getIdentifier(),
+				index.get("d1abca1").toCanonical().getIdentifier());
+
+		// rebuilt for a new classification, keeping the previous one
+		index = DomainIndex.load(file,
+				Collections.singleton(DomainIndex.ECOD), source);
+		assertEquals(Arrays.asList("ECOD develop285", "SCOP 2.08"),
+				index.getReleases());
+		assertNotNull(index.get("d1abca1"));
+		assertNotNull(index.get("e1abcA1"));
+	}
+
+}
@@ -0,0 +1,193 @@
+package workers;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.biojava.nbio.structure.AminoAcidImpl;
+import org.biojava.nbio.structure.Atom;
+import org.biojava.nbio.structure.AtomImpl;
+import org.biojava.nbio.structure.Chain;
+import org.biojava.nbio.structure.ChainImpl;
+import org.biojava.nbio.structure.Element;
+import org.biojava.nbio.structure.Group;
+import org.biojava.nbio.structure.ResidueRange;
+import org.biojava.nbio.structure.StructureIdentifier;
+import org.biojava.nbio.structure.SubstructureIdentifier;
+import org.biojava.nbio.structure.align.client.StructureName;
+import org.junit.Test;
+
+/**
+ * Test the splitting of long chains into the supplied domains, and into the
+ * domains of the built-in domain parser.
+ */
+public class DomainSplitterTest {
+
+	private static File writeBoundaries(String... lines) throws IOException {
+		File file = File.createTempFile("boundaries", ".txt");
+		file.deleteOnExit();
+		try (PrintWriter writer = new PrintWriter(file)) {
+			for (String line : lines)
+				writer.println(line);
+		}
+		return file;
+	}
+
+	private static List<String> getIdentifiers(
+			List<StructureIdentifier> domains) {
+		List<String> names = new ArrayList<String>();
+		for (StructureIdentifier domain : domains)
+			names.add(domain.getIdentifier());
+		return names;
+	}
+
+	@Test
+	public void testSuppliedBoundaries() throws Exception {
+		File file = writeBoundaries("# chain domain", "",
+				"1ABC.A 1ABC.A_1-500", "1ABC.A\t1ABC.A_501-1200",
+				"2XYZ.B 2XYZ.B_1-1100");
+		DomainSplitter splitter = new DomainSplitter(1000);
+		splitter.readBoundaries(file, null);
+
+		List<StructureIdentifier> domains = splitter.split(new StructureName(
+				"1ABC.A"), new Atom[1200]);
+		assertEquals(Arrays.asList("1ABC.A_1-500", "1ABC.A_501-1200"),
+				getIdentifiers(domains));
+
+		// chains shorter than the minimum length are not split
+		assertTrue(splitter.split(new StructureName("1ABC.A"), new Atom[999])
+				.isEmpty());
+
+		// a single domain is the whole chain
+		assertTrue(splitter.split(new StructureName("2XYZ.B"), new Atom[1100])
+				.isEmpty());
+	}
+
+	@Test
+	public void testIndexedDomainNames() throws Exception {
+		SubstructureIdentifier range = new SubstructureIdentifier(
+				"1ABC.A:1-500");
+		List<StructureIdentifier> indexed = new ArrayList<StructureIdentifier>();
+		indexed.add(new DomainIndex.IndexedDomain("e1abcA1", range));
+		File index = File.createTempFile("domains", ".idx");
+		index.deleteOnExit();
+		DomainIndex.write(index, "ECOD develop285", indexed);
+
+		File file = writeBoundaries("1ABC.A e1abcA1", "1ABC.A e1abcA2");
+		DomainSplitter splitter = new DomainSplitter(1000);
+		splitter.readBoundaries(file, DomainIndex.open(index));
+
+		List<StructureIdentifier> domains = splitter.split(new StructureName(
+				"1ABC.A"), new Atom[1200]);
+		assertEquals(2, domains.size());
+		// the indexed name is resolved, the other one is kept as a name
+		assertTrue(domains.get(0) instanceof DomainIndex.IndexedDomain);
+		assertEquals("e1abcA1", domains.get(0).getIdentifier());
+		assertEquals(range.getIdentifier(), domains.get(0).toCanonical()
+				.getIdentifier());
+		assertTrue(domains.get(1) instanceof StructureName);
+		assertEquals("e1abcA2", domains.get(1).getIdentifier());
+	}
+
+	/**
+	 * Build a chain of compact globules far apart, each a random walk of CA
+	 * atoms inside a sphere. The residues are numbered from 1.
+	 */
+	private static Atom[] buildGlobules(int globules, int length) {
+		Random rnd = new Random(0);
+		Chain chain = new ChainImpl();
+		chain.setId("A");
+		chain.setName("A");
+		Atom[] atoms = new Atom[globules * length];
+		double radius = 17;
+		for (int g = 0; g < globules; g++) {
+			double[] center = { 100.0 * g, 0, 0 };
+			double[] pos = center.clone();
+			for (int i = 0; i < length; i++) {
+				double[] next;
+				do {
+					double dx = rnd.nextGaussian(), dy = rnd.nextGaussian(), dz = rnd
+							.nextGaussian();
+					double norm = Math.sqrt(dx * dx + dy * dy + dz * dz) / 3.8;
+					next = new double[] { pos[0] + dx / norm,
+							pos[1] + dy / norm, pos[2] + dz / norm };
+				} while (Math.pow(next[0] - center[0], 2) + next[1] * next[1]
+						+ next[2] * next[2] > radius * radius);
+				pos = next;
+
+				int r = g * length + i;
+				Group group = new AminoAcidImpl();
+				group.setPDBName("ALA");
+				group.setResidueNumber("A", r + 1, null);
+				Atom ca = new AtomImpl();
+				ca.setName("CA");
+				ca.setElement(Element.C);
+				ca.setCoords(pos);
+				group.addAtom(ca);
+				chain.addGroup(group);
+				atoms[r] = ca;
+			}
+		}
+		return atoms;
+	}
+
+	@Test
+	public void testParsedDomains() throws Exception {
+		Atom[] atoms = buildGlobules(2, 300);
+		DomainSplitter splitter = new DomainSplitter(500);
+
+		// without supplied boundaries, the domain parser splits the globules
+		List<StructureIdentifier> domains = splitter.split(new StructureName(
+				"1ABC.A"), atoms);
+		assertEquals(2, domains.size());
+
+		boolean[] found = new boolean[2];
+		for (StructureIdentifier domain : domains) {
+			// named by the residue ranges of the chain in the PDB entry
+			assertTrue(domain instanceof StructureName);
+			assertTrue(domain.getIdentifier(),
+					domain.getIdentifier().startsWith("1ABC.A_"));
+			List<ResidueRange> ranges = domain.toCanonical()
+					.getResidueRanges();
+			assertEquals(ResidueRange.toString(ranges), domain.getIdentifier()
+					.substring(5));
+
+			// most residues of a domain are in one globule
+			int[] residues = new int[2];
+			for (ResidueRange range : ranges) {
+				assertEquals("A", range.getChainName());
+				for (int r = range.getStart().getSeqNum(); r <= range.getEnd()
+						.getSeqNum(); r++)
+					residues[(r - 1) / 300]++;
+			}
+			int globule = residues[0] > residues[1] ? 0 : 1;
+			assertTrue(domain.getIdentifier(),
+					residues[globule] > 250 && residues[1 - globule] < 25);
+			found[globule] = true;
+		}
+		assertTrue(found[0] && found[1]);
+
+		// chains shorter than the minimum length are not parsed
+		assertTrue(new DomainSplitter(601).split(
+				new StructureName("1ABC.A"), atoms).isEmpty());
+	}
+
+	@Test
+	public void testMalformedBoundaries() throws Exception {
+		File file = writeBoundaries("1ABC.A 1ABC.A_1-500", "1ABC.A");
+		DomainSplitter splitter = new DomainSplitter(1000);
+		try {
+			splitter.readBoundaries(file, null);
+			fail("Expected an IOException for a line without a domain");
+		} catch (IOException e) {
+			assertTrue(e.getMessage().contains("1ABC.A"));
+		}
+	}
+
+}
@@ -0,0 +1,247 @@
+package workers;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.GZIPOutputStream;
+
+import org.biojava.nbio.structure.AminoAcidImpl;
+import org.biojava.nbio.structure.Atom;
+import org.biojava.nbio.structure.AtomImpl;
+import org.biojava.nbio.structure.Chain;
+import org.biojava.nbio.structure.ChainImpl;
+import org.biojava.nbio.structure.Element;
+import org.biojava.nbio.structure.EntityInfo;
+import org.biojava.nbio.structure.EntityType;
+import org.biojava.nbio.structure.Group;
+import org.biojava.nbio.structure.PDBHeader;
+import org.biojava.nbio.structure.PdbId;
+import org.biojava.nbio.structure.Structure;
+import org.biojava.nbio.structure.StructureImpl;
+import org.biojava.nbio.structure.StructureTools;
+import org.biojava.nbio.structure.align.client.StructureName;
+import org.biojava.nbio.structure.align.util.UserConfiguration;
+import org.biojava.nbio.structure.io.LocalPDBDirectory.FetchBehavior;
+import org.biojava.nbio.structure.io.LocalPDBDirectory.ObsoleteBehavior;
+import org.biojava.nbio.structure.io.StructureFiletype;
+import org.biojava.nbio.structure.symmetry.utils.SymmetryTools;
+import org.junit.Test;
+
+/**
+ * Test the sharing of parsed entries between the jobs of a batch run.
+ */
+public class EntryCacheTest {
+
+	/**
+	 * Build an entry with two chains, A and B, of the given length.
+	 */
+	private static Structure buildEntry(String pdbId, int length) {
+		Structure s = new StructureImpl();
+		s.setPdbId(new PdbId(pdbId));
+		PDBHeader header = new PDBHeader();
+		header.setDescription(pdbId);
+		s.setPDBHeader(header);
+
+		EntityInfo entity = new EntityInfo();
+		entity.setMolId(1);
+		entity.setType(EntityType.POLYMER);
+		List<Chain> chains = new ArrayList<Chain>();
+		for (String name : new String[] { "A", "B" }) {
+			Chain chain = new ChainImpl();
+			chain.setId(name);
+			chain.setName(name);
+			chain.setEntityInfo(entity);
+			entity.addChain(chain);
+			for (int i = 0; i < length; i++) {
+				Group g = new AminoAcidImpl();
+				g.setPDBName("ALA");
+				g.setResidueNumber(name, i + 1, null);
+				Atom ca = new AtomImpl();
+				ca.setName("CA");
+				ca.setElement(Element.C);
+				ca.setX(3.8 * i);
+				ca.setY(0);
+				ca.setZ(0);
+				g.addAtom(ca);
+				chain.addGroup(g);
+			}
+			chains.add(chain);
+		}
+		s.addModel(chains);
+		s.setEntityInfos(Collections.singletonList(entity));
+		return s;
+	}
+
+	/**
+	 * Write an mmCIF entry with two protein chains, A and B, of the given
+	 * length and a ligand with a CA atom of element C to the divided layout of
+	 * a local mirror.
+	 */
+	static void writeMirrorEntry(File mirror, String pdbId, int length)
+			throws IOException {
+		File dir = new File(mirror, "data/structures/divided/mmCIF/"
+				+ pdbId.substring(1, 3).toLowerCase());
+		dir.mkdirs();
+		File file = new File(dir, pdbId.toLowerCase() + ".cif.gz");
+		try (Writer writer = new OutputStreamWriter(new GZIPOutputStream(
+				new FileOutputStream(file)), StandardCharsets.US_ASCII)) {
+			writer.write("data_" + pdbId + "\n#\nloop_\n");
+			for (String column : new String[] { "group_PDB", "id",
+					"type_symbol", "label_atom_id", "label_alt_id",
+					"label_comp_id", "label_asym_id", "label_entity_id",
+					"label_seq_id", "pdbx_PDB_ins_code", "Cartn_x", "Cartn_y",
+					"Cartn_z", "occupancy", "B_iso_or_equiv", "auth_seq_id",
+					"auth_comp_id", "auth_asym_id", "auth_atom_id",
+					"pdbx_PDB_model_num" })
+				writer.write("_atom_site." + column + "\n");
+			int serial = 1;
+			for (String chain : new String[] { "A", "B" }) {
+				for (int i = 1; i <= length; i++) {
+					writer.write(String.format(
+							"ATOM %d C CA . ALA %s 1 %d ? %.3f %.3f 0.000 1.00 "
+									+ "10.00 %d ALA %s CA 1\n", serial++,
+							chain, i, 3.8 * i, chain.equals("A") ? 0.0 : 10.0,
+							i, chain));
+				}
+			}
+			writer.write(String.format("HETATM %d C CA . ACT C 2 . ? 0.000 "
+					+ "5.000 0.000 1.00 10.00 101 ACT A CA 1\n", serial));
+			writer.write("#\n");
+		}
+	}
+
+	/**
+	 * Provider of mmCIF files from a local mirror, without downloads.
+	 */
+	static AtomCacheProvider createMirrorProvider(File mirror) {
+		UserConfiguration config = new UserConfiguration();
+		config.setPdbFilePath(mirror.getAbsolutePath());
+		config.setCacheFilePath(mirror.getAbsolutePath());
+		config.setFetchBehavior(FetchBehavior.LOCAL_ONLY);
+		return new AtomCacheProvider(config, StructureFiletype.CIF,
+				ObsoleteBehavior.THROW_EXCEPTION);
+	}
+
+	@Test
+	public void testRepresentativeOnly() throws Exception {
+		File mirror = Files.createTempDirectory("mirror").toFile();
+		writeMirrorEntry(mirror, "1ABC", 30);
+		EntryCache cache = new EntryCache(createMirrorProvider(mirror), 1000);
+		cache.setRepresentativeOnly(true);
+
+		Structure s = cache.getStructure(new StructureName("1ABC.A"));
+		assertEquals("1ABC", s.getPdbId().getId());
+		assertEquals(1, s.getPolyChains().size());
+
+		// the ligand CA is not a residue of the entry
+		Atom[] atoms = SymmetryTools.getRepresentativeAtoms(s);
+		assertEquals(30, atoms.length);
+		assertEquals(3.8, atoms[0].getX(), 1e-3);
+		assertEquals(60, cache.getCachedAtoms());
+	}
+
+	@Test
+	public void testSingleFlight() throws Exception {
+		AtomicInteger loads = new AtomicInteger();
+		CountDownLatch start = new CountDownLatch(1);
+		EntryCache cache = new EntryCache(id -> {
+			throw new AssertionError("Not an entry: " + id);
+		}, pdbId -> {
+			loads.incrementAndGet();
+			LockSupport.parkNanos(50000000L);
+			return buildEntry(pdbId, 10);
+		}, 1000);
+
+		ExecutorService pool = Executors.newFixedThreadPool(8);
+		List<Future<Structure>> results = new ArrayList<Future<Structure>>();
+		for (int i = 0; i < 16; i++) {
+			String name = i % 2 == 0 ? "1ABC.A" : "1ABC.B";
+			results.add(pool.submit(() -> {
+				start.await();
+				return cache.getStructure(new StructureName(name));
+			}));
+		}
+		start.countDown();
+		for (Future<Structure> result : results) {
+			Structure s = result.get();
+			assertEquals(1, s.getPolyChains().size());
+			assertEquals(10, StructureTools.getNrAtoms(s));
+		}
+		pool.shutdown();
+		assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+
+		assertEquals(1, loads.get());
+		assertTrue(cache.isCached("1ABC"));
+		assertEquals(20, cache.getCachedAtoms());
+	}
+
+	@Test
+	public void testEvictionByAtoms() throws Exception {
+		AtomicInteger loads = new AtomicInteger();
+		EntryCache cache = new EntryCache(id -> {
+			throw new AssertionError("Not an entry: " + id);
+		}, pdbId -> {
+			loads.incrementAndGet();
+			return buildEntry(pdbId, pdbId.equals("4DDD") ? 20 : 5);
+		}, 25);
+
+		cache.getStructure(new StructureName("1AAA.A"));
+		cache.getStructure(new StructureName("2BBB.A"));
+		assertEquals(20, cache.getCachedAtoms());
+
+		// 1AAA is used again, so 2BBB is the least recently used
+		cache.getStructure(new StructureName("1AAA.B"));
+		assertEquals(2, loads.get());
+
+		cache.getStructure(new StructureName("3CCC.A"));
+		assertTrue(cache.isCached("1AAA"));
+		assertFalse(cache.isCached("2BBB"));
+		assertTrue(cache.isCached("3CCC"));
+		assertEquals(20, cache.getCachedAtoms());
+
+		// The newest entry is kept even if it alone exceeds the budget
+		cache.getStructure(new StructureName("4DDD.A"));
+		assertFalse(cache.isCached("1AAA"));
+		assertFalse(cache.isCached("3CCC"));
+		assertTrue(cache.isCached("4DDD"));
+		assertEquals(40, cache.getCachedAtoms());
+		assertEquals(4, loads.get());
+	}
+
+	@Test
+	public void testSharedEntryUnchanged() throws Exception {
+		Structure entry = buildEntry("1ABC", 10);
+		EntryCache cache = new EntryCache(id -> {
+			throw new AssertionError("Not an entry: " + id);
+		}, pdbId -> entry, 1000);
+
+		Structure a = cache.getStructure(new StructureName("1ABC.A"));
+		Structure b = cache.getStructure(new StructureName("1ABC.B"));
+
+		assertEquals("A", a.getPolyChains().get(0).getName());
+		assertEquals("B", b.getPolyChains().get(0).getName());
+		assertNotSame(entry.getPolyChains().get(0).getAtomGroup(0),
+				a.getPolyChains().get(0).getAtomGroup(0));
+
+		assertEquals(2, entry.getPolyChains().size());
+		assertEquals(20, StructureTools.getNrAtoms(entry));
+		assertEquals("1ABC", entry.getPDBHeader().getDescription());
+	}
+
+}
@@ -0,0 +1,210 @@
+package workers;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.biojava.nbio.structure.AminoAcidImpl;
+import org.biojava.nbio.structure.Atom;
+import org.biojava.nbio.structure.AtomImpl;
+import org.biojava.nbio.structure.Chain;
+import org.biojava.nbio.structure.ChainImpl;
+import org.biojava.nbio.structure.Element;
+import org.biojava.nbio.structure.EntityInfo;
+import org.biojava.nbio.structure.EntityType;
+import org.biojava.nbio.structure.Group;
+import org.biojava.nbio.structure.PDBHeader;
+import org.biojava.nbio.structure.Structure;
+import org.biojava.nbio.structure.StructureIdentifier;
+import org.biojava.nbio.structure.StructureImpl;
+import org.biojava.nbio.structure.align.client.StructureName;
+import org.biojava.nbio.structure.align.multiple.util.MultipleAlignmentScorer;
+import org.biojava.nbio.structure.symmetry.internal.CESymmParameters;
+import org.biojava.nbio.structure.symmetry.internal.CeSymm;
+import org.biojava.nbio.structure.symmetry.internal.CeSymmResult;
+import org.junit.Test;
+
+import writers.CeSymmWriter;
+
+/**
+ * Test the expansion of the inputs into frames, their loading by the worker,
+ * and the analysis of a frame bounded by the previous one.
+ */
+public class FrameWorkerTest {
+
+	/**
+	 * Build a structure of one chain with the given number of models, on a
+	 * straight line. The model m is shifted by m Angstroms along y.
+	 */
+	private static Structure buildModels(int models, int length) {
+		double[][] coords = new double[length][];
+		for (int i = 0; i < length; i++)
+			coords[i] = new double[] { 3.8 * i, 0, 0 };
+		return buildModels(models, coords);
+	}
+
+	/**
+	 * Build a structure of one chain with the given number of models and CA
+	 * coordinates. The model m is shifted by m Angstroms along y.
+	 */
+	private static Structure buildModels(int models, double[][] coords) {
+		int length = coords.length;
+		Structure s = new StructureImpl();
+		s.setPDBHeader(new PDBHeader());
+		EntityInfo entity = new EntityInfo();
+		entity.setMolId(1);
+		entity.setType(EntityType.POLYMER);
+		for (int m = 0; m < models; m++) {
+			Chain chain = new ChainImpl();
+			chain.setId("A");
+			chain.setName("A");
+			chain.setEntityInfo(entity);
+			for (int i = 0; i < length; i++) {
+				Group g = new AminoAcidImpl();
+				g.setPDBName("ALA");
+				g.setResidueNumber("A", i + 1, null);
+				Atom ca = new AtomImpl();
+				ca.setName("CA");
+				ca.setElement(Element.C);
+				ca.setX(coords[i][0]);
+				ca.setY(coords[i][1] + m);
+				ca.setZ(coords[i][2]);
+				g.addAtom(ca);
+				chain.addGroup(g);
+			}
+			if (m == 0)
+				entity.addChain(chain);
+			s.addModel(Collections.singletonList(chain));
+		}
+		s.setEntityInfos(Collections.singletonList(entity));
+		return s;
+	}
+
+	@Test
+	public void testFrames() throws Exception {
+		Structure ensemble = buildModels(3, 10);
+		StructureIdentifier id = new StructureName("2K3X.A");
+
+		List<FrameWorker.Frame> frames = FrameWorker.getFrames(id, ensemble);
+		assertEquals(3, frames.size());
+		assertEquals("2K3X.A#1", frames.get(0).getIdentifier());
+		assertEquals("2K3X.A#3", frames.get(2).getIdentifier());
+
+		// the atoms of a frame are those of its model
+		Atom[] atoms = frames.get(1).getAtoms(ensemble);
+		assertEquals(10, atoms.length);
+		assertEquals(1.0, atoms[0].getY(), 0.0);
+		assertEquals("2K3X.A#2", atoms[0].getGroup().getChain()
+				.getStructure().getStructureIdentifier().getIdentifier());
+
+		// a single model keeps the identifier of the input
+		frames = FrameWorker.getFrames(id, buildModels(1, 10));
+		assertEquals(1, frames.size());
+		assertEquals("2K3X.A", frames.get(0).getIdentifier());
+	}
+
+	/**
+	 * CA coordinates of three copies of a random walk, related by rotations
+	 * of 120 degrees around the z axis.
+	 */
+	private static double[][] getC3Coordinates(int length) {
+		Random rnd = new Random(0);
+		double[][] walk = new double[length][];
+		double x = 12, y = 0, z = 0;
+		for (int i = 0; i < length; i++) {
+			double dx = rnd.nextGaussian(), dy = rnd.nextGaussian(), dz = rnd
+					.nextGaussian();
+			double norm = Math.sqrt(dx * dx + dy * dy + dz * dz) / 3.8;
+			x += dx / norm;
+			y += dy / norm;
+			z += dz / norm;
+			walk[i] = new double[] { x, y, z };
+		}
+		double[][] coords = new double[3 * length][];
+		for (int r = 0; r < 3; r++) {
+			double angle = 2 * Math.PI * r / 3;
+			double c = Math.cos(angle), s = Math.sin(angle);
+			for (int i = 0; i < length; i++)
+				coords[r * length + i] = new double[] {
+						c * walk[i][0] - s * walk[i][1],
+						s * walk[i][0] + c * walk[i][1], walk[i][2] };
+		}
+		return coords;
+	}
+
+	@Test
+	public void testBoundedByPreviousFrame() throws Exception {
+		double[][] coords = getC3Coordinates(60);
+		CESymmParameters params = new CESymmParameters();
+
+		// the result of the second frame without bounds
+		Structure ensemble = buildModels(2, coords);
+		List<FrameWorker.Frame> frames = FrameWorker.getFrames(
+				new StructureName("2K3X.A"), ensemble);
+		CeSymmResult cold = CeSymm.analyze(frames.get(1).getAtoms(ensemble),
+				params);
+		assertTrue(cold.isSignificant());
+
+		List<CeSymmResult> results = new ArrayList<CeSymmResult>();
+		CeSymmWriter writer = new CeSymmWriter("-") {
+			@Override
+			public void writeHeader() {
+			}
+
+			@Override
+			public void writeResult(CeSymmResult result) {
+				results.add(result);
+			}
+		};
+		FrameWorker worker = new FrameWorker(
+				Collections.singletonList((StructureIdentifier) new StructureName(
+						"2K3X.A")), params, id -> buildModels(2, coords),
+				Collections.singletonList(writer));
+		worker.run();
+
+		// the second frame is bounded by the first, to the same result
+		assertEquals(2, results.size());
+		assertEquals(1, worker.getBoundedFrames());
+		CeSymmResult bounded = results.get(1);
+		assertTrue(bounded.isSignificant());
+		assertEquals(cold.getSymmGroup(), bounded.getSymmGroup());
+		assertEquals(cold.getNumRepeats(), bounded.getNumRepeats());
+		assertEquals(cold.getSymmLevels(), bounded.getSymmLevels());
+		assertEquals(cold.getSelfAlignment().getTMScore(), bounded
+				.getSelfAlignment().getTMScore(), 1e-6);
+		assertEquals(cold.getMultipleAlignment().getScore(
+				MultipleAlignmentScorer.AVGTM_SCORE), bounded
+				.getMultipleAlignment().getScore(
+						MultipleAlignmentScorer.AVGTM_SCORE), 1e-6);
+	}
+
+	@Test
+	public void testInputsLoadedByWorker() throws Exception {
+		List<String> loads = Collections
+				.synchronizedList(new ArrayList<String>());
+		StructureProvider provider = id -> {
+			loads.add(id.getIdentifier());
+			if (id.getIdentifier().equals("2BBB"))
+				throw new IOException("Missing file");
+			return buildModels(2, 10);
+		};
+		List<StructureIdentifier> inputs = new ArrayList<StructureIdentifier>();
+		for (String name : new String[] { "1AAA", "2BBB", "3CCC" })
+			inputs.add(new StructureName(name));
+
+		FrameWorker worker = new FrameWorker(inputs, new CESymmParameters(),
+				provider, new ArrayList<CeSymmWriter>());
+		assertTrue(loads.isEmpty());
+
+		// each input is loaded once for all its models, a failed input does
+		// not stop the batch
+		worker.run();
+		assertEquals(Arrays.asList("1AAA", "2BBB", "3CCC"), loads);
+	}
+
+}
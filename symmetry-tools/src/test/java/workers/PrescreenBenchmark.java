@@ -0,0 +1,118 @@
+package workers;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import main.CeSymmMain;
+
+import org.biojava.nbio.structure.Atom;
+import org.biojava.nbio.structure.Structure;
+import org.biojava.nbio.structure.align.client.StructureName;
+import org.biojava.nbio.structure.align.util.AtomCache;
+import org.biojava.nbio.structure.symmetry.internal.CESymmParameters;
+import org.biojava.nbio.structure.symmetry.internal.CeSymm;
+import org.biojava.nbio.structure.symmetry.internal.CeSymmResult;
+import org.biojava.nbio.structure.symmetry.utils.SymmetryTools;
+
+/**
+ * Measure the false-negative rate of the prescreen of {@link CeSymmWorker} on
+ * a reference list of structures: the fraction of the structures found
+ * significantly symmetric by the full analysis that the prescreen would
+ * report as C1. For each margin it also reports the fraction of asymmetric
+ * structures skipped and the total time, with and without the prescreen.
+ * <p>
+ * Run it on a reference set before enabling the prescreen on a database.
+ * <p>
+ * Usage: PrescreenBenchmark reference.txt [margin ...]
+ */
+public class PrescreenBenchmark {
+
+	public static void main(String[] args) throws Exception {
+
+		if (args.length < 1) {
+			System.err.println("Usage: PrescreenBenchmark reference.txt "
+					+ "[margin ...]");
+			System.exit(1);
+		}
+		double[] margins = { 0.0, 0.05, CeSymmWorker.DEFAULT_PRESCREEN_MARGIN,
+				0.15, 0.2 };
+		if (args.length > 1) {
+			margins = new double[args.length - 1];
+			for (int m = 0; m < margins.length; m++)
+				margins[m] = Double.parseDouble(args[m + 1]);
+		}
+
+		AtomCache cache = new AtomCache();
+		CESymmParameters params = new CESymmParameters();
+
+		List<String> names = new ArrayList<String>();
+		List<Boolean> symmetric = new ArrayList<Boolean>();
+		List<Double> tmScores = new ArrayList<Double>();
+		List<Long> fullTimes = new ArrayList<Long>();
+		List<Long> coarseTimes = new ArrayList<Long>();
+
+		for (String name : CeSymmMain.parseInputStructures(args[0])) {
+			Atom[] atoms;
+			try {
+				Structure s = cache.getStructure(new StructureName(name));
+				atoms = SymmetryTools.getRepresentativeAtoms(s);
+			} catch (Exception e) {
+				System.err.println("Could not load " + name + ": " + e);
+				continue;
+			}
+
+			long start = System.nanoTime();
+			CeSymmResult result = CeSymm.analyze(atoms, params);
+			long full = System.nanoTime();
+			double tmScore = CeSymmWorker.getCoarseTMScore(atoms, params);
+			long coarse = System.nanoTime();
+
+			names.add(name);
+			symmetric.add(result.isSignificant());
+			tmScores.add(tmScore);
+			fullTimes.add(full - start);
+			coarseTimes.add(coarse - full);
+			System.out.println(String.format("%s\t%d\t%s\t%.3f", name,
+					atoms.length, result.getSymmGroup(), tmScore));
+		}
+
+		int nSymmetric = 0;
+		long fullTime = 0;
+		for (int i = 0; i < names.size(); i++) {
+			if (symmetric.get(i))
+				nSymmetric++;
+			fullTime += fullTimes.get(i);
+		}
+		int nAsymmetric = names.size() - nSymmetric;
+		System.out.println(String.format(
+				"%d structures, %d symmetric, full analysis %.1f s",
+				names.size(), nSymmetric, fullTime / 1e9));
+
+		for (double margin : margins) {
+			double threshold = params.getUnrefinedScoreThreshold() - margin;
+			int missed = 0;
+			int skipped = 0;
+			long time = 0;
+			for (int i = 0; i < names.size(); i++) {
+				double tmScore = tmScores.get(i);
+				time += coarseTimes.get(i);
+				if (!Double.isNaN(tmScore) && tmScore < threshold) {
+					if (symmetric.get(i)) {
+						missed++;
+						System.out.println("Missed with margin " + margin
+								+ ": " + names.get(i));
+					} else
+						skipped++;
+				} else
+					time += fullTimes.get(i);
+			}
+			System.out.println(String.format(
+					"margin %.2f: false negatives %d (%.3f), asymmetric "
+							+ "skipped %d (%.3f), prescreen %.1f s", margin,
+					missed, nSymmetric > 0 ? (double) missed / nSymmetric
+							: 0.0, skipped,
+					nAsymmetric > 0 ? (double) skipped / nAsymmetric : 0.0,
+					time / 1e9));
+		}
+	}
+}
@@ -0,0 +1,84 @@
+package workers;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Test the windows and the merge of their repeats in {@link RepeatWindows}.
+ */
+public class RepeatWindowsTest {
+
+	@Test
+	public void testStarts() {
+		assertArrayEquals(new int[] { 0 }, RepeatWindows.getStarts(300, 400));
+		assertArrayEquals(new int[] { 0, 200, 400, 600 },
+				RepeatWindows.getStarts(1000, 400));
+		assertArrayEquals(new int[] { 0, 200, 400, 500 },
+				RepeatWindows.getStarts(900, 400));
+	}
+
+	@Test
+	public void testMerge() {
+
+		// 25 repeats of 40 residues along a chain of 1000
+		RepeatWindows windows = new RepeatWindows(1000, 400);
+		for (int w = 0; w < windows.size(); w++) {
+			List<int[]> repeats = new ArrayList<int[]>();
+			int start = windows.getStart(w);
+			for (int r = 0; r < 25; r++) {
+				int from = 40 * r - start;
+				// only the repeats complete in the window, trimmed by a residue
+				if (from >= 0 && from + 40 <= 400)
+					repeats.add(new int[] { from + w % 2, from + 38 });
+			}
+			windows.finish(w, repeats, "C10");
+		}
+
+		List<int[]> merged = windows.merge();
+		assertEquals(25, merged.size());
+		assertArrayEquals(new int[] { 0, 38 }, merged.get(0));
+		assertArrayEquals(new int[] { 961, 998 }, merged.get(24));
+		assertEquals(0, windows.getRunFrom());
+		assertEquals(3, windows.getRunTo());
+		assertEquals("C10", windows.getGroup());
+	}
+
+	@Test
+	public void testInconsistentPeriods() {
+
+		// the first two windows have repeats of 40, the last two of 100
+		RepeatWindows windows = new RepeatWindows(1000, 400);
+		windows.finish(0, Arrays.asList(new int[] { 0, 39 },
+				new int[] { 40, 79 }, new int[] { 80, 119 }), "C3");
+		windows.finish(1, Arrays.asList(new int[] { 0, 39 },
+				new int[] { 40, 79 }), "C2");
+		windows.finish(2, Arrays.asList(new int[] { 0, 99 },
+				new int[] { 100, 199 }, new int[] { 200, 299 },
+				new int[] { 300, 399 }), "C4");
+		windows.finish(3, Arrays.asList(new int[] { 0, 99 },
+				new int[] { 100, 199 }, new int[] { 200, 299 },
+				new int[] { 300, 399 }), "C4");
+
+		// windows 2 and 3 merge into 6 repeats, from 400 to 1000
+		List<int[]> merged = windows.merge();
+		assertEquals(6, merged.size());
+		assertEquals(400, merged.get(0)[0]);
+		assertEquals(2, windows.getRunFrom());
+		assertEquals("C4", windows.getGroup());
+	}
+
+	@Test
+	public void testNoRepeats() {
+		RepeatWindows windows = new RepeatWindows(1000, 400);
+		for (int w = 0; w < windows.size(); w++)
+			windows.finish(w, new ArrayList<int[]>(), "C1");
+		assertEquals(0, windows.merge().size());
+		assertEquals("C1", windows.getGroup());
+	}
+}